@@ -0,0 +1,103 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.services.bigquery.model.TableDataInsertAllRequest;
+import com.google.cloud.bigquery.InsertAllRequest;
+import io.barracks.bigqueryservice.model.DeviceEventHook;
+import io.barracks.bigqueryservice.model.DeviceEventPayloads;
+import io.barracks.bigqueryservice.model.DeviceRequest;
+import io.barracks.bigqueryservice.model.MessageMetadata;
+import io.barracks.bigqueryservice.model.Package;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the rows of a device event and serializes them into the body of an insert request, the way the BigQuery
+ * client does before sending it. Run with the gc profiler to compare the bytes allocated per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowBuildingBenchmark {
+
+    // The BigQuery client serializes its requests with this factory
+    private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+
+    @Param({"1", "10", "100"})
+    private int packages;
+
+    @Param({"10", "200"})
+    private int customClientDataFields;
+
+    private DeviceEventHook deviceEventHook;
+
+    private MessageMetadata messageMetadata;
+
+    private List<InsertAllRequest.RowToInsert> rows;
+
+    @Setup
+    public void setUp() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        deviceEventHook = mapper.treeToValue(DeviceEventPayloads.deviceEventHook(mapper, packages, customClientDataFields), DeviceEventHook.class);
+        messageMetadata = MessageMetadata.builder().messageId("message").timestamp(Instant.now()).build();
+        rows = rows();
+    }
+
+    @Benchmark
+    public List<InsertAllRequest.RowToInsert> rows() {
+        final DeviceRequest request = deviceEventHook.getDeviceEvent().getRequest();
+        final List<InsertAllRequest.RowToInsert> packageRows = new ArrayList<>(request.getPackages().size());
+        for (Package aPackage : request.getPackages()) {
+            packageRows.add(BigQueryClient.buildRowToInsert(request, aPackage, messageMetadata));
+        }
+        return packageRows;
+    }
+
+    @Benchmark
+    public InsertAllRequest.RowToInsert nestedRow() throws IOException {
+        return BigQueryClient.buildNestedRowToInsert(deviceEventHook.getDeviceEvent().getRequest(), deviceEventHook.getDeviceEvent().getResponse(), messageMetadata);
+    }
+
+    @Benchmark
+    public byte[] insertRequest() throws IOException {
+        final List<TableDataInsertAllRequest.Rows> requestRows = new ArrayList<>(rows.size());
+        for (InsertAllRequest.RowToInsert row : rows) {
+            requestRows.add(new TableDataInsertAllRequest.Rows().setInsertId(row.getId()).setJson(row.getContent()));
+        }
+        return JSON_FACTORY.toByteArray(new TableDataInsertAllRequest().setRows(requestRows));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the hooks received from the queues into their models. Run with the gc profiler to compare the bytes allocated
+ * per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HookDeserializationBenchmark {
+
+    @Param({"1", "10", "100"})
+    private int packages;
+
+    @Param({"10", "200"})
+    private int customClientDataFields;
+
+    private ObjectReader deviceEventHookReader;
+
+    private ObjectReader deviceChangeEventHookReader;
+
+    private byte[] deviceEventHook;
+
+    private byte[] deviceChangeEventHook;
+
+    @Setup
+    public void setUp() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        deviceEventHookReader = mapper.readerFor(DeviceEventHook.class);
+        deviceChangeEventHookReader = mapper.readerFor(DeviceChangeEventHook.class);
+        deviceEventHook = mapper.writeValueAsBytes(DeviceEventPayloads.deviceEventHook(mapper, packages, customClientDataFields));
+        deviceChangeEventHook = mapper.writeValueAsBytes(DeviceEventPayloads.deviceChangeEventHook(mapper, packages, customClientDataFields));
+    }
+
+    @Benchmark
+    public DeviceEventHook deviceEventHook() throws IOException {
+        return deviceEventHookReader.readValue(deviceEventHook);
+    }
+
+    @Benchmark
+    public DeviceChangeEventHook deviceChangeEventHook() throws IOException {
+        return deviceChangeEventHookReader.readValue(deviceChangeEventHook);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.rabbitmq;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.bigquery.InsertAllRequest;
+import io.barracks.bigqueryservice.client.PackageRows;
+import io.barracks.bigqueryservice.client.TableLayout;
+import io.barracks.bigqueryservice.model.DeviceEventHook;
+import io.barracks.bigqueryservice.model.DeviceEventPayloads;
+import io.barracks.bigqueryservice.model.DeviceRequest;
+import io.barracks.bigqueryservice.model.MessageMetadata;
+import io.barracks.bigqueryservice.model.Package;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.DefaultClassMapper;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading a device event message into its models and then into rows, with reading it straight into rows.
+ * Run with the gc profiler to compare the bytes allocated per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageConversionBenchmark {
+
+    @Param({"1", "10"})
+    private int packages;
+
+    @Param({"10", "200"})
+    private int customClientDataFields;
+
+    private Jackson2JsonMessageConverter modelConverter;
+
+    private DeviceEventRowsConverter rowsConverter;
+
+    private Message message;
+
+    @Setup
+    public void setUp() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        final DefaultClassMapper classMapper = new DefaultClassMapper();
+        classMapper.setDefaultType(DeviceEventHook.class);
+        modelConverter = new Jackson2JsonMessageConverter();
+        modelConverter.setJsonObjectMapper(mapper);
+        modelConverter.setClassMapper(classMapper);
+        final String[] none = new String[0];
+        rowsConverter = new DeviceEventRowsConverter(mapper, new TableLayout(none, none, none, none, none));
+
+        final MessageProperties properties = new MessageProperties();
+        properties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+        properties.setMessageId("message");
+        properties.setTimestamp(new Date());
+        message = new Message(mapper.writeValueAsBytes(DeviceEventPayloads.deviceEventHook(mapper, packages, customClientDataFields)), properties);
+    }
+
+    @Benchmark
+    public List<InsertAllRequest.RowToInsert> models() {
+        final DeviceEventHook deviceEventHook = (DeviceEventHook) modelConverter.fromMessage(message);
+        final MessageMetadata messageMetadata = DeviceMessageReceiver.buildMessageMetadata(message);
+        final DeviceRequest request = deviceEventHook.getDeviceEvent().getRequest();
+        final List<InsertAllRequest.RowToInsert> rows = new ArrayList<>(request.getPackages().size());
+        for (Package aPackage : request.getPackages()) {
+            rows.add(PackageRows.of(
+                    messageMetadata,
+                    request.getUserId(),
+                    request.getUnitId(),
+                    request.getIpAddress(),
+                    request.getUserAgent(),
+                    request.getCustomClientData().toString(),
+                    aPackage.getReference(),
+                    aPackage.getVersion().get()
+            ));
+        }
+        return rows;
+    }
+
+    @Benchmark
+    public List<InsertAllRequest.RowToInsert> streaming() {
+        return rowsConverter.fromMessage(message).getRows();
+    }
+}
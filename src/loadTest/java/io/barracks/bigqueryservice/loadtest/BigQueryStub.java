@@ -0,0 +1,183 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stand-in for the OAuth token endpoint and the BigQuery datasets, tables and insertAll endpoints.
+ * <p>
+ * Every dataset and table exists, and insert requests are answered after the configured latency, failing with a 503
+ * at the configured rate. The rows of the accepted requests are reported to the {@link LatencyRecorder} by the
+ * sequence number held in their unit id.
+ */
+final class BigQueryStub {
+
+    static final String UNIT_ID_PREFIX = "load-";
+
+    private static final String API_PATH = "/bigquery/v2/projects/";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final long latencyMillis;
+    private final double errorRate;
+    private final LatencyRecorder recorder;
+
+    private final AtomicLong insertRequests = new AtomicLong();
+    private final AtomicLong insertedRows = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    BigQueryStub(long latencyMillis, double errorRate, LatencyRecorder recorder) {
+        this.latencyMillis = latencyMillis;
+        this.errorRate = errorRate;
+        this.recorder = recorder;
+    }
+
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/token", exchange -> respond(exchange, 200,
+                mapper.createObjectNode().put("access_token", "token").put("expires_in", 3600).put("token_type", "Bearer")));
+        server.createContext(API_PATH, this::handleApi);
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    String getTokenUri() {
+        return getUrl() + "/token";
+    }
+
+    long getInsertRequests() {
+        return insertRequests.get();
+    }
+
+    long getInsertedRows() {
+        return insertedRows.get();
+    }
+
+    long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    private void handleApi(HttpExchange exchange) throws IOException {
+        try {
+            // projects/{project}/datasets[/{dataset}[/tables[/{table}[/insertAll]]]]
+            final String[] path = exchange.getRequestURI().getPath().substring(API_PATH.length()).split("/");
+            if ("POST".equals(exchange.getRequestMethod())) {
+                if (path.length == 6 && "insertAll".equals(path[5])) {
+                    insertAll(exchange);
+                } else {
+                    // Dataset or table creation, answered with the created resource
+                    respond(exchange, 200, readBody(exchange));
+                }
+            } else if (path.length >= 5) {
+                final ObjectNode table = mapper.createObjectNode().put("kind", "bigquery#table").put("type", "TABLE");
+                table.putObject("tableReference").put("projectId", path[0]).put("datasetId", path[2]).put("tableId", path[4]);
+                respond(exchange, 200, table);
+            } else if (path.length >= 3) {
+                final ObjectNode dataset = mapper.createObjectNode().put("kind", "bigquery#dataset");
+                dataset.putObject("datasetReference").put("projectId", path[0]).put("datasetId", path[2]);
+                respond(exchange, 200, dataset);
+            } else {
+                respond(exchange, 404, error(404, "Not found"));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void insertAll(HttpExchange exchange) throws IOException {
+        final JsonNode request = readBody(exchange);
+        insertRequests.incrementAndGet();
+        try {
+            TimeUnit.MILLISECONDS.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+            failedRequests.incrementAndGet();
+            respond(exchange, 503, error(503, "Backend error injected by the stub"));
+            return;
+        }
+        for (JsonNode row : request.path("rows")) {
+            insertedRows.incrementAndGet();
+            final String unitId = row.path("json").path("unitId").asText("");
+            if (unitId.startsWith(UNIT_ID_PREFIX)) {
+                recorder.stored(Integer.parseInt(unitId.substring(UNIT_ID_PREFIX.length())));
+            }
+        }
+        respond(exchange, 200, mapper.createObjectNode().put("kind", "bigquery#tableDataInsertAllResponse"));
+    }
+
+    private JsonNode readBody(HttpExchange exchange) throws IOException {
+        // The Google HTTP client gzips the content of its requests
+        final boolean gzipped = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        try (InputStream body = gzipped ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody()) {
+            final JsonNode content = mapper.readTree(body);
+            return content == null ? mapper.createObjectNode() : content;
+        }
+    }
+
+    private ObjectNode error(int code, String message) {
+        final ObjectNode error = mapper.createObjectNode();
+        error.putObject("error").put("code", code).put("message", message);
+        return error;
+    }
+
+    private void respond(HttpExchange exchange, int status, JsonNode content) throws IOException {
+        final byte[] body = mapper.writeValueAsBytes(content);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Times each message from its publication to the first insert request carrying one of its rows.
+ */
+final class LatencyRecorder {
+
+    private final AtomicLongArray publishedAt;
+    private final long[] latencies;
+    private final AtomicInteger published = new AtomicInteger();
+    private final AtomicInteger stored = new AtomicInteger();
+    private final AtomicLong lastStoredAt = new AtomicLong();
+
+    LatencyRecorder(int maxMessages) {
+        this.publishedAt = new AtomicLongArray(maxMessages);
+        this.latencies = new long[maxMessages];
+    }
+
+    void published(int sequence) {
+        publishedAt.set(sequence, System.nanoTime());
+        published.incrementAndGet();
+    }
+
+    /**
+     * Records the message as stored, unless one of its rows has already been inserted or it was not published by this
+     * run.
+     */
+    void stored(int sequence) {
+        if (sequence < 0 || sequence >= publishedAt.length()) {
+            return;
+        }
+        final long sentAt = publishedAt.getAndSet(sequence, 0L);
+        if (sentAt == 0L) {
+            return;
+        }
+        final long now = System.nanoTime();
+        latencies[stored.getAndIncrement()] = now - sentAt;
+        lastStoredAt.accumulateAndGet(now, Math::max);
+    }
+
+    int getPublished() {
+        return published.get();
+    }
+
+    int getStored() {
+        return stored.get();
+    }
+
+    long getLastStoredAt() {
+        return lastStoredAt.get();
+    }
+
+    /**
+     * @return the latency percentiles in milliseconds, in the order of the given percentiles.
+     */
+    synchronized double[] percentilesMillis(double... percentiles) {
+        final long[] sorted = Arrays.copyOf(latencies, stored.get());
+        Arrays.sort(sorted);
+        final double[] values = new double[percentiles.length];
+        for (int i = 0; i < percentiles.length && sorted.length > 0; i++) {
+            final int rank = (int) Math.min(sorted.length - 1, Math.ceil(percentiles[i] / 100.0 * sorted.length) - 1);
+            values[i] = sorted[Math.max(0, rank)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.loadtest;
+
+/**
+ * Settings of a load test run, read from the {@code loadtest.*} system properties.
+ */
+final class LoadTestSettings {
+
+    private final int rate;
+    private final int durationSeconds;
+    private final int drainTimeoutSeconds;
+    private final int tenants;
+    private final int packages;
+    private final long stubLatencyMillis;
+    private final double stubErrorRate;
+
+    private LoadTestSettings(int rate, int durationSeconds, int drainTimeoutSeconds, int tenants, int packages, long stubLatencyMillis, double stubErrorRate) {
+        this.rate = rate;
+        this.durationSeconds = durationSeconds;
+        this.drainTimeoutSeconds = drainTimeoutSeconds;
+        this.tenants = tenants;
+        this.packages = packages;
+        this.stubLatencyMillis = stubLatencyMillis;
+        this.stubErrorRate = stubErrorRate;
+    }
+
+    static LoadTestSettings fromSystemProperties() {
+        return new LoadTestSettings(
+                Integer.getInteger("loadtest.rate", 500),
+                Integer.getInteger("loadtest.durationseconds", 60),
+                Integer.getInteger("loadtest.draintimeoutseconds", 60),
+                Integer.getInteger("loadtest.tenants", 10),
+                Integer.getInteger("loadtest.packages", 2),
+                Long.getLong("loadtest.stub.latencymillis", 50L),
+                Double.parseDouble(System.getProperty("loadtest.stub.errorrate", "0.0"))
+        );
+    }
+
+    /**
+     * @return the number of messages published per second.
+     */
+    int getRate() {
+        return rate;
+    }
+
+    int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    /**
+     * @return how long to wait for the service to store the published messages once publishing is over.
+     */
+    int getDrainTimeoutSeconds() {
+        return drainTimeoutSeconds;
+    }
+
+    int getTenants() {
+        return tenants;
+    }
+
+    /**
+     * @return the number of packages of each device event.
+     */
+    int getPackages() {
+        return packages;
+    }
+
+    long getStubLatencyMillis() {
+        return stubLatencyMillis;
+    }
+
+    /**
+     * @return the share of insert requests the BigQuery stub fails with a 503.
+     */
+    double getStubErrorRate() {
+        return stubErrorRate;
+    }
+
+    int getMaxMessages() {
+        return (int) Math.min(Integer.MAX_VALUE - 8, (long) rate * durationSeconds);
+    }
+
+    @Override
+    public String toString() {
+        return "rate=" + rate + "/s duration=" + durationSeconds + "s tenants=" + tenants + " packages=" + packages
+                + " stubLatency=" + stubLatencyMillis + "ms stubErrorRate=" + stubErrorRate;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.capture;
+
+import com.google.common.io.CountingOutputStream;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Format of the capture files: a gzip stream starting with a magic number and a version, followed by the records one
+ * after the other, each written as its arrival time, routing key, message id, body length and body.
+ * <p>
+ * Files are named {@code .part} while being written and renamed to {@code .capture} once closed, so that only complete
+ * files are replayed.
+ */
+public final class CaptureFiles {
+
+    public static final String CAPTURE_EXTENSION = ".capture";
+    static final String PART_EXTENSION = ".part";
+
+    private static final int MAGIC = 0x42514350;
+    private static final int VERSION = 1;
+
+    private CaptureFiles() {
+    }
+
+    /**
+     * @return the complete capture files of the directory, in the order they were written.
+     */
+    public static List<Path> list(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(CAPTURE_EXTENSION)).sorted().collect(Collectors.toList());
+        }
+    }
+
+    static Writer create(Path part) throws IOException {
+        return new Writer(part);
+    }
+
+    public static Reader open(Path file) throws IOException {
+        return new Reader(file);
+    }
+
+    static class Writer implements Closeable {
+        private final Path part;
+        private final CountingOutputStream counting;
+        private final DataOutputStream output;
+
+        private Writer(Path part) throws IOException {
+            this.part = part;
+            this.counting = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(part)));
+            this.output = new DataOutputStream(new GZIPOutputStream(counting, 65536));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+        }
+
+        void write(CaptureRecord record) throws IOException {
+            output.writeLong(record.getArrivalMillis());
+            output.writeUTF(record.getRoutingKey() == null ? "" : record.getRoutingKey());
+            output.writeUTF(record.getMessageId() == null ? "" : record.getMessageId());
+            output.writeInt(record.getBody().length);
+            output.write(record.getBody());
+        }
+
+        /**
+         * @return the number of compressed bytes written to the file so far.
+         */
+        long size() {
+            return counting.getCount();
+        }
+
+        /**
+         * Completes the file and renames it so that it can be replayed.
+         */
+        @Override
+        public void close() throws IOException {
+            output.close();
+            final String name = part.getFileName().toString();
+            Files.move(part, part.resolveSibling(name.substring(0, name.length() - PART_EXTENSION.length()) + CAPTURE_EXTENSION));
+        }
+    }
+
+    public static class Reader implements Closeable {
+        private final DataInputStream input;
+
+        private Reader(Path file) throws IOException {
+            this.input = new DataInputStream(new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file)), 65536));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                input.close();
+                throw new IOException("Unknown capture file format: " + file);
+            }
+        }
+
+        /**
+         * @return the next record of the file, or null once all of them have been read.
+         */
+        public CaptureRecord next() throws IOException {
+            final long arrivalMillis;
+            try {
+                arrivalMillis = input.readLong();
+            } catch (EOFException e) {
+                return null;
+            }
+            final String routingKey = input.readUTF();
+            final String messageId = input.readUTF();
+            final byte[] body = new byte[input.readInt()];
+            input.readFully(body);
+            return CaptureRecord.of(arrivalMillis, routingKey, messageId.isEmpty() ? null : messageId, body);
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+}
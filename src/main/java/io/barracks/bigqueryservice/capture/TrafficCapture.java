@@ -0,0 +1,204 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.capture;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Records the consumed device event messages to capture files, so that production traffic can be replayed against
+ * another instance with its tenant mix and burst shape.
+ * <p>
+ * The client secret of each message is redacted before it is written, keeping only its project id, type and endpoints.
+ * A new file is started once the current one reaches its maximum size, and recording stops once the files of the run
+ * reach their total budget.
+ * <p>
+ * The listener threads only queue the messages, a single writer thread redacts and writes them, so that capturing does
+ * not serialize consumption. The messages received while the queue is full are left out.
+ */
+@Slf4j
+@Component
+public class TrafficCapture {
+
+    static final String REDACTED = "REDACTED";
+
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final long STOP_TIMEOUT_SECONDS = 10;
+
+    private static final List<String> SECRET_FIELDS = Arrays.asList(
+            "private_key", "private_key_id", "client_email", "client_id", "client_x509_cert_url"
+    );
+
+    private final boolean enabled;
+    private final Path directory;
+    private final long maxFileBytes;
+    private final long maxBytes;
+    private final ObjectMapper mapper;
+    private final CounterService counter;
+
+    private final long runMillis = System.currentTimeMillis();
+    private final ExecutorService writerExecutor;
+    // Only used by the writer thread, then by stop once it has terminated
+    private CaptureFiles.Writer writer;
+    private int fileSequence;
+    private long closedBytes;
+    private volatile boolean full;
+
+    @Autowired
+    public TrafficCapture(
+            @Value("${io.barracks.bigqueryservice.capture.enabled}") boolean enabled,
+            @Value("${io.barracks.bigqueryservice.capture.directory}") String directory,
+            @Value("${io.barracks.bigqueryservice.capture.maxfilebytes}") long maxFileBytes,
+            @Value("${io.barracks.bigqueryservice.capture.maxbytes}") long maxBytes,
+            ObjectMapper mapper,
+            CounterService counter
+    ) {
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.maxFileBytes = maxFileBytes;
+        this.maxBytes = maxBytes;
+        this.mapper = mapper;
+        this.counter = counter;
+        this.writerExecutor = enabled ? new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+            final Thread thread = new Thread(runnable, "traffic-capture-writer");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    public void record(Message message) {
+        if (!enabled || full) {
+            return;
+        }
+        final long arrivalMillis = now();
+        try {
+            writerExecutor.execute(() -> capture(arrivalMillis, message));
+        } catch (RejectedExecutionException e) {
+            incrementCaptureMetric("dropped");
+        }
+    }
+
+    /**
+     * Writes the queued messages and completes the file being written so that it can be replayed.
+     */
+    @PreDestroy
+    public void stop() throws IOException {
+        if (writerExecutor == null) {
+            return;
+        }
+        writerExecutor.shutdown();
+        try {
+            if (!writerExecutor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Capture still writing after " + STOP_TIMEOUT_SECONDS + "s, the file being written is left incomplete");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private void capture(long arrivalMillis, Message message) {
+        if (full) {
+            return;
+        }
+        final MessageProperties properties = message.getMessageProperties();
+        final CaptureRecord record;
+        try {
+            record = CaptureRecord.of(arrivalMillis, properties.getReceivedRoutingKey(), properties.getMessageId(), redact(message.getBody()));
+        } catch (IOException e) {
+            log.debug("Unable to redact message " + properties.getMessageId() + ", it is not captured", e);
+            incrementCaptureMetric("skipped");
+            return;
+        }
+        try {
+            write(record);
+            incrementCaptureMetric("success");
+        } catch (IOException e) {
+            log.warn("Unable to capture message " + properties.getMessageId(), e);
+            incrementCaptureMetric("error");
+        }
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    byte[] redact(byte[] body) throws IOException {
+        final JsonNode content = mapper.readTree(body);
+        final JsonNode secret = content == null ? null : content.path("hook").path("googleClientSecret");
+        if (secret == null || !secret.isObject()) {
+            return body;
+        }
+        for (String field : SECRET_FIELDS) {
+            if (secret.has(field)) {
+                ((ObjectNode) secret).put(field, REDACTED);
+            }
+        }
+        return mapper.writeValueAsBytes(content);
+    }
+
+    private void write(CaptureRecord record) throws IOException {
+        if (writer == null) {
+            Files.createDirectories(directory);
+            writer = CaptureFiles.create(directory.resolve(String.format("%d-%06d%s", runMillis, fileSequence++, CaptureFiles.PART_EXTENSION)));
+        }
+        writer.write(record);
+        if (writer.size() >= maxFileBytes || closedBytes + writer.size() >= maxBytes) {
+            closedBytes += writer.size();
+            writer.close();
+            writer = null;
+            if (closedBytes >= maxBytes) {
+                log.warn("Capture stopped after writing " + closedBytes + " bytes to " + directory);
+                full = true;
+            }
+        }
+    }
+
+    private void incrementCaptureMetric(String status) {
+        counter.increment("capture.record." + status);
+    }
+}
@@ -24,131 +24,509 @@
 
 package io.barracks.bigqueryservice.client;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.auth.oauth2.ServiceAccountCredentials;
 import com.google.cloud.bigquery.*;
+import io.barracks.bigqueryservice.client.exception.BigQueryClientException;
+import io.barracks.bigqueryservice.loadjob.LoadJobSink;
+import io.barracks.bigqueryservice.model.DeviceChangeEvent;
+import io.barracks.bigqueryservice.model.DeviceChangeEventHook;
 import io.barracks.bigqueryservice.model.DeviceEventHook;
 import io.barracks.bigqueryservice.model.DeviceRequest;
 import io.barracks.bigqueryservice.model.GoogleClientSecret;
+import io.barracks.bigqueryservice.model.MessageMetadata;
 import io.barracks.bigqueryservice.model.Package;
+import io.barracks.bigqueryservice.model.ResolvedVersions;
+import io.barracks.bigqueryservice.model.Version;
+import io.barracks.bigqueryservice.spool.Spool;
+import io.barracks.bigqueryservice.spool.SpoolRecord;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Slf4j
 @Component
 public class BigQueryClient {
 
-    private BigQuery bigQuery;
+    private static final int NOT_FOUND = 404;
 
-    private ObjectMapper mapper;
+    private static final String TEMPLATE_TABLE_NAME = "ResolveVersions";
 
-    private DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+    private static final String NESTED_TABLE_NAME = "DeviceRequests";
+
+    private static final String CHANGE_TABLE_NAME = "DeviceChanges";
+
+    private static final String ROLLUP_TABLE_NAME = "VersionRollups";
+
+    private static final String CUSTOM_CLIENT_DATA_CHANGE = "CUSTOM_CLIENT_DATA";
+
+    private static final String PARTITIONED_TABLE_SUFFIX = "Partitioned";
+
+    private static final ObjectMapper CUSTOM_DATA_MAPPER = new ObjectMapper();
+
+    private static final DateTimeFormatter DATE_SUFFIX_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private final BigQueryServiceCache bigQueryServiceCache;
+
+    private final BigQueryTableRegistry bigQueryTableRegistry;
+
+    private final InsertBatcher insertBatcher;
+
+    private final Spool spool;
+
+    private final LoadJobSink loadJobSink;
+
+    private final TableLayout tableLayout;
+
+    private final ProjectCircuitBreaker projectCircuitBreaker;
+
+    private final PipelineMetrics pipelineMetrics;
 
     @Autowired
-    public BigQueryClient(BigQuery bigQuery, ObjectMapper mappper) {
-        this.bigQuery = bigQuery;
-        this.mapper = mappper;
+    public BigQueryClient(BigQueryServiceCache bigQueryServiceCache, BigQueryTableRegistry bigQueryTableRegistry, InsertBatcher insertBatcher, Spool spool, LoadJobSink loadJobSink, TableLayout tableLayout, ProjectCircuitBreaker projectCircuitBreaker, PipelineMetrics pipelineMetrics) {
+        this.bigQueryServiceCache = bigQueryServiceCache;
+        this.bigQueryTableRegistry = bigQueryTableRegistry;
+        this.insertBatcher = insertBatcher;
+        this.spool = spool;
+        this.loadJobSink = loadJobSink;
+        this.tableLayout = tableLayout;
+        this.projectCircuitBreaker = projectCircuitBreaker;
+        this.pipelineMetrics = pipelineMetrics;
     }
 
-    public void sendEventToBigQuery(DeviceEventHook deviceEventHook) throws Exception {
+    public CompletableFuture<Void> sendEventToBigQuery(DeviceEventHook deviceEventHook, MessageMetadata messageMetadata) throws Exception {
         final DeviceRequest deviceRequest = deviceEventHook.getDeviceEvent().getRequest();
-        final String projectId = deviceEventHook.getHook().getGoogleClientSecret().getProjectId();
+        final GoogleClientSecret googleClientSecret = deviceEventHook.getHook().getGoogleClientSecret();
+        final boolean nested = tableLayout.isNested(googleClientSecret.getProjectId());
+        final String baseTableName = nested ? NESTED_TABLE_NAME : TEMPLATE_TABLE_NAME;
+
+        // One row per package, or one row per request holding every package, batched with the rows of other messages for the same table
+        final long start = System.nanoTime();
+        final List<InsertAllRequest.RowToInsert> rows;
+        if (nested) {
+            rows = Collections.singletonList(buildNestedRowToInsert(deviceRequest, deviceEventHook.getDeviceEvent().getResponse(), messageMetadata));
+        } else {
+            rows = new ArrayList<>(deviceRequest.getPackages().size());
+            deviceRequest.getPackages().forEach(aPackage -> rows.add(buildRowToInsert(deviceRequest, aPackage, messageMetadata)));
+        }
+        pipelineMetrics.recordStage(PipelineMetrics.ROWS, googleClientSecret.getProjectId(), baseTableName, start);
+
+        return sendRows(googleClientSecret, baseTableName, messageMetadata, rows);
+    }
+
+    /**
+     * Sends rows read straight from a message, which have the one row per package layout.
+     */
+    public CompletableFuture<Void> sendEventToBigQuery(DeviceEventRows deviceEventRows) throws Exception {
+        return sendRows(deviceEventRows.getGoogleClientSecret(), TEMPLATE_TABLE_NAME, deviceEventRows.getMessageMetadata(), deviceEventRows.getRows());
+    }
+
+    /**
+     * Writes only what changed since the previous request of the device, one row per package added, removed or
+     * updated and one row for the custom client data fields that changed.
+     */
+    public CompletableFuture<Void> sendChangeEventToBigQuery(DeviceChangeEventHook deviceChangeEventHook, MessageMetadata messageMetadata) throws Exception {
+        final DeviceChangeEvent deviceChangeEvent = deviceChangeEventHook.getDeviceChangeEvent();
+        final DeviceRequest deviceRequest = deviceChangeEvent.getDeviceEvent().getRequest();
+        final DeviceRequestDiff diff = DeviceRequestDiff.of(deviceChangeEvent.getOldRequest(), deviceRequest);
+        if (diff.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final long start = System.nanoTime();
+        final List<InsertAllRequest.RowToInsert> rows = new ArrayList<>(diff.getPackageChanges().size() + 1);
+        diff.getPackageChanges().forEach(change -> rows.add(buildChangeRowToInsert(deviceRequest, change, messageMetadata)));
+        if (diff.getCustomClientDataDelta().size() != 0) {
+            rows.add(buildCustomClientDataChangeRowToInsert(deviceRequest, diff, messageMetadata));
+        }
+        final GoogleClientSecret googleClientSecret = deviceChangeEventHook.getHook().getGoogleClientSecret();
+        pipelineMetrics.recordStage(PipelineMetrics.ROWS, googleClientSecret.getProjectId(), CHANGE_TABLE_NAME, start);
+
+        return sendRows(googleClientSecret, CHANGE_TABLE_NAME, messageMetadata, rows);
+    }
+
+    private CompletableFuture<Void> sendRows(GoogleClientSecret googleClientSecret, String baseTableName, MessageMetadata messageMetadata, List<InsertAllRequest.RowToInsert> rows) throws IOException {
+        final String projectId = googleClientSecret.getProjectId();
         final String datasetName = "Barracks";
         final DatasetId datasetId = DatasetId.of(projectId, datasetName);
-        final String tableName = "ResolveVersions";
-        final TableId tableId = TableId.of(projectId, datasetName, tableName);
+        final boolean partitioned = tableLayout.isPartitioned(projectId);
+        final TableId tableId = TableId.of(projectId, datasetName, baseTableName + (partitioned ? PARTITIONED_TABLE_SUFFIX : ""));
 
-        final String dateSuffix = dateFormat.format(Calendar.getInstance().getTime());
-        bigQuery = buildBigQueryCredentialsAndProjectId(deviceEventHook.getHook().getGoogleClientSecret());
+        // A partitioned table receives every row itself, template tables get one daily table per suffix
+        final String dateSuffix = partitioned ? null : LocalDate.from(messageMetadata.getTimestamp().atZone(ZoneId.systemDefault())).format(DATE_SUFFIX_FORMAT);
 
-        if (bigQuery.getDataset(datasetId) == null) {
-            createBigQueryDataset(datasetId);
+        if (!projectCircuitBreaker.allowRequest(projectId)) {
+            return shortCircuit(googleClientSecret, tableId, dateSuffix, rows);
         }
-        if (bigQuery.getTable(tableId) == null) {
-            createBigQueryTable(tableId);
-        }
-
-        // We send the data to BigQuery row by row
-        deviceRequest.getPackages().forEach(
-                aPackage -> {
-                    final InsertAllRequest.RowToInsert rowToInsert = buildRowToInsert(deviceRequest, aPackage);
-
-                    final InsertAllResponse response = bigQuery.insertAll(
-                            InsertAllRequest.newBuilder(tableId)
-                                    .addRow(rowToInsert)
-                                    .setTemplateSuffix(dateSuffix)
-                                    .build()
-                    );
-                    if (response.hasErrors()) {
-                        for (Map.Entry<Long, List<BigQueryError>> entry : response.getInsertErrors().entrySet()) {
-                            log.error("Error :" + entry);
-                        }
-                    }
-                }
-        );
+        final BigQuery bigQuery;
+        final long start = System.nanoTime();
+        try {
+            bigQuery = bigQueryServiceCache.getService(googleClientSecret);
+            pipelineMetrics.recordStage(PipelineMetrics.CREDENTIALS, projectId, null, start);
+        } catch (IOException e) {
+            projectCircuitBreaker.recordFailure(projectId);
+            throw e;
+        }
+
+        if (loadJobSink.accepts(projectId)) {
+            // Loaded later into the table itself by a load job
+            try {
+                ensureProvisioned(bigQuery, datasetId, tableId);
+            } catch (RuntimeException e) {
+                recordOutcome(projectId, e);
+                throw e;
+            }
+            return loadJobSink.add(googleClientSecret, tableId, rows);
+        }
+
+        // While BigQuery is unavailable for the project its rows go straight to the spool
+        if (spool.shouldSpool(projectId) && spool.append(SpoolRecord.of(googleClientSecret, tableId, dateSuffix, rows))) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> inserted;
+        try {
+            ensureProvisioned(bigQuery, datasetId, tableId);
+            inserted = insertBatcher.add(
+                    InsertBatcher.BatchKey.of(tableId, dateSuffix),
+                    rows,
+                    request -> insertAll(bigQuery, datasetId, request)
+            );
+        } catch (RuntimeException e) {
+            inserted = new CompletableFuture<>();
+            inserted.completeExceptionally(e);
+        }
+
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        // Only the failures of the project are spooled, rows stopped along with an invalid row of their batch are retried
+        inserted.whenComplete((ignored, e) -> {
+            recordOutcome(projectId, e);
+            if (e == null) {
+                result.complete(null);
+            } else if (BigQueryErrors.isProjectFailure(e) && BigQueryErrors.isRetryable(e) && spoolRows(googleClientSecret, tableId, dateSuffix, rows)) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Sends the counts of a rollup bucket, their table follows the layout of the project like the other tables.
+     */
+    CompletableFuture<Void> sendRollupRows(GoogleClientSecret googleClientSecret, Instant bucket, List<InsertAllRequest.RowToInsert> rows) throws IOException {
+        return sendRows(googleClientSecret, ROLLUP_TABLE_NAME, MessageMetadata.builder().timestamp(bucket).build(), rows);
+    }
+
+    /**
+     * Inserts rows replayed from the spool, provisioning their table if needed, with the credentials cached for their
+     * project. The request waits for its turn behind the other inserts of the project, and is not sent while the
+     * circuit of the project is open.
+     */
+    public InsertAllResponse insertSpooledRows(String privateKeyId, InsertAllRequest request) {
+        final TableId tableId = request.getTable();
+        final String projectId = tableId.getProject();
+        final BigQuery bigQuery = bigQueryServiceCache.findService(projectId, privateKeyId);
+        if (bigQuery == null) {
+            // Only the messages of the project carry its credentials, the rows wait for the next one
+            throw new BigQueryClientException("No credentials cached for project " + projectId, true);
+        }
+        if (!projectCircuitBreaker.allowRequest(projectId)) {
+            throw new BigQueryClientException("Circuit open for project " + projectId, true);
+        }
+        final DatasetId datasetId = DatasetId.of(projectId, tableId.getDataset());
+        try {
+            ensureProvisioned(bigQuery, datasetId, tableId);
+            final InsertAllResponse response = insertBatcher.submit(request, spooled -> insertAll(bigQuery, datasetId, spooled)).join();
+            recordOutcome(projectId, null);
+            return response;
+        } catch (CompletionException e) {
+            recordOutcome(projectId, e.getCause());
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        } catch (RuntimeException e) {
+            recordOutcome(projectId, e);
+            throw e;
+        }
+    }
+
+    InsertAllResponse insertAll(BigQuery bigQuery, DatasetId datasetId, InsertAllRequest request) {
+        final long start = System.nanoTime();
+        final InsertAllResponse response;
+        try {
+            response = insertAllProvisioning(bigQuery, datasetId, request);
+        } catch (RuntimeException e) {
+            pipelineMetrics.recordInsertFailure(request);
+            throw e;
+        } finally {
+            pipelineMetrics.recordStage(PipelineMetrics.INSERT, request.getTable().getProject(), request.getTable().getTable(), start);
+        }
+        pipelineMetrics.recordInsert(request, response);
+        return response;
+    }
+
+    private InsertAllResponse insertAllProvisioning(BigQuery bigQuery, DatasetId datasetId, InsertAllRequest request) {
+        try {
+            return bigQuery.insertAll(request);
+        } catch (BigQueryException e) {
+            if (e.getCode() != NOT_FOUND) {
+                throw e;
+            }
+            // The table or its dataset has been deleted since it was provisioned
+            log.info("Table " + request.getTable() + " not found, provisioning it again");
+            bigQueryTableRegistry.invalidate(request.getTable());
+            provisionBigQueryTable(bigQuery, datasetId, request.getTable());
+            return bigQuery.insertAll(request);
+        }
+    }
+
+    private void ensureProvisioned(BigQuery bigQuery, DatasetId datasetId, TableId tableId) {
+        final long start = System.nanoTime();
+        if (!bigQueryTableRegistry.isProvisioned(tableId)) {
+            provisionBigQueryTable(bigQuery, datasetId, tableId);
+        }
+        pipelineMetrics.recordStage(PipelineMetrics.METADATA, tableId.getProject(), tableId.getTable(), start);
+    }
+
+    /**
+     * Keeps the rows away from a project whose circuit is open: they join its spooled rows while BigQuery is known to
+     * be unavailable for it, and fail without being retried otherwise so that their message is parked.
+     */
+    private CompletableFuture<Void> shortCircuit(GoogleClientSecret googleClientSecret, TableId tableId, String dateSuffix, List<InsertAllRequest.RowToInsert> rows) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        if (spool.shouldSpool(tableId.getProject()) && spool.append(SpoolRecord.of(googleClientSecret, tableId, dateSuffix, rows))) {
+            result.complete(null);
+        } else {
+            result.completeExceptionally(new BigQueryClientException("Circuit open for project " + tableId.getProject()));
+        }
+        return result;
     }
 
-    BigQuery buildBigQueryCredentialsAndProjectId(GoogleClientSecret googleClientSecret) throws IOException {
-        return bigQuery.getOptions().toBuilder()
-                .setCredentials(ServiceAccountCredentials.fromStream(new ByteArrayInputStream(mapper.writeValueAsBytes(googleClientSecret))))
-                .setProjectId(googleClientSecret.getProjectId())
-                .build().getService();
+    private void recordOutcome(String projectId, Throwable e) {
+        if (e != null && BigQueryErrors.isProjectFailure(e)) {
+            projectCircuitBreaker.recordFailure(projectId);
+        } else {
+            // Rows rejected by BigQuery still prove that the project works
+            projectCircuitBreaker.recordSuccess(projectId);
+        }
+    }
+
+    private boolean spoolRows(GoogleClientSecret googleClientSecret, TableId tableId, String dateSuffix, List<InsertAllRequest.RowToInsert> rows) {
+        spool.markUnhealthy(tableId.getProject());
+        return spool.append(SpoolRecord.of(googleClientSecret, tableId, dateSuffix, rows));
     }
 
-    private void createBigQueryDataset(DatasetId datasetId) {
+    private void provisionBigQueryTable(BigQuery bigQuery, DatasetId datasetId, TableId tableId) {
+        if (bigQuery.getDataset(datasetId) == null) {
+            createBigQueryDataset(bigQuery, datasetId);
+        }
+        if (bigQuery.getTable(tableId) == null) {
+            createBigQueryTable(bigQuery, tableId);
+        }
+        bigQueryTableRegistry.markProvisioned(tableId);
+    }
+
+    private void createBigQueryDataset(BigQuery bigQuery, DatasetId datasetId) {
         final DatasetInfo datasetInfo = DatasetInfo.of(datasetId);
         bigQuery.create(datasetInfo);
     }
 
-    private void createBigQueryTable(TableId tableId) throws InterruptedException {
+    private void createBigQueryTable(BigQuery bigQuery, TableId tableId) {
+        final Schema schema = buildSchema(tableId.getTable());
+        final StandardTableDefinition.Builder tableDefinitionBuilder = StandardTableDefinition.newBuilder().setSchema(schema);
+        if (tableId.getTable().endsWith(PARTITIONED_TABLE_SUFFIX)) {
+            // Partitioned on ingestion time, queries filtering on _PARTITIONTIME only scan the days they need
+            tableDefinitionBuilder.setTimePartitioning(TimePartitioning.of(TimePartitioning.Type.DAY));
+        }
+        final TableDefinition tableDefinition = tableDefinitionBuilder.build();
+        final TableInfo tableInfo = TableInfo.newBuilder(tableId, tableDefinition).build();
+        bigQuery.create(tableInfo);
+
+        int i = 0;
+        while (bigQuery.getTable(tableId) == null && i < 15) {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            i++;
+        }
+    }
+
+    private Schema buildSchema(String tableName) {
+        final Field reference = Field.of("reference", Field.Type.string());
+        final Field version = Field.of("version", Field.Type.string());
+        if (tableName.startsWith(ROLLUP_TABLE_NAME)) {
+            return Schema.of(Field.of("timestamp", Field.Type.timestamp()), reference, version, Field.of("count", Field.Type.integer()));
+        }
+
         final List<Field> fields = new ArrayList<>();
         fields.add(Field.of("timestamp", Field.Type.timestamp()));
         fields.add(Field.of("userId", Field.Type.string()));
         fields.add(Field.of("unitId", Field.Type.string()));
+
+        if (tableName.startsWith(CHANGE_TABLE_NAME)) {
+            fields.add(Field.of("change", Field.Type.string()));
+            fields.add(reference);
+            fields.add(Field.of("oldVersion", Field.Type.string()));
+            fields.add(version);
+            fields.add(Field.of("customClientData", Field.Type.string()));
+            return Schema.of(fields);
+        }
+
         fields.add(Field.of("ipAddress", Field.Type.string()));
         fields.add(Field.of("userAgent", Field.Type.string()));
         fields.add(Field.of("customClientData", Field.Type.string()));
+        if (tableName.startsWith(NESTED_TABLE_NAME)) {
+            fields.add(repeatedRecord("packages", reference, version));
+            final Field[] resolvedVersion = {
+                    reference,
+                    version,
+                    Field.of("url", Field.Type.string()),
+                    Field.of("md5", Field.Type.string()),
+                    Field.of("size", Field.Type.integer()),
+                    Field.of("filename", Field.Type.string()),
+                    Field.of("customUpdateData", Field.Type.string())
+            };
+            fields.add(repeatedRecord("changed", resolvedVersion));
+            fields.add(repeatedRecord("available", resolvedVersion));
+            fields.add(repeatedRecord("unchanged", resolvedVersion));
+            fields.add(repeatedRecord("unavailable", resolvedVersion));
+        } else {
+            fields.add(Field.of("packages", Field.Type.record(reference, version)));
+        }
+        return Schema.of(fields);
+    }
 
-        final Field reference = Field.of("reference", Field.Type.string());
-        final Field version = Field.of("version", Field.Type.string());
-        fields.add(Field.of("packages", Field.Type.record(reference, version)));
+    private Field repeatedRecord(String name, Field... fields) {
+        return Field.newBuilder(name, Field.Type.record(fields)).setMode(Field.Mode.REPEATED).build();
+    }
 
+    static InsertAllRequest.RowToInsert buildRowToInsert(DeviceRequest deviceRequest, Package aPackage, MessageMetadata messageMetadata) {
+        return PackageRows.of(
+                messageMetadata,
+                deviceRequest.getUserId(),
+                deviceRequest.getUnitId(),
+                deviceRequest.getIpAddress(),
+                deviceRequest.getUserAgent(),
+                deviceRequest.getCustomClientData().toString(),
+                aPackage.getReference(),
+                aPackage.getVersion().orElse(null)
+        );
+    }
 
-        final Schema schema = Schema.of(fields);
-        final TableDefinition tableDefinition = StandardTableDefinition.newBuilder().setSchema(schema).build();
-        final TableInfo tableInfo = TableInfo.newBuilder(tableId, tableDefinition).build();
-        bigQuery.create(tableInfo);
+    private InsertAllRequest.RowToInsert buildChangeRowToInsert(DeviceRequest deviceRequest, DeviceRequestDiff.PackageChange change, MessageMetadata messageMetadata) {
+        final Map<String, Object> rowContent = new HashMap<>();
+        rowContent.put("timestamp", RowTimestamps.format(messageMetadata.getTimestamp()));
+        // Rows do not take null values, added packages have no old version and removed ones no version
+        putIfPresent(rowContent, "userId", deviceRequest.getUserId());
+        putIfPresent(rowContent, "unitId", deviceRequest.getUnitId());
+        rowContent.put("change", change.getType().name());
+        putIfPresent(rowContent, "reference", change.getReference());
+        putIfPresent(rowContent, "oldVersion", change.getOldVersion());
+        putIfPresent(rowContent, "version", change.getVersion());
 
-        int i = 0;
-        while (bigQuery.getTable(tableId) == null && i < 15) {
-            Thread.sleep(5);
-            i++;
-        }
+        // A package changes at most once per message
+        final String insertId = InsertIds.of(
+                deviceRequest.getUnitId(),
+                InsertIds.timestampOf(messageMetadata),
+                change.getReference(),
+                change.getType().name(),
+                messageMetadata.getMessageId()
+        );
+        return InsertAllRequest.RowToInsert.of(insertId, rowContent);
+    }
+
+    private InsertAllRequest.RowToInsert buildCustomClientDataChangeRowToInsert(DeviceRequest deviceRequest, DeviceRequestDiff diff, MessageMetadata messageMetadata) {
+        final Map<String, Object> rowContent = new HashMap<>();
+        rowContent.put("timestamp", RowTimestamps.format(messageMetadata.getTimestamp()));
+        putIfPresent(rowContent, "userId", deviceRequest.getUserId());
+        putIfPresent(rowContent, "unitId", deviceRequest.getUnitId());
+        rowContent.put("change", CUSTOM_CLIENT_DATA_CHANGE);
+        rowContent.put("customClientData", diff.getCustomClientDataDelta().toString());
+
+        final String insertId = InsertIds.of(
+                deviceRequest.getUnitId(),
+                InsertIds.timestampOf(messageMetadata),
+                null,
+                CUSTOM_CLIENT_DATA_CHANGE,
+                messageMetadata.getMessageId()
+        );
+        return InsertAllRequest.RowToInsert.of(insertId, rowContent);
     }
 
-    private InsertAllRequest.RowToInsert buildRowToInsert(DeviceRequest deviceRequest, Package aPackage) {
+    static InsertAllRequest.RowToInsert buildNestedRowToInsert(DeviceRequest deviceRequest, ResolvedVersions resolvedVersions, MessageMetadata messageMetadata) throws JsonProcessingException {
         final Map<String, Object> rowContent = new HashMap<>();
-        rowContent.put("timestamp", Instant.now().toString());
-        rowContent.put("userId", deviceRequest.getUserId());
-        rowContent.put("unitId", deviceRequest.getUnitId());
+        rowContent.put("timestamp", RowTimestamps.format(messageMetadata.getTimestamp()));
+        // Rows do not take null values
+        putIfPresent(rowContent, "userId", deviceRequest.getUserId());
+        putIfPresent(rowContent, "unitId", deviceRequest.getUnitId());
         rowContent.put("ipAddress", deviceRequest.getIpAddress() == null ? " " : deviceRequest.getIpAddress());
         rowContent.put("userAgent", deviceRequest.getUserAgent() == null ? " " : deviceRequest.getUserAgent());
         rowContent.put("customClientData", deviceRequest.getCustomClientData().toString());
 
-        final Map<String, Object> recordsContent = new HashMap<>();
-        recordsContent.put("reference", aPackage.getReference());
-        recordsContent.put("version", aPackage.getVersion().get());
-        rowContent.put("packages", recordsContent);
+        final List<Map<String, Object>> packagesContent = new ArrayList<>(deviceRequest.getPackages().size());
+        for (Package aPackage : deviceRequest.getPackages()) {
+            final Map<String, Object> packageContent = new HashMap<>();
+            packageContent.put("reference", aPackage.getReference());
+            aPackage.getVersion().ifPresent(version -> packageContent.put("version", version));
+            packagesContent.add(packageContent);
+        }
+        rowContent.put("packages", packagesContent);
+
+        if (resolvedVersions != null) {
+            rowContent.put("changed", buildVersionsContent(resolvedVersions.getChanged()));
+            rowContent.put("available", buildVersionsContent(resolvedVersions.getAvailable()));
+            rowContent.put("unchanged", buildVersionsContent(resolvedVersions.getUnchanged()));
+            rowContent.put("unavailable", buildVersionsContent(resolvedVersions.getUnavailable()));
+        }
+
+        // The message is the identity of the row, as it holds every package of the request
+        final String insertId = InsertIds.of(
+                deviceRequest.getUnitId(),
+                InsertIds.timestampOf(messageMetadata),
+                null,
+                null,
+                messageMetadata.getMessageId()
+        );
+        return InsertAllRequest.RowToInsert.of(insertId, rowContent);
+    }
 
-        return InsertAllRequest.RowToInsert.of(rowContent);
+    private static List<Map<String, Object>> buildVersionsContent(List<Version> versions) throws JsonProcessingException {
+        if (versions == null) {
+            return Collections.emptyList();
+        }
+        final List<Map<String, Object>> versionsContent = new ArrayList<>(versions.size());
+        for (Version version : versions) {
+            final Map<String, Object> versionContent = new HashMap<>();
+            putIfPresent(versionContent, "reference", version.getReference());
+            putIfPresent(versionContent, "version", version.getVersion());
+            putIfPresent(versionContent, "url", version.getUrl());
+            putIfPresent(versionContent, "md5", version.getMd5());
+            putIfPresent(versionContent, "size", version.getSize());
+            putIfPresent(versionContent, "filename", version.getFilename());
+            if (version.getCustomUpdateData() != null && !version.getCustomUpdateData().isEmpty()) {
+                versionContent.put("customUpdateData", CUSTOM_DATA_MAPPER.writeValueAsString(version.getCustomUpdateData()));
+            }
+            versionsContent.add(versionContent);
+        }
+        return versionsContent;
+    }
+
+    private static void putIfPresent(Map<String, Object> content, String name, Object value) {
+        if (value != null) {
+            content.put(name, value);
+        }
     }
 
 }
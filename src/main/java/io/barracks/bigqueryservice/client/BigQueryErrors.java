@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.common.collect.ImmutableSet;
+import io.barracks.bigqueryservice.client.exception.BigQueryClientException;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Tells the transient errors of BigQuery, worth sending the rows again later, from the permanent ones such as invalid
+ * credentials or rows not matching the table schema.
+ */
+public final class BigQueryErrors {
+
+    private static final int BAD_REQUEST = 400;
+    private static final int UNAUTHORIZED = 401;
+    private static final int FORBIDDEN = 403;
+    private static final int NOT_FOUND = 404;
+
+    // Returned with a 403 when the project is throttled, these clear up by themselves unlike access denials
+    private static final ImmutableSet<String> TRANSIENT_REASONS = ImmutableSet.of("rateLimitExceeded", "quotaExceeded", "backendError", "internalError");
+
+    private BigQueryErrors() {
+    }
+
+    public static boolean isRetryable(Throwable e) {
+        if (e instanceof CompletionException || e instanceof ExecutionException) {
+            return e.getCause() == null || isRetryable(e.getCause());
+        }
+        if (e instanceof BigQueryClientException) {
+            return ((BigQueryClientException) e).isRetryable();
+        }
+        if (e instanceof BigQueryException) {
+            final BigQueryException exception = (BigQueryException) e;
+            if (isTransient(exception)) {
+                return true;
+            }
+            final int code = exception.getCode();
+            return code != BAD_REQUEST && code != UNAUTHORIZED && code != FORBIDDEN && code != NOT_FOUND;
+        }
+        // Unreadable credentials and events that cannot be mapped to rows will fail again, BigQuery wraps its own I/O errors
+        return !(e instanceof IOException || e instanceof IllegalArgumentException || e instanceof NullPointerException);
+    }
+
+    /**
+     * @return true if the error comes from the BigQuery project itself, such as revoked credentials, exhausted quotas
+     * or an unreachable service, rather than from the rows sent to it.
+     */
+    public static boolean isProjectFailure(Throwable e) {
+        if (e instanceof CompletionException || e instanceof ExecutionException) {
+            return e.getCause() != null && isProjectFailure(e.getCause());
+        }
+        if (e instanceof BigQueryException) {
+            final BigQueryException exception = (BigQueryException) e;
+            if (isTransient(exception)) {
+                return true;
+            }
+            final int code = exception.getCode();
+            return code != BAD_REQUEST && code != NOT_FOUND;
+        }
+        // Rows rejected by BigQuery prove that the project is reachable, unreadable credentials do not
+        return e instanceof IOException;
+    }
+
+    private static boolean isTransient(BigQueryException e) {
+        return e.isRetryable() || (e.getReason() != null && TRANSIENT_REASONS.contains(e.getReason()));
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.google.auth.Credentials;
+import com.google.cloud.bigquery.BigQuery;
+import io.barracks.bigqueryservice.model.GoogleClientSecret;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one {@link BigQuery} service per tenant credentials so that the service account key is parsed, and its
+ * OAuth token and HTTP transport warmed up, once per tenant instead of once per message.
+ * <p>
+ * Entries are keyed by project id and private key id, evicted in LRU order once the cache is full and dropped after
+ * staying idle for the configured timeout. A new private key id for a project retires the entries built from the
+ * previous keys of that project once they have been idle for the rotation grace period, so that publishers sending
+ * the old and new keys during a rotation do not rebuild the services over and over. The access tokens of the cached
+ * services are renewed in the background by the {@link TokenRefresher}.
+ */
+@Slf4j
+@Component
+public class BigQueryServiceCache {
+
+    private final BigQuery defaultBigQuery;
+    private final CounterService counter;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+    private final long rotationGraceNanos;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Autowired
+    public BigQueryServiceCache(
+            BigQuery defaultBigQuery,
+            CounterService counter,
+            @Value("${io.barracks.bigqueryservice.clientcache.maxsize}") int maxSize,
+            @Value("${io.barracks.bigqueryservice.clientcache.idletimeout}") long idleTimeoutMillis,
+            @Value("${io.barracks.bigqueryservice.clientcache.rotationgrace}") long rotationGraceMillis
+    ) {
+        this.defaultBigQuery = defaultBigQuery;
+        this.counter = counter;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.rotationGraceNanos = TimeUnit.MILLISECONDS.toNanos(rotationGraceMillis);
+    }
+
+    public BigQuery getService(GoogleClientSecret googleClientSecret) throws IOException {
+        final Key key = Key.of(googleClientSecret);
+        synchronized (entries) {
+            evictIdleEntries(now());
+            final Entry entry = entries.get(key);
+            if (entry != null && entry.getGoogleClientSecret().equals(googleClientSecret)) {
+                entry.touch(now());
+                incrementCacheMetric("hit");
+                return entry.getBigQuery();
+            }
+        }
+
+        incrementCacheMetric("miss");
+        final BigQuery bigQuery = buildBigQueryCredentialsAndProjectId(googleClientSecret);
+        synchronized (entries) {
+            final long now = now();
+            retireRotatedKeys(key, now);
+            entries.put(key, new Entry(googleClientSecret, bigQuery, now));
+            evictEldestEntries();
+        }
+        return bigQuery;
+    }
+
+    /**
+     * @return the service cached for this key of the project, or for the key of the project used last if this one has
+     * been retired, null if no credentials of the project are cached.
+     */
+    public BigQuery findService(String projectId, String privateKeyId) {
+        synchronized (entries) {
+            evictIdleEntries(now());
+            final Entry entry = entries.get(Key.of(projectId, privateKeyId));
+            if (entry != null) {
+                entry.touch(now());
+                return entry.getBigQuery();
+            }
+            BigQuery lastUsed = null;
+            // Access order: the last entry of the project is the one used last
+            for (Map.Entry<Key, Entry> existing : entries.entrySet()) {
+                if (existing.getKey().getProjectId().equals(projectId)) {
+                    lastUsed = existing.getValue().getBigQuery();
+                }
+            }
+            return lastUsed;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the credentials of the services used within the idle timeout.
+     */
+    List<RefreshingCredentials> getActiveCredentials() {
+        final List<RefreshingCredentials> credentials = new ArrayList<>();
+        synchronized (entries) {
+            evictIdleEntries(now());
+            for (Entry entry : entries.values()) {
+                final Credentials entryCredentials = entry.getBigQuery().getOptions().getCredentials();
+                if (entryCredentials instanceof RefreshingCredentials) {
+                    credentials.add((RefreshingCredentials) entryCredentials);
+                }
+            }
+        }
+        return credentials;
+    }
+
+    BigQuery buildBigQueryCredentialsAndProjectId(GoogleClientSecret googleClientSecret) throws IOException {
+        return defaultBigQuery.getOptions().toBuilder()
+                .setCredentials(RefreshingCredentials.of(googleClientSecret))
+                .setProjectId(googleClientSecret.getProjectId())
+                .build().getService();
+    }
+
+    long now() {
+        return System.nanoTime();
+    }
+
+    private void evictIdleEntries(long now) {
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (now - entry.getLastAccess() < idleTimeoutNanos) {
+                // Access order: every following entry has been used more recently
+                return;
+            }
+            iterator.remove();
+            incrementEvictionMetric("idle");
+        }
+    }
+
+    private void retireRotatedKeys(Key key, long now) {
+        final Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Key, Entry> existing = iterator.next();
+            if (existing.getKey().getProjectId().equals(key.getProjectId()) && !existing.getKey().equals(key)
+                    && now - existing.getValue().getLastAccess() >= rotationGraceNanos) {
+                log.info("Private key of project " + key.getProjectId() + " rotated to " + key.getPrivateKeyId());
+                iterator.remove();
+                incrementEvictionMetric("rotated");
+            }
+        }
+    }
+
+    private void evictEldestEntries() {
+        final Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            incrementEvictionMetric("size");
+        }
+    }
+
+    private void incrementCacheMetric(String status) {
+        counter.increment("bigquery.client.cache." + status);
+    }
+
+    private void incrementEvictionMetric(String cause) {
+        counter.increment("bigquery.client.cache.eviction." + cause);
+    }
+
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    @RequiredArgsConstructor(staticName = "of")
+    static class Key {
+        private final String projectId;
+        private final String privateKeyId;
+
+        static Key of(GoogleClientSecret googleClientSecret) {
+            return of(googleClientSecret.getProjectId(), googleClientSecret.getPrivateKeyId());
+        }
+    }
+
+    @Getter
+    private static class Entry {
+        private final GoogleClientSecret googleClientSecret;
+        private final BigQuery bigQuery;
+        private long lastAccess;
+
+        Entry(GoogleClientSecret googleClientSecret, BigQuery bigQuery, long lastAccess) {
+            this.googleClientSecret = googleClientSecret;
+            this.bigQuery = bigQuery;
+            this.lastAccess = lastAccess;
+        }
+
+        void touch(long now) {
+            this.lastAccess = now;
+        }
+    }
+}
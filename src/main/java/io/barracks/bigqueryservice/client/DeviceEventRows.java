@@ -0,0 +1,68 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.google.cloud.bigquery.InsertAllRequest;
+import io.barracks.bigqueryservice.model.DeviceEventHook;
+import io.barracks.bigqueryservice.model.GoogleClientSecret;
+import io.barracks.bigqueryservice.model.MessageMetadata;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A device event read straight into the rows to insert, with the credentials of its hook and the metadata of its
+ * message.
+ * <p>
+ * The rows always have the one row per package layout. The events of the projects using another layout are bound to
+ * the models instead, and carried without rows.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class DeviceEventRows {
+
+    private final GoogleClientSecret googleClientSecret;
+
+    private final MessageMetadata messageMetadata;
+
+    private final List<InsertAllRequest.RowToInsert> rows;
+
+    private final DeviceEventHook deviceEventHook;
+
+    public static DeviceEventRows of(GoogleClientSecret googleClientSecret, MessageMetadata messageMetadata, List<InsertAllRequest.RowToInsert> rows) {
+        return new DeviceEventRows(googleClientSecret, messageMetadata, rows, null);
+    }
+
+    public static DeviceEventRows of(DeviceEventHook deviceEventHook, MessageMetadata messageMetadata) {
+        return new DeviceEventRows(deviceEventHook.getHook().getGoogleClientSecret(), messageMetadata, Collections.emptyList(), deviceEventHook);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.barracks.bigqueryservice.model.DeviceRequest;
+import io.barracks.bigqueryservice.model.Package;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * What changed between two requests of the same device: the packages added, removed or moved to another version, and
+ * the top level custom client data fields that were set or removed. A removed field is set to {@code null} in
+ * {@link #getCustomClientDataDelta()}.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+final class DeviceRequestDiff {
+
+    enum ChangeType {
+        ADDED, REMOVED, UPDATED
+    }
+
+    private final List<PackageChange> packageChanges;
+
+    private final ObjectNode customClientDataDelta;
+
+    private DeviceRequestDiff(List<PackageChange> packageChanges, ObjectNode customClientDataDelta) {
+        this.packageChanges = packageChanges;
+        this.customClientDataDelta = customClientDataDelta;
+    }
+
+    /**
+     * @param oldRequest the previous request of the device, if it is known. Everything in the new request is a change
+     *                   otherwise.
+     */
+    static DeviceRequestDiff of(DeviceRequest oldRequest, DeviceRequest newRequest) throws IOException {
+        final Map<String, String> oldVersions = new HashMap<>();
+        if (oldRequest != null && oldRequest.getPackages() != null) {
+            oldRequest.getPackages().forEach(aPackage -> oldVersions.put(aPackage.getReference(), aPackage.getVersion().orElse(null)));
+        }
+
+        final List<PackageChange> packageChanges = new ArrayList<>();
+        final Set<String> newReferences = new HashSet<>();
+        if (newRequest.getPackages() != null) {
+            for (Package aPackage : newRequest.getPackages()) {
+                final String reference = aPackage.getReference();
+                final String version = aPackage.getVersion().orElse(null);
+                newReferences.add(reference);
+                if (!oldVersions.containsKey(reference)) {
+                    packageChanges.add(PackageChange.of(ChangeType.ADDED, reference, null, version));
+                } else if (!Objects.equals(oldVersions.get(reference), version)) {
+                    packageChanges.add(PackageChange.of(ChangeType.UPDATED, reference, oldVersions.get(reference), version));
+                }
+            }
+        }
+        oldVersions.forEach((reference, version) -> {
+            if (!newReferences.contains(reference)) {
+                packageChanges.add(PackageChange.of(ChangeType.REMOVED, reference, version, null));
+            }
+        });
+
+        final ObjectNode oldData = oldRequest == null ? JsonNodeFactory.instance.objectNode() : oldRequest.getCustomClientData().toObjectNode();
+        final ObjectNode newData = newRequest.getCustomClientData().toObjectNode();
+        final ObjectNode delta = JsonNodeFactory.instance.objectNode();
+        final Iterator<Map.Entry<String, JsonNode>> newFields = newData.fields();
+        while (newFields.hasNext()) {
+            final Map.Entry<String, JsonNode> field = newFields.next();
+            if (!field.getValue().equals(oldData.get(field.getKey()))) {
+                delta.set(field.getKey(), field.getValue());
+            }
+        }
+        final Iterator<String> oldFieldNames = oldData.fieldNames();
+        while (oldFieldNames.hasNext()) {
+            final String name = oldFieldNames.next();
+            if (!newData.has(name)) {
+                delta.putNull(name);
+            }
+        }
+
+        return new DeviceRequestDiff(packageChanges, delta);
+    }
+
+    boolean isEmpty() {
+        return packageChanges.isEmpty() && customClientDataDelta.size() == 0;
+    }
+
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    @RequiredArgsConstructor(staticName = "of")
+    static class PackageChange {
+        private final ChangeType type;
+        private final String reference;
+        private final String oldVersion;
+        private final String version;
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.cloud.bigquery.InsertAllResponse;
+import com.google.cloud.bigquery.TableId;
+import io.barracks.bigqueryservice.client.exception.BigQueryClientException;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups the rows sent to the same table and template suffix, whatever message they come from, so that they reach
+ * BigQuery in a single insertAll request.
+ * <p>
+ * A batch is flushed as soon as it holds the maximum number of rows, when the next row would make its estimated
+ * payload exceed the maximum size, or once it has been waiting for the linger delay. Flushed batches are sent through
+ * the {@link InsertExecutor}, which queues them behind the other inserts of their tenant.
+ */
+@Slf4j
+@Component
+public class InsertBatcher {
+
+    // Limits of the streaming insert API
+    static final int MAX_ROWS_PER_REQUEST = 10000;
+    static final int MAX_BYTES_PER_REQUEST = 10 * 1024 * 1024;
+
+    // Reason of the rows that can never be inserted, the other rows of their request are rejected as "stopped"
+    private static final String INVALID_ROW_REASON = "invalid";
+
+    private final int maxRows;
+    private final int maxBytes;
+    private final long lingerMillis;
+    private final ScheduledExecutorService lingerExecutor;
+    private final InsertExecutor insertExecutor;
+
+    private final Map<BatchKey, Batch> batches = new HashMap<>();
+
+    @Autowired
+    public InsertBatcher(
+            @Value("${io.barracks.bigqueryservice.batch.maxrows}") int maxRows,
+            @Value("${io.barracks.bigqueryservice.batch.maxbytes}") int maxBytes,
+            @Value("${io.barracks.bigqueryservice.batch.lingermillis}") long lingerMillis,
+            InsertExecutor insertExecutor
+    ) {
+        this(maxRows, maxBytes, lingerMillis, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "bigquery-batch-linger");
+            thread.setDaemon(true);
+            return thread;
+        }), insertExecutor);
+    }
+
+    InsertBatcher(int maxRows, int maxBytes, long lingerMillis, ScheduledExecutorService lingerExecutor, InsertExecutor insertExecutor) {
+        if (maxRows > MAX_ROWS_PER_REQUEST || maxBytes > MAX_BYTES_PER_REQUEST) {
+            log.warn("Batch limits lowered to the streaming insert limits of " + MAX_ROWS_PER_REQUEST + " rows and " + MAX_BYTES_PER_REQUEST + " bytes");
+        }
+        this.maxRows = Math.max(1, Math.min(maxRows, MAX_ROWS_PER_REQUEST));
+        this.maxBytes = Math.max(1, Math.min(maxBytes, MAX_BYTES_PER_REQUEST));
+        this.lingerMillis = lingerMillis;
+        this.lingerExecutor = lingerExecutor;
+        this.insertExecutor = insertExecutor;
+    }
+
+    /**
+     * Queues rows for insertion in the given table.
+     *
+     * @return a future completed once every row has been accepted by BigQuery, or completed exceptionally if the
+     * insert request failed or rejected any of them.
+     */
+    public CompletableFuture<Void> add(BatchKey key, List<InsertAllRequest.RowToInsert> rows, BatchInserter inserter) {
+        final List<CompletableFuture<Void>> parts = new ArrayList<>();
+        final List<Batch> fullBatches = new ArrayList<>();
+        synchronized (batches) {
+            PendingRows pending = null;
+            for (InsertAllRequest.RowToInsert row : rows) {
+                final int rowSize = estimateSize(row.getContent());
+                Batch batch = batches.get(key);
+                if (batch != null && !batch.accepts(rowSize)) {
+                    fullBatches.add(detach(key));
+                    batch = null;
+                }
+                if (batch == null) {
+                    batch = new Batch(key, inserter);
+                    batches.put(key, batch);
+                    scheduleLinger(batch);
+                }
+                if (pending == null || pending.getBatch() != batch) {
+                    pending = batch.newPendingRows();
+                    parts.add(pending.getFuture());
+                }
+                batch.add(pending, row, rowSize);
+                if (batch.isFull()) {
+                    fullBatches.add(detach(key));
+                }
+            }
+        }
+        fullBatches.forEach(this::dispatch);
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()]));
+    }
+
+    /**
+     * Sends a request already built by the caller through the {@link InsertExecutor}, without batching its rows.
+     *
+     * @return a future completed with the response of BigQuery, or completed exceptionally if the request failed.
+     */
+    public CompletableFuture<InsertAllResponse> submit(InsertAllRequest request, BatchInserter inserter) {
+        final CompletableFuture<InsertAllResponse> response = new CompletableFuture<>();
+        insertExecutor.execute(request.getTable().getProject(), request.getRows().size(), () -> {
+            try {
+                response.complete(inserter.insert(request));
+            } catch (RuntimeException e) {
+                response.completeExceptionally(e);
+            }
+        });
+        return response;
+    }
+
+    /**
+     * @return the number of rows waiting for their batch to be dispatched.
+     */
+    public int getBufferedRows() {
+        synchronized (batches) {
+            int rows = 0;
+            for (Batch batch : batches.values()) {
+                rows += batch.getRows().size();
+            }
+            return rows;
+        }
+    }
+
+    @PreDestroy
+    public void flushAll() {
+        final List<Batch> pendingBatches;
+        synchronized (batches) {
+            pendingBatches = new ArrayList<>(batches.values());
+            batches.clear();
+        }
+        pendingBatches.forEach(this::dispatch);
+        lingerExecutor.shutdown();
+    }
+
+    void flush(Batch batch) {
+        final InsertAllRequest request = InsertAllRequest.newBuilder(batch.getKey().getTableId())
+                .setRows(batch.getRows())
+                .setTemplateSuffix(batch.getKey().getTemplateSuffix())
+                .build();
+        final InsertAllResponse response;
+        try {
+            response = batch.getInserter().insert(request);
+        } catch (RuntimeException e) {
+            log.warn("Unable to insert " + batch.getRows().size() + " rows in " + batch.getKey(), e);
+            fail(batch, e);
+            return;
+        }
+        if (response.hasErrors()) {
+            for (Map.Entry<Long, List<BigQueryError>> entry : response.getInsertErrors().entrySet()) {
+                log.error("Error :" + entry);
+            }
+        }
+        batch.getPendingRows().forEach(pending -> pending.complete(response));
+    }
+
+    private Batch detach(BatchKey key) {
+        return batches.remove(key);
+    }
+
+    private void dispatch(Batch batch) {
+        insertExecutor.execute(tenantOf(batch), batch.getRows().size(), () -> flush(batch));
+    }
+
+    private void fail(Batch batch, Exception e) {
+        batch.getPendingRows().forEach(pending -> pending.getFuture().completeExceptionally(e));
+    }
+
+    private void scheduleLinger(Batch batch) {
+        lingerExecutor.schedule(() -> {
+            synchronized (batches) {
+                if (!batches.remove(batch.getKey(), batch)) {
+                    return;
+                }
+            }
+            dispatch(batch);
+        }, lingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static String tenantOf(Batch batch) {
+        return batch.getKey().getTableId().getProject();
+    }
+
+    /**
+     * Rough size of the JSON representation of a row, used to keep requests under the payload limit.
+     */
+    static int estimateSize(Object value) {
+        if (value instanceof Map) {
+            int size = 2;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += estimateSize(entry.getKey()) + estimateSize(entry.getValue()) + 2;
+            }
+            return size;
+        } else if (value instanceof Collection) {
+            int size = 2;
+            for (Object element : (Collection<?>) value) {
+                size += estimateSize(element) + 1;
+            }
+            return size;
+        } else if (value == null) {
+            return 4;
+        }
+        return value.toString().length() + 2;
+    }
+
+    @FunctionalInterface
+    public interface BatchInserter {
+        InsertAllResponse insert(InsertAllRequest request);
+    }
+
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    @RequiredArgsConstructor(staticName = "of")
+    public static class BatchKey {
+        private final TableId tableId;
+        private final String templateSuffix;
+    }
+
+    @Getter
+    class Batch {
+        private final BatchKey key;
+        private final BatchInserter inserter;
+        private final List<InsertAllRequest.RowToInsert> rows = new ArrayList<>();
+        private final List<PendingRows> pendingRows = new ArrayList<>();
+        private int bytes;
+
+        Batch(BatchKey key, BatchInserter inserter) {
+            this.key = key;
+            this.inserter = inserter;
+        }
+
+        PendingRows newPendingRows() {
+            final PendingRows pending = new PendingRows(this, rows.size());
+            pendingRows.add(pending);
+            return pending;
+        }
+
+        void add(PendingRows pending, InsertAllRequest.RowToInsert row, int rowSize) {
+            rows.add(row);
+            pending.increment();
+            bytes += rowSize;
+        }
+
+        boolean accepts(int rowSize) {
+            return rows.isEmpty() || bytes + rowSize <= maxBytes;
+        }
+
+        boolean isFull() {
+            return rows.size() >= maxRows || bytes >= maxBytes;
+        }
+    }
+
+    /**
+     * Rows of a single call to {@link #add}, stored contiguously in a batch.
+     */
+    @Getter
+    static class PendingRows {
+        private final Batch batch;
+        private final int firstIndex;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private int count;
+
+        PendingRows(Batch batch, int firstIndex) {
+            this.batch = batch;
+            this.firstIndex = firstIndex;
+        }
+
+        void increment() {
+            count++;
+        }
+
+        void complete(InsertAllResponse response) {
+            final List<BigQueryError> errors = new ArrayList<>();
+            if (response.hasErrors()) {
+                for (long index = firstIndex; index < firstIndex + count; index++) {
+                    errors.addAll(Optional.ofNullable(response.getErrorsFor(index)).orElse(Collections.emptyList()));
+                }
+            }
+            if (errors.isEmpty()) {
+                future.complete(null);
+            } else {
+                final boolean retryable = errors.stream().noneMatch(error -> INVALID_ROW_REASON.equals(error.getReason()));
+                future.completeExceptionally(new BigQueryClientException("Rows rejected by BigQuery: " + errors, retryable));
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the insert requests on dedicated threads, with a cap on the requests in flight for the whole service and for
+ * each tenant.
+ * <p>
+ * Inserts that cannot start right away wait in a queue per tenant, and the queues are served with deficit round
+ * robin: each time its turn comes, a tenant earns a quantum of rows multiplied by its weight and starts the inserts
+ * this credit covers. A tenant flooding the service with large batches therefore only gets its share of the inserts
+ * in flight, and the inserts of the other tenants wait for at most one round instead of the whole backlog.
+ * <p>
+ * Callers never wait. The inserts queued here only hold rows of unacknowledged deliveries, so the backlog stays in the
+ * broker and the memory they use is bounded by the prefetch of the consumers.
+ */
+@Slf4j
+@Component
+public class InsertExecutor {
+
+    private static final int DEFAULT_WEIGHT = 1;
+
+    private final int maxInFlight;
+    private final int maxInFlightPerTenant;
+    private final int quantum;
+    private final Map<String, Integer> weights;
+    private final Executor executor;
+    private final CounterService counter;
+
+    private final Map<String, TenantQueue> tenants = new HashMap<>();
+    // Tenants with queued inserts and room in flight, in their round robin order
+    private final Deque<TenantQueue> active = new ArrayDeque<>();
+    private int inFlight;
+
+    @Autowired
+    public InsertExecutor(
+            @Value("${io.barracks.bigqueryservice.insert.maxinflight}") int maxInFlight,
+            @Value("${io.barracks.bigqueryservice.insert.maxinflightpertenant}") int maxInFlightPerTenant,
+            @Value("${io.barracks.bigqueryservice.insert.quantumrows}") int quantum,
+            @Value("${io.barracks.bigqueryservice.insert.tenantweights}") String[] weights,
+            CounterService counter
+    ) {
+        // Every request in flight gets its own thread, tasks are only submitted once they can start
+        this(maxInFlight, maxInFlightPerTenant, quantum, parseWeights(weights), Executors.newFixedThreadPool(Math.max(1, maxInFlight), new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "bigquery-insert-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), counter);
+    }
+
+    InsertExecutor(int maxInFlight, int maxInFlightPerTenant, Executor executor, CounterService counter) {
+        this(maxInFlight, maxInFlightPerTenant, 1, Collections.emptyMap(), executor, counter);
+    }
+
+    InsertExecutor(int maxInFlight, int maxInFlightPerTenant, int quantum, Map<String, Integer> weights, Executor executor, CounterService counter) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxInFlightPerTenant = Math.max(1, Math.min(maxInFlight, maxInFlightPerTenant));
+        this.quantum = Math.max(1, quantum);
+        this.weights = weights;
+        this.executor = executor;
+        this.counter = counter;
+    }
+
+    /**
+     * Runs the insert as soon as the caps of the service and of the tenant, and the turn of the tenant, allow it.
+     *
+     * @param cost the number of rows sent by the insert, charged to the tenant.
+     */
+    public void execute(String tenant, int cost, Runnable insert) {
+        final List<Task> started;
+        synchronized (tenants) {
+            final TenantQueue queue = tenants.computeIfAbsent(tenant, TenantQueue::new);
+            if (queue.getInFlight() >= maxInFlightPerTenant) {
+                incrementInsertMetric("throttled.tenant");
+            } else if (inFlight >= maxInFlight) {
+                incrementInsertMetric("throttled.global");
+            }
+            queue.getTasks().add(new Task(queue, Math.max(1, cost), insert));
+            if (queue.getTasks().size() == 1 && queue.getInFlight() < maxInFlightPerTenant) {
+                active.addLast(queue);
+            }
+            started = schedule();
+        }
+        started.forEach(this::submit);
+    }
+
+    /**
+     * @return the number of inserts running.
+     */
+    public int getInFlight() {
+        synchronized (tenants) {
+            return inFlight;
+        }
+    }
+
+    /**
+     * @return the number of inserts waiting for their turn or for a slot.
+     */
+    public int getQueued() {
+        synchronized (tenants) {
+            int queued = 0;
+            for (TenantQueue queue : tenants.values()) {
+                queued += queue.getTasks().size();
+            }
+            return queued;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    /**
+     * Takes the inserts allowed to start, in deficit round robin order. Must be called holding the lock.
+     */
+    private List<Task> schedule() {
+        final List<Task> started = new ArrayList<>();
+        while (inFlight < maxInFlight && !active.isEmpty()) {
+            final TenantQueue queue = active.peekFirst();
+            final Task next = queue.getTasks().peekFirst();
+            if (queue.getDeficit() < next.getCost()) {
+                // Not enough credit for its next insert, the tenant waits for its next turn
+                queue.credit((long) quantum * weightOf(queue.getTenant()));
+                active.addLast(active.pollFirst());
+                continue;
+            }
+            queue.getTasks().pollFirst();
+            queue.start(next.getCost());
+            inFlight++;
+            started.add(next);
+            if (queue.getTasks().isEmpty()) {
+                // Idle tenants do not bank credit
+                queue.resetDeficit();
+                active.pollFirst();
+            } else if (queue.getInFlight() >= maxInFlightPerTenant) {
+                active.pollFirst();
+            }
+        }
+        return started;
+    }
+
+    private void complete(Task task) {
+        final List<Task> started;
+        synchronized (tenants) {
+            final TenantQueue queue = task.getQueue();
+            inFlight--;
+            queue.finish();
+            if (!queue.getTasks().isEmpty() && queue.getInFlight() == maxInFlightPerTenant - 1) {
+                // Back under its cap, the tenant resumes its turn if it still has credit or gets in line again
+                if (queue.getDeficit() >= queue.getTasks().peekFirst().getCost()) {
+                    active.addFirst(queue);
+                } else {
+                    active.addLast(queue);
+                }
+            } else if (queue.getTasks().isEmpty() && queue.getInFlight() == 0) {
+                tenants.remove(queue.getTenant());
+            }
+            started = schedule();
+        }
+        started.forEach(this::submit);
+    }
+
+    private void submit(Task task) {
+        try {
+            executor.execute(() -> run(task));
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the insert is run by the caller instead of being lost
+            log.warn("Insert executor shut down, running the insert on " + Thread.currentThread().getName());
+            run(task);
+        }
+    }
+
+    private void run(Task task) {
+        try {
+            task.getInsert().run();
+        } finally {
+            complete(task);
+        }
+    }
+
+    private int weightOf(String tenant) {
+        return weights.getOrDefault(tenant, DEFAULT_WEIGHT);
+    }
+
+    private void incrementInsertMetric(String status) {
+        counter.increment("bigquery.insert." + status);
+    }
+
+    /**
+     * Reads weights configured as "tenant:weight", tenants without a weight have a weight of one.
+     */
+    static Map<String, Integer> parseWeights(String[] weights) {
+        final Map<String, Integer> parsed = new HashMap<>();
+        for (String weight : weights) {
+            final int separator = weight.lastIndexOf(':');
+            if (separator <= 0) {
+                if (!weight.trim().isEmpty()) {
+                    log.warn("Ignoring tenant weight without a tenant: " + weight);
+                }
+                continue;
+            }
+            try {
+                parsed.put(weight.substring(0, separator).trim(), Math.max(1, Integer.parseInt(weight.substring(separator + 1).trim())));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring invalid tenant weight: " + weight);
+            }
+        }
+        return parsed;
+    }
+
+    @Getter
+    private static class TenantQueue {
+        private final String tenant;
+        private final Deque<Task> tasks = new ArrayDeque<>();
+        private long deficit;
+        private int inFlight;
+
+        TenantQueue(String tenant) {
+            this.tenant = tenant;
+        }
+
+        void credit(long credit) {
+            deficit += credit;
+        }
+
+        void resetDeficit() {
+            deficit = 0;
+        }
+
+        void start(int cost) {
+            deficit -= cost;
+            inFlight++;
+        }
+
+        void finish() {
+            inFlight--;
+        }
+    }
+
+    @Getter
+    private static class Task {
+        private final TenantQueue queue;
+        private final int cost;
+        private final Runnable insert;
+
+        Task(TenantQueue queue, int cost, Runnable insert) {
+            this.queue = queue;
+            this.cost = cost;
+            this.insert = insert;
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import io.barracks.bigqueryservice.model.MessageMetadata;
+
+/**
+ * Builds the insertId BigQuery uses to deduplicate rows, so that a row sent again by a retry or a redelivery of its
+ * message is only stored once.
+ * <p>
+ * The id is a 128 bits hash of the identity of the row, computed straight from its components without building an
+ * intermediate string.
+ */
+final class InsertIds {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long SECOND_SEED = 0x9e3779b97f4a7c15L;
+    private static final long SECOND_MULTIPLIER = 0xc6a4a7935bd1e995L;
+
+    // Separates the components so that ("ab", "c") and ("a", "bc") do not collide
+    private static final char SEPARATOR = '\u001f';
+
+    private InsertIds() {
+    }
+
+    /**
+     * @return the timestamp identifying the message in its insertIds, left out when it is only the time of reception.
+     */
+    static long timestampOf(MessageMetadata messageMetadata) {
+        return messageMetadata.isReceptionTimestamp() ? 0L : messageMetadata.getTimestamp().toEpochMilli();
+    }
+
+    static String of(String unitId, long timestamp, String reference, String version, String messageId) {
+        long first = fnv(FNV_OFFSET_BASIS, timestamp);
+        first = fnv(first, unitId);
+        first = fnv(first, reference);
+        first = fnv(first, version);
+        first = fnv(first, messageId);
+
+        long second = mix(SECOND_SEED, timestamp);
+        second = mix(second, unitId);
+        second = mix(second, reference);
+        second = mix(second, version);
+        second = mix(second, messageId);
+
+        final char[] id = new char[32];
+        toHex(finish(first), id, 0);
+        toHex(finish(second), id, 16);
+        return new String(id);
+    }
+
+    private static long fnv(long hash, String component) {
+        if (component != null) {
+            for (int i = 0; i < component.length(); i++) {
+                hash = fnv(hash, component.charAt(i));
+            }
+        }
+        return fnv(hash, SEPARATOR);
+    }
+
+    private static long fnv(long hash, long value) {
+        return (hash ^ value) * FNV_PRIME;
+    }
+
+    private static long mix(long hash, String component) {
+        if (component != null) {
+            for (int i = 0; i < component.length(); i++) {
+                hash = mix(hash, component.charAt(i));
+            }
+        }
+        return mix(hash, SEPARATOR);
+    }
+
+    private static long mix(long hash, long value) {
+        long k = value * SECOND_MULTIPLIER;
+        k ^= k >>> 47;
+        k *= SECOND_MULTIPLIER;
+        return (hash ^ k) * SECOND_MULTIPLIER;
+    }
+
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static void toHex(long value, char[] destination, int offset) {
+        for (int i = 15; i >= 0; i--) {
+            destination[offset + i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.common.collect.ImmutableMap;
+import io.barracks.bigqueryservice.model.MessageMetadata;
+
+/**
+ * Builds the rows of the ResolveVersions tables, one per package of a device request. Messages converted to models
+ * and messages streamed straight to rows both go through it, so that a message gets the same rows, and the same
+ * insertIds, whichever way it was read.
+ * <p>
+ * Rows are built straight into the immutable maps {@link InsertAllRequest.RowToInsert} keeps, which it then uses as
+ * is instead of copying them, with shared column names and timestamp strings.
+ */
+public final class PackageRows {
+
+    static final String TIMESTAMP = "timestamp";
+    static final String USER_ID = "userId";
+    public static final String UNIT_ID = "unitId";
+    static final String IP_ADDRESS = "ipAddress";
+    static final String USER_AGENT = "userAgent";
+    static final String CUSTOM_CLIENT_DATA = "customClientData";
+    public static final String PACKAGES = "packages";
+    public static final String REFERENCE = "reference";
+    public static final String VERSION = "version";
+
+    private static final String MISSING = " ";
+
+    private PackageRows() {
+    }
+
+    public static InsertAllRequest.RowToInsert of(
+            MessageMetadata messageMetadata,
+            String userId,
+            String unitId,
+            String ipAddress,
+            String userAgent,
+            String customClientData,
+            String reference,
+            String version
+    ) {
+        // Rows do not take null values, a missing field is stored as NULL anyway
+        final ImmutableMap.Builder<String, Object> rowContent = ImmutableMap.builder();
+        rowContent.put(TIMESTAMP, RowTimestamps.format(messageMetadata.getTimestamp()));
+        if (userId != null) {
+            rowContent.put(USER_ID, userId);
+        }
+        if (unitId != null) {
+            rowContent.put(UNIT_ID, unitId);
+        }
+        rowContent.put(IP_ADDRESS, ipAddress == null ? MISSING : ipAddress);
+        rowContent.put(USER_AGENT, userAgent == null ? MISSING : userAgent);
+        rowContent.put(CUSTOM_CLIENT_DATA, customClientData);
+        rowContent.put(PACKAGES, packageRecord(reference, version));
+
+        // Stable id so that BigQuery drops the copies sent by retries and redeliveries of the same message
+        final String insertId = InsertIds.of(
+                unitId,
+                InsertIds.timestampOf(messageMetadata),
+                reference,
+                version,
+                messageMetadata.getMessageId()
+        );
+        return InsertAllRequest.RowToInsert.of(insertId, rowContent.build());
+    }
+
+    private static ImmutableMap<String, Object> packageRecord(String reference, String version) {
+        if (reference == null) {
+            return version == null ? ImmutableMap.of() : ImmutableMap.of(VERSION, version);
+        }
+        return version == null ? ImmutableMap.of(REFERENCE, reference) : ImmutableMap.of(REFERENCE, reference, VERSION, version);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.cloud.bigquery.InsertAllResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Metrics of each stage of the pipeline, for the whole service and per tenant and table, exported by the actuator
+ * metrics endpoint.
+ * <p>
+ * Stage durations are submitted as {@code timer.*} gauges, which keep their last values, and kept in a sliding
+ * window of the latest durations from which their median and 99th percentile are published as
+ * {@code timer.*.snapshot.median} and {@code timer.*.snapshot.99thPercentile}. The tenant and table are part of the
+ * metric names: {@code timer.bigquery.<stage>.<projectId>.<table>}, with the characters other than letters, digits,
+ * dashes and underscores replaced by underscores so that each stays a single name segment. Rows, bytes and errors of
+ * the insert requests are counted per tenant and table, and the inserts in flight and the rows waiting in batches are
+ * read when the metrics are.
+ */
+@Component
+public class PipelineMetrics implements PublicMetrics {
+
+    public static final String CREDENTIALS = "credentials";
+    public static final String METADATA = "metadata";
+    public static final String ROWS = "rows";
+    public static final String INSERT = "insert";
+
+    private static final String UNKNOWN = "unknown";
+    private static final Pattern LABEL_INVALID_CHARACTERS = Pattern.compile("[^A-Za-z0-9_-]");
+    private static final int WINDOW_SIZE = 1024;
+
+    private final GaugeService gauge;
+    private final InsertExecutor insertExecutor;
+    private final InsertBatcher insertBatcher;
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, SlidingWindow> timers = new ConcurrentHashMap<>();
+
+    @Autowired
+    public PipelineMetrics(GaugeService gauge, InsertExecutor insertExecutor, InsertBatcher insertBatcher) {
+        this.gauge = gauge;
+        this.insertExecutor = insertExecutor;
+        this.insertBatcher = insertBatcher;
+    }
+
+    /**
+     * Records the duration of a stage started at {@code startNanos}, the table being null for the stages run before
+     * it is known.
+     */
+    public void recordStage(String stage, String projectId, String table, long startNanos) {
+        final double millis = (System.nanoTime() - startNanos) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        time("timer.bigquery." + stage, millis);
+        time("timer.bigquery." + stage + "." + labels(projectId, table), millis);
+    }
+
+    /**
+     * Records the processing of a message received at {@code startNanos}, from its reception to its storage or
+     * failure.
+     */
+    public void recordMessage(String projectId, long startNanos, boolean success) {
+        final double millis = (System.nanoTime() - startNanos) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        time("timer.message.process", millis);
+        time("timer.message.process." + labels(projectId, null), millis);
+        increment("counter.message.process." + (success ? "success." : "error.") + labels(projectId, null), 1L);
+    }
+
+    /**
+     * Counts the rows and bytes of an insert request, and the rows BigQuery rejected.
+     */
+    public void recordInsert(InsertAllRequest request, InsertAllResponse response) {
+        final String labels = labels(request.getTable().getProject(), request.getTable().getTable());
+        long bytes = 0L;
+        for (InsertAllRequest.RowToInsert row : request.getRows()) {
+            bytes += InsertBatcher.estimateSize(row.getContent());
+        }
+        increment("counter.bigquery.insert.rows." + labels, request.getRows().size());
+        increment("counter.bigquery.insert.bytes." + labels, bytes);
+        if (response.hasErrors()) {
+            increment("counter.bigquery.insert.rowerrors." + labels, response.getInsertErrors().size());
+        }
+    }
+
+    /**
+     * Counts an insert request that failed as a whole.
+     */
+    public void recordInsertFailure(InsertAllRequest request) {
+        increment("counter.bigquery.insert.errors." + labels(request.getTable().getProject(), request.getTable().getTable()), 1L);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final List<Metric<?>> metrics = new ArrayList<>(counters.size() + 2 * timers.size() + 3);
+        metrics.add(new Metric<>("gauge.bigquery.insert.inflight", insertExecutor.getInFlight()));
+        metrics.add(new Metric<>("gauge.bigquery.insert.queued", insertExecutor.getQueued()));
+        metrics.add(new Metric<>("gauge.bigquery.batcher.rows", insertBatcher.getBufferedRows()));
+        counters.forEach((name, count) -> metrics.add(new Metric<>(name, count.sum())));
+        timers.forEach((name, window) -> {
+            final double[] values = window.sorted();
+            metrics.add(new Metric<>(name + ".snapshot.median", percentile(values, 0.5)));
+            metrics.add(new Metric<>(name + ".snapshot.99thPercentile", percentile(values, 0.99)));
+        });
+        return metrics;
+    }
+
+    private void time(String name, double millis) {
+        gauge.submit(name, millis);
+        timers.computeIfAbsent(name, key -> new SlidingWindow()).update(millis);
+    }
+
+    private void increment(String name, long delta) {
+        counters.computeIfAbsent(name, key -> new LongAdder()).add(delta);
+    }
+
+    private static String labels(String projectId, String table) {
+        return table == null ? label(projectId) : label(projectId) + "." + label(table);
+    }
+
+    private static String label(String value) {
+        // Domain-scoped project ids such as example.com:project would otherwise split the metric name
+        return value == null ? UNKNOWN : LABEL_INVALID_CHARACTERS.matcher(value).replaceAll("_");
+    }
+
+    private static double percentile(double[] sorted, double quantile) {
+        return sorted[Math.max(0, (int) Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    /**
+     * The latest {@link #WINDOW_SIZE} durations of a timer, overwritten oldest first.
+     */
+    private static final class SlidingWindow {
+
+        private final double[] values = new double[WINDOW_SIZE];
+        private long count;
+
+        synchronized void update(double value) {
+            values[(int) (count++ % WINDOW_SIZE)] = value;
+        }
+
+        synchronized double[] sorted() {
+            final double[] copy = Arrays.copyOf(values, (int) Math.min(count, WINDOW_SIZE));
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+}
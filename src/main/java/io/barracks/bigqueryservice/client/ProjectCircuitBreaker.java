@@ -0,0 +1,187 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending rows to the BigQuery projects failing over and over, such as projects whose service account key has
+ * been revoked or whose quota is exhausted, so that their messages do not keep the listener threads busy with
+ * credentials, metadata calls and insert retries doomed to fail.
+ * <p>
+ * The circuit of a project opens after the configured number of consecutive failures. Once it has been open for the
+ * configured duration it is half open: a single request is let through, closing the circuit if it succeeds and opening
+ * it again otherwise. A trial without outcome for as long is given up and another request is let through.
+ */
+@Slf4j
+@Component
+public class ProjectCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openDurationNanos;
+    private final CounterService counter;
+
+    // Projects without an entry have a closed circuit and no failure
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ProjectCircuitBreaker(
+            @Value("${io.barracks.bigqueryservice.circuit.failurethreshold}") int failureThreshold,
+            @Value("${io.barracks.bigqueryservice.circuit.opendurationmillis}") long openDurationMillis,
+            CounterService counter
+    ) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMillis);
+        this.counter = counter;
+    }
+
+    /**
+     * @return false if the circuit of the project is open and its rows must not be sent to BigQuery.
+     */
+    public boolean allowRequest(String projectId) {
+        final Circuit circuit = circuits.get(projectId);
+        if (circuit == null) {
+            return true;
+        }
+        synchronized (circuit) {
+            final long now = now();
+            switch (circuit.getState()) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (now - circuit.getSince() >= openDurationNanos) {
+                        log.info("Circuit of project " + projectId + " half open, trying a request");
+                        circuit.transition(State.HALF_OPEN, now);
+                        return true;
+                    }
+                    break;
+                case HALF_OPEN:
+                    if (now - circuit.getSince() >= openDurationNanos) {
+                        // The previous trial never completed
+                        circuit.transition(State.HALF_OPEN, now);
+                        return true;
+                    }
+                    break;
+            }
+        }
+        incrementCircuitMetric("rejected");
+        return false;
+    }
+
+    public void recordSuccess(String projectId) {
+        final Circuit circuit = circuits.remove(projectId);
+        if (circuit != null && circuit.getState() != State.CLOSED) {
+            log.info("Circuit of project " + projectId + " closed");
+            incrementCircuitMetric("closed");
+        }
+    }
+
+    public void recordFailure(String projectId) {
+        final Circuit circuit = circuits.computeIfAbsent(projectId, key -> new Circuit());
+        synchronized (circuit) {
+            final int failures = circuit.fail();
+            if (circuit.getState() == State.HALF_OPEN || (circuit.getState() == State.CLOSED && failures >= failureThreshold)) {
+                log.warn("Circuit of project " + projectId + " opened after " + failures + " consecutive failures");
+                circuit.transition(State.OPEN, now());
+                incrementCircuitMetric("opened");
+            }
+        }
+    }
+
+    public State getState(String projectId) {
+        final Circuit circuit = circuits.get(projectId);
+        return circuit == null ? State.CLOSED : circuit.getState();
+    }
+
+    /**
+     * @return the circuits of the projects that failed since their last success, by project id.
+     */
+    public Map<String, CircuitStatus> getStatuses() {
+        final Map<String, CircuitStatus> statuses = new TreeMap<>();
+        final long now = now();
+        circuits.forEach((projectId, circuit) -> {
+            synchronized (circuit) {
+                statuses.put(projectId, CircuitStatus.of(
+                        circuit.getState(),
+                        circuit.getFailures(),
+                        TimeUnit.NANOSECONDS.toMillis(now - circuit.getSince())
+                ));
+            }
+        });
+        return statuses;
+    }
+
+    long now() {
+        return System.nanoTime();
+    }
+
+    private void incrementCircuitMetric(String status) {
+        counter.increment("bigquery.circuit." + status);
+    }
+
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    @RequiredArgsConstructor(staticName = "of")
+    public static class CircuitStatus {
+        private final State state;
+        private final int consecutiveFailures;
+        private final long stateAgeMillis;
+    }
+
+    @Getter
+    private class Circuit {
+        private State state = State.CLOSED;
+        private long since = now();
+        private int failures;
+
+        int fail() {
+            return ++failures;
+        }
+
+        void transition(State state, long now) {
+            this.state = state;
+            this.since = now;
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.google.api.services.bigquery.BigqueryScopes;
+import com.google.auth.Credentials;
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.barracks.bigqueryservice.model.GoogleClientSecret;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Service account credentials whose access token can be renewed ahead of its expiry by the {@link TokenRefresher}.
+ * <p>
+ * Requests read the current token without any lock, a refresh in progress only holds back the requests whose token
+ * has actually expired. The token is exchanged with the token endpoint of the client secret, which lets tests point it
+ * to a local stand-in.
+ */
+class RefreshingCredentials extends Credentials {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String AUTHORIZATION_HEADER = "Authorization";
+
+    // Tokens this close to their expiry are refreshed before being used, as the Google credentials do
+    private static final long MIN_VALIDITY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final ServiceAccountCredentials serviceAccountCredentials;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile AccessToken accessToken;
+
+    RefreshingCredentials(ServiceAccountCredentials serviceAccountCredentials) {
+        this.serviceAccountCredentials = serviceAccountCredentials;
+    }
+
+    static RefreshingCredentials of(GoogleClientSecret googleClientSecret) throws IOException {
+        return new RefreshingCredentials(ServiceAccountCredentials.fromPkcs8(
+                googleClientSecret.getClientId(),
+                googleClientSecret.getClientEmail(),
+                googleClientSecret.getPrivateKey(),
+                googleClientSecret.getPrivateKeyId(),
+                Collections.singleton(BigqueryScopes.CLOUD_PLATFORM),
+                null,
+                googleClientSecret.getTokenUri() == null ? null : URI.create(googleClientSecret.getTokenUri())
+        ));
+    }
+
+    @Override
+    public String getAuthenticationType() {
+        return "OAuth2";
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestMetadata(URI uri) throws IOException {
+        AccessToken current = accessToken;
+        if (expiresWithin(current, MIN_VALIDITY_MILLIS)) {
+            synchronized (this) {
+                current = accessToken;
+                if (expiresWithin(current, MIN_VALIDITY_MILLIS)) {
+                    refresh();
+                    current = accessToken;
+                }
+            }
+        }
+        return ImmutableMap.of(AUTHORIZATION_HEADER, ImmutableList.of("Bearer " + current.getTokenValue()));
+    }
+
+    @Override
+    public boolean hasRequestMetadata() {
+        return true;
+    }
+
+    @Override
+    public boolean hasRequestMetadataOnly() {
+        return true;
+    }
+
+    /**
+     * Exchanges a new access token, also called by the HTTP transport when BigQuery rejects the current one.
+     */
+    @Override
+    public synchronized void refresh() throws IOException {
+        accessToken = serviceAccountCredentials.refreshAccessToken();
+    }
+
+    /**
+     * @return true if there is no token yet or if it expires within the given delay.
+     */
+    boolean needsRefresh(long marginMillis) {
+        return expiresWithin(accessToken, marginMillis);
+    }
+
+    /**
+     * @return false if another refresh of these credentials is already in progress.
+     */
+    boolean startRefreshing() {
+        return refreshing.compareAndSet(false, true);
+    }
+
+    void stopRefreshing() {
+        refreshing.set(false);
+    }
+
+    AccessToken getAccessToken() {
+        return accessToken;
+    }
+
+    String getClientEmail() {
+        return serviceAccountCredentials.getClientEmail();
+    }
+
+    private static boolean expiresWithin(AccessToken token, long delayMillis) {
+        return token == null
+                || (token.getExpirationTime() != null && token.getExpirationTime().getTime() - System.currentTimeMillis() <= delayMillis);
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import java.time.Instant;
+
+/**
+ * Formats row timestamps, reusing the string of the previous timestamp. The rows of a message, and the messages
+ * published within the same millisecond, share one string instead of formatting it again for every row.
+ */
+final class RowTimestamps {
+
+    private static volatile Formatted last = new Formatted(Instant.EPOCH);
+
+    private RowTimestamps() {
+    }
+
+    static String format(Instant timestamp) {
+        final Formatted formatted = last;
+        if (formatted.timestamp.equals(timestamp)) {
+            return formatted.text;
+        }
+        final Formatted current = new Formatted(timestamp);
+        last = current;
+        return current.text;
+    }
+
+    private static final class Formatted {
+        private final Instant timestamp;
+        private final String text;
+
+        private Formatted(Instant timestamp) {
+            this.timestamp = timestamp;
+            this.text = timestamp.toString();
+        }
+    }
+}
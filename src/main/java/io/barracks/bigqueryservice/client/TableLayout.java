@@ -0,0 +1,106 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Table layout of each project, so that tenants can be switched over one at a time. {@code *} switches every project.
+ * <ul>
+ * <li>partitioned: a single day-partitioned table instead of daily template tables.</li>
+ * <li>nested: one row per device request, its packages and resolved versions as repeated records.</li>
+ * <li>change only: only what changed in the requests of the change queue.</li>
+ * <li>rollup: hourly counts of the package versions along with the rows of each request.</li>
+ * <li>rollup only: hourly counts of the package versions without any row per request.</li>
+ * </ul>
+ */
+@Component
+public class TableLayout {
+
+    private static final String ALL_PROJECTS = "*";
+
+    private final Set<String> partitionedProjects;
+
+    private final Set<String> nestedProjects;
+
+    private final Set<String> changeOnlyProjects;
+
+    private final Set<String> rollupProjects;
+
+    private final Set<String> rollupOnlyProjects;
+
+    @Autowired
+    public TableLayout(
+            @Value("${io.barracks.bigqueryservice.table.partitionedprojects}") String[] partitionedProjects,
+            @Value("${io.barracks.bigqueryservice.table.nestedprojects}") String[] nestedProjects,
+            @Value("${io.barracks.bigqueryservice.table.changeonlyprojects}") String[] changeOnlyProjects,
+            @Value("${io.barracks.bigqueryservice.table.rollupprojects}") String[] rollupProjects,
+            @Value("${io.barracks.bigqueryservice.table.rolluponlyprojects}") String[] rollupOnlyProjects
+    ) {
+        this.partitionedProjects = toSet(partitionedProjects);
+        this.nestedProjects = toSet(nestedProjects);
+        this.changeOnlyProjects = toSet(changeOnlyProjects);
+        this.rollupProjects = toSet(rollupProjects);
+        this.rollupOnlyProjects = toSet(rollupOnlyProjects);
+    }
+
+    public boolean isPartitioned(String projectId) {
+        return partitionedProjects.contains(ALL_PROJECTS) || partitionedProjects.contains(projectId);
+    }
+
+    public boolean isNested(String projectId) {
+        return nestedProjects.contains(ALL_PROJECTS) || nestedProjects.contains(projectId);
+    }
+
+    public boolean isChangeOnly(String projectId) {
+        return changeOnlyProjects.contains(ALL_PROJECTS) || changeOnlyProjects.contains(projectId);
+    }
+
+    public boolean isRolledUp(String projectId) {
+        return isRollupOnly(projectId) || rollupProjects.contains(ALL_PROJECTS) || rollupProjects.contains(projectId);
+    }
+
+    /**
+     * @return true if the device requests of the project are only counted in the rollup table, without any row of
+     * their own.
+     */
+    public boolean isRollupOnly(String projectId) {
+        return rollupOnlyProjects.contains(ALL_PROJECTS) || rollupOnlyProjects.contains(projectId);
+    }
+
+    private static Set<String> toSet(String[] projects) {
+        return Arrays.stream(projects)
+                .map(String::trim)
+                .filter(project -> !project.isEmpty())
+                .collect(Collectors.toSet());
+    }
+
+}
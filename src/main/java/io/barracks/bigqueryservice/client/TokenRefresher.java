@@ -0,0 +1,136 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renews in the background the access tokens of the tenants using the service, before they expire, so that inserts
+ * never wait for a token exchange with the token endpoint.
+ * <p>
+ * The credentials of the services cached by the {@link BigQueryServiceCache} are checked at a fixed interval, those
+ * whose token expires within the refresh margin are refreshed in parallel. The margin has to be longer than the
+ * interval for the tokens to be renewed before they are needed.
+ */
+@Slf4j
+@Component
+public class TokenRefresher {
+
+    private final BigQueryServiceCache bigQueryServiceCache;
+    private final long intervalMillis;
+    private final long marginMillis;
+    private final ScheduledExecutorService refreshExecutor;
+    private final CounterService counter;
+    private final GaugeService gauge;
+
+    @Autowired
+    public TokenRefresher(
+            BigQueryServiceCache bigQueryServiceCache,
+            @Value("${io.barracks.bigqueryservice.token.refreshintervalmillis}") long intervalMillis,
+            @Value("${io.barracks.bigqueryservice.token.refreshmarginmillis}") long marginMillis,
+            @Value("${io.barracks.bigqueryservice.token.refreshthreads}") int threads,
+            CounterService counter,
+            GaugeService gauge
+    ) {
+        this(bigQueryServiceCache, intervalMillis, marginMillis, Executors.newScheduledThreadPool(Math.max(1, threads), runnable -> {
+            final Thread thread = new Thread(runnable, "bigquery-token-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }), counter, gauge);
+    }
+
+    TokenRefresher(BigQueryServiceCache bigQueryServiceCache, long intervalMillis, long marginMillis, ScheduledExecutorService refreshExecutor, CounterService counter, GaugeService gauge) {
+        if (marginMillis <= intervalMillis) {
+            log.warn("Token refresh margin of " + marginMillis + " ms not longer than the refresh interval of " + intervalMillis + " ms, some tokens will expire before being refreshed");
+        }
+        this.bigQueryServiceCache = bigQueryServiceCache;
+        this.intervalMillis = intervalMillis;
+        this.marginMillis = marginMillis;
+        this.refreshExecutor = refreshExecutor;
+        this.counter = counter;
+        this.gauge = gauge;
+    }
+
+    @PostConstruct
+    public void start() {
+        refreshExecutor.scheduleWithFixedDelay(this::refreshExpiringTokens, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        refreshExecutor.shutdownNow();
+    }
+
+    void refreshExpiringTokens() {
+        for (RefreshingCredentials credentials : bigQueryServiceCache.getActiveCredentials()) {
+            if (credentials.needsRefresh(marginMillis) && credentials.startRefreshing()) {
+                try {
+                    refreshExecutor.execute(() -> {
+                        try {
+                            refresh(credentials);
+                        } finally {
+                            credentials.stopRefreshing();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    credentials.stopRefreshing();
+                    return;
+                }
+            }
+        }
+    }
+
+    void refresh(RefreshingCredentials credentials) {
+        final long start = System.nanoTime();
+        try {
+            credentials.refresh();
+            incrementRefreshMetric("success");
+        } catch (IOException | RuntimeException e) {
+            // The token is still valid for a while, the refresh is tried again on the next run
+            log.warn("Unable to refresh the access token of " + credentials.getClientEmail(), e);
+            incrementRefreshMetric("error");
+        } finally {
+            gauge.submit("timer.bigquery.token.refresh", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    private void incrementRefreshMetric(String status) {
+        counter.increment("bigquery.token.refresh." + status);
+    }
+
+}
@@ -0,0 +1,285 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.common.collect.ImmutableMap;
+import io.barracks.bigqueryservice.model.GoogleClientSecret;
+import io.barracks.bigqueryservice.model.MessageMetadata;
+import io.barracks.bigqueryservice.model.Package;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts in memory the device requests reporting each package version, per tenant and time bucket, and writes the
+ * counts to the VersionRollups table at a fixed interval, so that summary dashboards read a few rows per bucket instead
+ * of one row per package of every request.
+ * <p>
+ * A bucket is flushed as many times as it receives requests across flush intervals, and by every instance of the
+ * service, so its count is the sum of its rows. Each row gets an insertId built from the instance, the flush and its
+ * key, and rows that could not be written are sent again unchanged with the next flush, so that BigQuery drops the
+ * copy of a write that failed after being stored instead of counting it twice. Only a bounded number of failed writes
+ * is kept, the oldest being dropped while BigQuery stays unavailable. Stopping the service waits a bounded time for the
+ * writes in flight, the counts not flushed yet are lost if the service stops abruptly.
+ */
+@Slf4j
+@Component
+public class VersionRollup {
+
+    static final String COUNT = "count";
+
+    private static final long STOP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private final long bucketMillis;
+    private final long flushIntervalMillis;
+    private final int maxFailedWrites;
+    private final BigQueryClient bigQueryClient;
+    private final ScheduledExecutorService flushExecutor;
+    private final CounterService counter;
+
+    private final String instanceId = UUID.randomUUID().toString();
+    private final AtomicLong flushSequence = new AtomicLong();
+    private final Set<CompletableFuture<Void>> inFlight = ConcurrentHashMap.newKeySet();
+
+    private Map<String, TenantCounts> tenants = new HashMap<>();
+    private Deque<RollupRows> failed = new ArrayDeque<>();
+
+    @Autowired
+    public VersionRollup(
+            @Value("${io.barracks.bigqueryservice.rollup.bucketmillis}") long bucketMillis,
+            @Value("${io.barracks.bigqueryservice.rollup.flushintervalmillis}") long flushIntervalMillis,
+            @Value("${io.barracks.bigqueryservice.rollup.maxfailedwrites}") int maxFailedWrites,
+            BigQueryClient bigQueryClient,
+            CounterService counter
+    ) {
+        this(bucketMillis, flushIntervalMillis, maxFailedWrites, bigQueryClient, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "bigquery-rollup-flush");
+            thread.setDaemon(true);
+            return thread;
+        }), counter);
+    }
+
+    VersionRollup(long bucketMillis, long flushIntervalMillis, int maxFailedWrites, BigQueryClient bigQueryClient, ScheduledExecutorService flushExecutor, CounterService counter) {
+        this.bucketMillis = Math.max(1, bucketMillis);
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.maxFailedWrites = Math.max(1, maxFailedWrites);
+        this.bigQueryClient = bigQueryClient;
+        this.flushExecutor = flushExecutor;
+        this.counter = counter;
+    }
+
+    @PostConstruct
+    public void start() {
+        flushExecutor.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        flushExecutor.shutdown();
+        final long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+        try {
+            flushExecutor.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            flush();
+            CompletableFuture.allOf(inFlight.toArray(new CompletableFuture<?>[0]))
+                    .get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Already logged by the write that failed
+        } catch (TimeoutException e) {
+            log.warn("Rollup writes still in flight after " + STOP_TIMEOUT_MILLIS + "ms, their counts may be lost");
+        }
+    }
+
+    /**
+     * Counts the packages reported by a device request.
+     */
+    public void add(GoogleClientSecret googleClientSecret, MessageMetadata messageMetadata, List<Package> packages) {
+        final Instant bucket = bucketOf(messageMetadata.getTimestamp());
+        synchronized (this) {
+            final TenantCounts tenantCounts = tenantCounts(googleClientSecret);
+            for (Package aPackage : packages) {
+                tenantCounts.increment(Key.of(bucket, aPackage.getReference(), aPackage.getVersion().orElse(null)), 1L);
+            }
+        }
+    }
+
+    /**
+     * Counts the packages of rows read straight from a message, which have the one row per package layout.
+     */
+    public void add(DeviceEventRows deviceEventRows) {
+        final Instant bucket = bucketOf(deviceEventRows.getMessageMetadata().getTimestamp());
+        synchronized (this) {
+            final TenantCounts tenantCounts = tenantCounts(deviceEventRows.getGoogleClientSecret());
+            for (InsertAllRequest.RowToInsert row : deviceEventRows.getRows()) {
+                final Map<?, ?> packageRecord = (Map<?, ?>) row.getContent().get(PackageRows.PACKAGES);
+                tenantCounts.increment(Key.of(bucket, (String) packageRecord.get(PackageRows.REFERENCE), (String) packageRecord.get(PackageRows.VERSION)), 1L);
+            }
+        }
+    }
+
+    void flush() {
+        final Map<String, TenantCounts> flushed;
+        final Collection<RollupRows> retried;
+        synchronized (this) {
+            if (tenants.isEmpty() && failed.isEmpty()) {
+                return;
+            }
+            flushed = tenants;
+            tenants = new HashMap<>();
+            retried = failed;
+            failed = new ArrayDeque<>();
+        }
+        retried.forEach(this::send);
+        final long sequence = flushSequence.incrementAndGet();
+        flushed.values().forEach(tenantCounts -> flush(tenantCounts, sequence));
+    }
+
+    private void flush(TenantCounts tenantCounts, long sequence) {
+        final Map<Instant, List<InsertAllRequest.RowToInsert>> rowsByBucket = new TreeMap<>();
+        tenantCounts.getCounts().forEach((key, count) -> rowsByBucket.computeIfAbsent(key.getBucket(), bucket -> new ArrayList<>()).add(buildRollupRow(key, count.getValue(), sequence)));
+        rowsByBucket.forEach((bucket, rows) -> send(RollupRows.of(tenantCounts.getGoogleClientSecret(), bucket, rows)));
+    }
+
+    private void send(RollupRows rollupRows) {
+        CompletableFuture<Void> sent;
+        try {
+            sent = bigQueryClient.sendRollupRows(rollupRows.getGoogleClientSecret(), rollupRows.getBucket(), rollupRows.getRows());
+        } catch (Exception e) {
+            sent = new CompletableFuture<>();
+            sent.completeExceptionally(e);
+        }
+        final CompletableFuture<Void> completed = sent.whenComplete((ignored, e) -> {
+            if (e == null) {
+                incrementRollupMetric("flush.success");
+            } else {
+                log.warn("Unable to write the rollup of " + rollupRows.getGoogleClientSecret().getProjectId() + " for " + rollupRows.getBucket() + ", sending it again with the next flush", e);
+                incrementRollupMetric("flush.error");
+                retryLater(rollupRows);
+            }
+        });
+        inFlight.add(completed);
+        completed.whenComplete((ignored, e) -> inFlight.remove(completed));
+    }
+
+    private synchronized void retryLater(RollupRows rollupRows) {
+        if (failed.size() >= maxFailedWrites) {
+            final RollupRows dropped = failed.pollFirst();
+            log.error("Too many rollup writes waiting, dropping the rollup of " + dropped.getGoogleClientSecret().getProjectId() + " for " + dropped.getBucket());
+            incrementRollupMetric("flush.dropped");
+        }
+        failed.addLast(rollupRows);
+    }
+
+    private TenantCounts tenantCounts(GoogleClientSecret googleClientSecret) {
+        final TenantCounts tenantCounts = tenants.computeIfAbsent(googleClientSecret.getProjectId(), projectId -> new TenantCounts(googleClientSecret));
+        // Counts are written with the latest credentials of the tenant
+        tenantCounts.setGoogleClientSecret(googleClientSecret);
+        return tenantCounts;
+    }
+
+    private Instant bucketOf(Instant timestamp) {
+        final long millis = timestamp.toEpochMilli();
+        return Instant.ofEpochMilli(millis - Math.floorMod(millis, bucketMillis));
+    }
+
+    private InsertAllRequest.RowToInsert buildRollupRow(Key key, long count, long sequence) {
+        final ImmutableMap.Builder<String, Object> rowContent = ImmutableMap.builder();
+        rowContent.put(PackageRows.TIMESTAMP, RowTimestamps.format(key.getBucket()));
+        if (key.getReference() != null) {
+            rowContent.put(PackageRows.REFERENCE, key.getReference());
+        }
+        if (key.getVersion() != null) {
+            rowContent.put(PackageRows.VERSION, key.getVersion());
+        }
+        rowContent.put(COUNT, count);
+        final String insertId = InsertIds.of(instanceId, key.getBucket().toEpochMilli(), key.getReference(), key.getVersion(), Long.toString(sequence));
+        return InsertAllRequest.RowToInsert.of(insertId, rowContent.build());
+    }
+
+    private void incrementRollupMetric(String status) {
+        counter.increment("bigquery.rollup." + status);
+    }
+
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    @RequiredArgsConstructor(staticName = "of")
+    static class Key {
+        private final Instant bucket;
+        private final String reference;
+        private final String version;
+    }
+
+    @Getter
+    @RequiredArgsConstructor(staticName = "of")
+    private static class RollupRows {
+        private final GoogleClientSecret googleClientSecret;
+        private final Instant bucket;
+        private final List<InsertAllRequest.RowToInsert> rows;
+    }
+
+    @Getter
+    private static class TenantCounts {
+        private GoogleClientSecret googleClientSecret;
+        private final Map<Key, Count> counts = new HashMap<>();
+
+        TenantCounts(GoogleClientSecret googleClientSecret) {
+            this.googleClientSecret = googleClientSecret;
+        }
+
+        void setGoogleClientSecret(GoogleClientSecret googleClientSecret) {
+            this.googleClientSecret = googleClientSecret;
+        }
+
+        void increment(Key key, long delta) {
+            counts.computeIfAbsent(key, ignored -> new Count()).add(delta);
+        }
+    }
+
+    @Getter
+    private static class Count {
+        private long value;
+
+        void add(long delta) {
+            value += delta;
+        }
+    }
+
+}
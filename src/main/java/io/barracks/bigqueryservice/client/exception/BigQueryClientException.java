@@ -29,7 +29,20 @@ import org.springframework.web.client.HttpStatusCodeException;
 
 public class BigQueryClientException extends RuntimeException {
 
+    private static final long serialVersionUID = 1L;
+
+    private final boolean retryable;
+
     public BigQueryClientException(String message) {
+        this(message, false);
+    }
+
+    public BigQueryClientException(String message, boolean retryable) {
         super(message);
+        this.retryable = retryable;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
     }
 }
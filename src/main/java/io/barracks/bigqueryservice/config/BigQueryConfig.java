@@ -29,6 +29,7 @@ import com.google.cloud.HttpTransportOptions;
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQueryOptions;
 import org.joda.time.Duration;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -48,12 +49,13 @@ public class BigQueryConfig {
     }
 
     @Bean
-    public BigQuery initializeBigQuery() {
+    public BigQuery initializeBigQuery(@Value("${io.barracks.bigqueryservice.bigquery.host}") String host) {
         final HttpTransportOptions transportOptions = BigQueryOptions.getDefaultHttpTransportOptions().toBuilder()
                 .setConnectTimeout(2000)
                 .setReadTimeout(2000)
                 .build();
         final BigQuery bigQuery = BigQueryOptions.newBuilder()
+                .setHost(host)
                 .setTransportOptions(transportOptions)
                 .setRetrySettings(retrySettings())
                 .setProjectId("DefaultProjectId")
@@ -25,7 +25,11 @@
 package io.barracks.bigqueryservice.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.barracks.bigqueryservice.client.TableLayout;
+import io.barracks.bigqueryservice.rabbitmq.DeviceEventRowsConverter;
+import org.springframework.amqp.core.*;
 import org.springframework.amqp.rabbit.annotation.EnableRabbit;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
@@ -44,6 +48,9 @@ public class RabbitMQConfig {
     @Value("${io.barracks.amqp.uri}")
     private String hostName;
 
+    @Value("${io.barracks.amqp.channelcachesize}")
+    private int channelCacheSize;
+
     @Bean
     public MessageConverter messageConverter(ObjectMapper objectMapper) {
         Jackson2JsonMessageConverter jackson2JsonMessageConverter = new Jackson2JsonMessageConverter();
@@ -53,7 +60,89 @@ public class RabbitMQConfig {
 
     @Bean
     public ConnectionFactory cf() throws URISyntaxException {
-        return new CachingConnectionFactory(new URI(hostName));
+        final CachingConnectionFactory connectionFactory = new CachingConnectionFactory(new URI(hostName));
+        connectionFactory.setChannelCacheSize(channelCacheSize);
+        // The parking lot only acknowledges a message once the broker confirmed and routed its parked copy
+        connectionFactory.setPublisherConfirms(true);
+        connectionFactory.setPublisherReturns(true);
+        return connectionFactory;
+    }
+
+    @Bean
+    public TopicExchange deadLetterExchange(@Value("${io.barracks.amqp.deadletter.exchangename}") String exchangeName) {
+        return new TopicExchange(exchangeName, true, false);
+    }
+
+    @Bean
+    public Queue parkingLotQueue(@Value("${io.barracks.amqp.parkinglot.queuename}") String queueName) {
+        return new Queue(queueName, true, false, false);
+    }
+
+    @Bean
+    public Binding parkingLotBinding(TopicExchange deadLetterExchange, Queue parkingLotQueue) {
+        // Parked messages keep their routing key, the parking lot takes all of them
+        return BindingBuilder.bind(parkingLotQueue).to(deadLetterExchange).with("#");
+    }
+
+    @Bean
+    public SimpleRabbitListenerContainerFactory deviceEventContainerFactory(
+            ConnectionFactory connectionFactory,
+            MessageConverter messageConverter,
+            @Value("${io.barracks.bigqueryservice.consumers}") int consumers,
+            @Value("${io.barracks.bigqueryservice.maxconsumers}") int maxConsumers,
+            @Value("${io.barracks.bigqueryservice.prefetch}") int prefetch,
+            @Value("${io.barracks.bigqueryservice.streamingconversion}") boolean streamingConversion
+    ) {
+        final SimpleRabbitListenerContainerFactory factory = listenerContainerFactory(connectionFactory, messageConverter, consumers, maxConsumers, prefetch);
+        factory.setAutoStartup(!streamingConversion);
+        return factory;
+    }
+
+    @Bean
+    public SimpleRabbitListenerContainerFactory deviceEventRowsContainerFactory(
+            ConnectionFactory connectionFactory,
+            ObjectMapper objectMapper,
+            TableLayout tableLayout,
+            @Value("${io.barracks.bigqueryservice.consumers}") int consumers,
+            @Value("${io.barracks.bigqueryservice.maxconsumers}") int maxConsumers,
+            @Value("${io.barracks.bigqueryservice.prefetch}") int prefetch,
+            @Value("${io.barracks.bigqueryservice.streamingconversion}") boolean streamingConversion
+    ) {
+        // Consumes the device event queue instead of deviceEventContainerFactory when streaming conversion is enabled
+        final SimpleRabbitListenerContainerFactory factory = listenerContainerFactory(
+                connectionFactory, new DeviceEventRowsConverter(objectMapper, tableLayout), consumers, maxConsumers, prefetch
+        );
+        factory.setAutoStartup(streamingConversion);
+        return factory;
+    }
+
+    @Bean
+    public SimpleRabbitListenerContainerFactory deviceChangeEventContainerFactory(
+            ConnectionFactory connectionFactory,
+            MessageConverter messageConverter,
+            @Value("${io.barracks.eventchange.consumers}") int consumers,
+            @Value("${io.barracks.eventchange.maxconsumers}") int maxConsumers,
+            @Value("${io.barracks.eventchange.prefetch}") int prefetch
+    ) {
+        return listenerContainerFactory(connectionFactory, messageConverter, consumers, maxConsumers, prefetch);
+    }
+
+    private SimpleRabbitListenerContainerFactory listenerContainerFactory(
+            ConnectionFactory connectionFactory,
+            MessageConverter messageConverter,
+            int consumers,
+            int maxConsumers,
+            int prefetch
+    ) {
+        final SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setMessageConverter(messageConverter);
+        factory.setConcurrentConsumers(consumers);
+        factory.setMaxConcurrentConsumers(Math.max(consumers, maxConsumers));
+        factory.setPrefetchCount(prefetch);
+        // Deliveries are acknowledged by the DeliveryAcknowledger once BigQuery accepted their rows
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        return factory;
     }
 
 }
@@ -0,0 +1,401 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.index;
+
+import com.google.cloud.bigquery.InsertAllRequest;
+import io.barracks.bigqueryservice.client.DeviceEventRows;
+import io.barracks.bigqueryservice.client.PackageRows;
+import io.barracks.bigqueryservice.model.DeviceEventHook;
+import io.barracks.bigqueryservice.model.DeviceRequest;
+import io.barracks.bigqueryservice.model.MessageMetadata;
+import io.barracks.bigqueryservice.model.Package;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Live view of the package versions run by the units of each tenant, built from the device events sent to BigQuery so
+ * that dashboards can read it without scanning any table.
+ * <p>
+ * Each package keeps the version last reported by every unit in a primitive map, keyed by a 64-bit hash of the unit id
+ * and holding the index of the version in the list of versions of the package, along with the number of units per
+ * version. The number of tenants, of packages per tenant, of versions per package and of units across every tenant are
+ * capped, what is reported once a cap is reached is left out. Units that have not reported a package for the expiry
+ * period are dropped from it, and so are the packages and tenants left without units. The last version changes of
+ * each tenant are kept in a fixed-size ring.
+ * <p>
+ * The index only holds the events consumed by this instance since it started, so when several instances share the
+ * queue it counts a fraction of the fleet. It is disabled by default, and only fit to be enabled on a single instance.
+ */
+@Slf4j
+@Component
+public class VersionDistributionIndex {
+
+    private final boolean enabled;
+    private final int maxTenants;
+    private final int maxPackages;
+    private final int maxVersions;
+    private final long maxUnits;
+    private final long unitExpiryMillis;
+    private final int recentUpdates;
+    private final CounterService counter;
+
+    private final Map<String, TenantIndex> tenants = new ConcurrentHashMap<>();
+    private final AtomicLong units = new AtomicLong();
+    // Taken shared to record a unit and exclusively to expire units, so that expiry can drop packages and tenants
+    private final ReadWriteLock expiryLock = new ReentrantReadWriteLock();
+
+    private ScheduledExecutorService expiryExecutor;
+
+    @Autowired
+    public VersionDistributionIndex(
+            @Value("${io.barracks.bigqueryservice.index.enabled}") boolean enabled,
+            @Value("${io.barracks.bigqueryservice.index.maxtenants}") int maxTenants,
+            @Value("${io.barracks.bigqueryservice.index.maxpackages}") int maxPackages,
+            @Value("${io.barracks.bigqueryservice.index.maxversions}") int maxVersions,
+            @Value("${io.barracks.bigqueryservice.index.maxunits}") long maxUnits,
+            @Value("${io.barracks.bigqueryservice.index.unitexpirymillis}") long unitExpiryMillis,
+            @Value("${io.barracks.bigqueryservice.index.recentupdates}") int recentUpdates,
+            CounterService counter
+    ) {
+        this.enabled = enabled;
+        this.maxTenants = maxTenants;
+        this.maxPackages = maxPackages;
+        this.maxVersions = maxVersions;
+        this.maxUnits = maxUnits;
+        this.unitExpiryMillis = Math.max(1, unitExpiryMillis);
+        this.recentUpdates = Math.max(1, recentUpdates);
+        this.counter = counter;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        expiryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "version-index-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Units outlive the expiry period by at most a tenth of it
+        final long sweepMillis = Math.max(1000L, unitExpiryMillis / 10);
+        expiryExecutor.scheduleWithFixedDelay(() -> expire(Instant.now()), sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (expiryExecutor != null) {
+            expiryExecutor.shutdownNow();
+        }
+    }
+
+    public void add(DeviceEventHook deviceEventHook, MessageMetadata messageMetadata) {
+        if (!enabled) {
+            return;
+        }
+        final DeviceRequest deviceRequest = deviceEventHook.getDeviceEvent().getRequest();
+        if (deviceRequest.getUnitId() == null) {
+            return;
+        }
+        final TenantIndex tenantIndex = tenantIndex(deviceEventHook.getHook().getGoogleClientSecret().getProjectId());
+        if (tenantIndex == null) {
+            return;
+        }
+        for (Package aPackage : deviceRequest.getPackages()) {
+            record(tenantIndex, deviceRequest.getUnitId(), messageMetadata.getTimestamp(), aPackage.getReference(), aPackage.getVersion().orElse(null));
+        }
+    }
+
+    /**
+     * Indexes rows read straight from a message, which have the one row per package layout.
+     */
+    public void add(DeviceEventRows deviceEventRows) {
+        if (!enabled) {
+            return;
+        }
+        final TenantIndex tenantIndex = tenantIndex(deviceEventRows.getGoogleClientSecret().getProjectId());
+        if (tenantIndex == null) {
+            return;
+        }
+        for (InsertAllRequest.RowToInsert row : deviceEventRows.getRows()) {
+            final Map<String, Object> content = row.getContent();
+            final Map<?, ?> packageRecord = (Map<?, ?>) content.get(PackageRows.PACKAGES);
+            record(tenantIndex, (String) content.get(PackageRows.UNIT_ID), deviceEventRows.getMessageMetadata().getTimestamp(),
+                    (String) packageRecord.get(PackageRows.REFERENCE), (String) packageRecord.get(PackageRows.VERSION));
+        }
+    }
+
+    /**
+     * @return the number of units per version of the package, empty if the package has never been reported.
+     */
+    public VersionDistribution getDistribution(String projectId, String reference) {
+        final TenantIndex tenantIndex = tenants.get(projectId);
+        final PackageIndex packageIndex = tenantIndex == null ? null : tenantIndex.packages.get(reference);
+        if (packageIndex == null) {
+            return VersionDistribution.of(reference, 0, Collections.emptyMap());
+        }
+        return packageIndex.distribution(reference);
+    }
+
+    /**
+     * @return the references of the packages reported by the units of the tenant.
+     */
+    public Set<String> getReferences(String projectId) {
+        final TenantIndex tenantIndex = tenants.get(projectId);
+        return tenantIndex == null ? Collections.emptySet() : new TreeSet<>(tenantIndex.packages.keySet());
+    }
+
+    /**
+     * @return the last version changes of the tenant, most recent first.
+     */
+    public List<VersionUpdate> getRecentUpdates(String projectId, int limit) {
+        final TenantIndex tenantIndex = tenants.get(projectId);
+        return tenantIndex == null ? Collections.emptyList() : tenantIndex.recentUpdates(limit);
+    }
+
+    long getUnits() {
+        return units.get();
+    }
+
+    /**
+     * Drops the units that have not reported a package since the expiry period before now, then the packages and
+     * tenants left without units.
+     */
+    void expire(Instant now) {
+        final int oldestMinute = minuteOf(now.minusMillis(unitExpiryMillis));
+        expiryLock.writeLock().lock();
+        try {
+            tenants.values().removeIf(tenantIndex -> {
+                tenantIndex.packages.values().removeIf(packageIndex -> {
+                    units.addAndGet(-packageIndex.expire(oldestMinute));
+                    return packageIndex.units.size() == 0;
+                });
+                return tenantIndex.packages.isEmpty();
+            });
+        } finally {
+            expiryLock.writeLock().unlock();
+        }
+    }
+
+    private void record(TenantIndex tenantIndex, String unitId, Instant timestamp, String reference, String version) {
+        if (unitId == null || reference == null || version == null) {
+            return;
+        }
+        final String oldVersion;
+        expiryLock.readLock().lock();
+        try {
+            final PackageIndex packageIndex = packageIndex(tenantIndex, reference);
+            if (packageIndex == null) {
+                return;
+            }
+            synchronized (packageIndex) {
+                final long unitKey = hash(unitId);
+                final int oldVersionCode = packageIndex.units.get(unitKey);
+                int versionCode = packageIndex.versionCodes.getOrDefault(version, LongIntHashMap.NO_VALUE);
+                if (oldVersionCode != LongIntHashMap.NO_VALUE && oldVersionCode == versionCode) {
+                    packageIndex.lastSeen.put(unitKey, minuteOf(timestamp));
+                    return;
+                }
+                if (oldVersionCode == LongIntHashMap.NO_VALUE && !reserveUnit()) {
+                    return;
+                }
+                if (versionCode == LongIntHashMap.NO_VALUE) {
+                    if (packageIndex.versions.size() >= maxVersions) {
+                        counter.increment("index.versions.full");
+                        if (oldVersionCode == LongIntHashMap.NO_VALUE) {
+                            units.decrementAndGet();
+                        }
+                        return;
+                    }
+                    versionCode = packageIndex.addVersion(version);
+                }
+                if (oldVersionCode == LongIntHashMap.NO_VALUE) {
+                    oldVersion = null;
+                } else {
+                    packageIndex.counts[oldVersionCode]--;
+                    oldVersion = packageIndex.versions.get(oldVersionCode);
+                }
+                packageIndex.units.put(unitKey, versionCode);
+                packageIndex.lastSeen.put(unitKey, minuteOf(timestamp));
+                packageIndex.counts[versionCode]++;
+            }
+        } finally {
+            expiryLock.readLock().unlock();
+        }
+        if (oldVersion != null) {
+            tenantIndex.addUpdate(VersionUpdate.of(timestamp.toString(), unitId, reference, oldVersion, version));
+        }
+    }
+
+    private boolean reserveUnit() {
+        if (units.incrementAndGet() > maxUnits) {
+            units.decrementAndGet();
+            counter.increment("index.units.full");
+            return false;
+        }
+        return true;
+    }
+
+    private TenantIndex tenantIndex(String projectId) {
+        final TenantIndex tenantIndex = tenants.get(projectId);
+        if (tenantIndex != null) {
+            return tenantIndex;
+        }
+        if (tenants.size() >= maxTenants) {
+            counter.increment("index.tenants.full");
+            return null;
+        }
+        return tenants.computeIfAbsent(projectId, key -> new TenantIndex(recentUpdates));
+    }
+
+    private PackageIndex packageIndex(TenantIndex tenantIndex, String reference) {
+        final PackageIndex packageIndex = tenantIndex.packages.get(reference);
+        if (packageIndex != null) {
+            return packageIndex;
+        }
+        if (tenantIndex.packages.size() >= maxPackages) {
+            counter.increment("index.packages.full");
+            return null;
+        }
+        return tenantIndex.packages.computeIfAbsent(reference, key -> new PackageIndex());
+    }
+
+    private static int minuteOf(Instant timestamp) {
+        return (int) TimeUnit.SECONDS.toMinutes(timestamp.getEpochSecond());
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the unit id, with about one chance in ten million of a collision between a million units.
+     */
+    static long hash(String unitId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < unitId.length(); i++) {
+            hash ^= unitId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static class TenantIndex {
+        private final Map<String, PackageIndex> packages = new ConcurrentHashMap<>();
+        private final VersionUpdate[] updates;
+        private int nextUpdate;
+        private int updateCount;
+
+        TenantIndex(int recentUpdates) {
+            this.updates = new VersionUpdate[recentUpdates];
+        }
+
+        synchronized void addUpdate(VersionUpdate update) {
+            updates[nextUpdate] = update;
+            nextUpdate = (nextUpdate + 1) % updates.length;
+            updateCount = Math.min(updateCount + 1, updates.length);
+        }
+
+        synchronized List<VersionUpdate> recentUpdates(int limit) {
+            final int count = Math.min(Math.max(0, limit), updateCount);
+            final List<VersionUpdate> recent = new ArrayList<>(count);
+            for (int i = 1; i <= count; i++) {
+                recent.add(updates[(nextUpdate - i + updates.length) % updates.length]);
+            }
+            return recent;
+        }
+    }
+
+    private static class PackageIndex {
+        private LongIntHashMap units = new LongIntHashMap(16);
+        // Minute of the last report of each unit, in minutes since the epoch
+        private LongIntHashMap lastSeen = new LongIntHashMap(16);
+        private List<String> versions = new ArrayList<>();
+        private Map<String, Integer> versionCodes = new HashMap<>();
+        private int[] counts = new int[4];
+
+        int addVersion(String version) {
+            final int newCode = versions.size();
+            versions.add(version);
+            versionCodes.put(version, newCode);
+            if (newCode == counts.length) {
+                counts = Arrays.copyOf(counts, counts.length * 2);
+            }
+            return newCode;
+        }
+
+        /**
+         * Rebuilds the package from the units seen since the oldest minute, leaving out the versions they no longer
+         * run.
+         *
+         * @return the number of units dropped.
+         */
+        synchronized int expire(int oldestMinute) {
+            final LongIntHashMap oldUnits = units;
+            final List<String> oldVersions = versions;
+            final int oldSize = oldUnits.size();
+            final LongIntHashMap oldLastSeen = lastSeen;
+            units = new LongIntHashMap(oldSize);
+            lastSeen = new LongIntHashMap(oldSize);
+            versions = new ArrayList<>();
+            versionCodes = new HashMap<>();
+            counts = new int[4];
+            oldLastSeen.forEach((unitKey, minute) -> {
+                final int oldCode = oldUnits.get(unitKey);
+                if (minute >= oldestMinute && oldCode != LongIntHashMap.NO_VALUE) {
+                    final String version = oldVersions.get(oldCode);
+                    final Integer code = versionCodes.get(version);
+                    final int newCode = code == null ? addVersion(version) : code;
+                    units.put(unitKey, newCode);
+                    lastSeen.put(unitKey, minute);
+                    counts[newCode]++;
+                }
+            });
+            return oldSize - units.size();
+        }
+
+        synchronized VersionDistribution distribution(String reference) {
+            final Map<String, Integer> distribution = new TreeMap<>();
+            for (int code = 0; code < versions.size(); code++) {
+                if (counts[code] > 0) {
+                    distribution.put(versions.get(code), counts[code]);
+                }
+            }
+            return VersionDistribution.of(reference, units.size(), distribution);
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.loadjob;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.JobConfiguration;
+import com.google.api.services.bigquery.model.JobConfigurationLoad;
+import com.google.api.services.bigquery.model.JobReference;
+import com.google.api.services.bigquery.model.TableReference;
+import com.google.cloud.HttpTransportOptions;
+import com.google.cloud.bigquery.*;
+import io.barracks.bigqueryservice.client.BigQueryServiceCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Uploads the files with the jobs API itself rather than with {@link BigQuery#writer}, which does not let the caller
+ * choose the id of the job it starts.
+ */
+@Slf4j
+@Component
+public class BigQueryLoadJobs implements LoadJobs {
+
+    // Reasons of the job errors worth submitting the file again
+    private static final List<String> RETRYABLE_REASONS = Arrays.asList("backendError", "internalError", "rateLimitExceeded");
+
+    private static final int CONFLICT = 409;
+
+    private final BigQueryServiceCache bigQueryServiceCache;
+
+    @Autowired
+    public BigQueryLoadJobs(BigQueryServiceCache bigQueryServiceCache) {
+        this.bigQueryServiceCache = bigQueryServiceCache;
+    }
+
+    @Override
+    public void submit(TableId tableId, String privateKeyId, Path file, String jobId) throws IOException {
+        final BigQueryOptions options = getService(tableId.getProject(), privateKeyId).getOptions();
+        final HttpTransportOptions transportOptions = (HttpTransportOptions) options.getTransportOptions();
+        final Bigquery jobs = new Bigquery.Builder(transportOptions.getHttpTransportFactory().create(), JacksonFactory.getDefaultInstance(), transportOptions.getHttpRequestInitializer(options))
+                .setRootUrl(options.getHost())
+                .setApplicationName(BigQueryOptions.getApplicationName())
+                .build();
+        final com.google.api.services.bigquery.model.Job job = new com.google.api.services.bigquery.model.Job()
+                .setJobReference(new JobReference().setProjectId(tableId.getProject()).setJobId(jobId))
+                .setConfiguration(new JobConfiguration().setLoad(new JobConfigurationLoad()
+                        .setDestinationTable(new TableReference()
+                                .setProjectId(tableId.getProject())
+                                .setDatasetId(tableId.getDataset())
+                                .setTableId(tableId.getTable()))
+                        .setSourceFormat(FormatOptions.json().getType())
+                        .setCreateDisposition(JobInfo.CreateDisposition.CREATE_NEVER.name())
+                        .setWriteDisposition(JobInfo.WriteDisposition.WRITE_APPEND.name())));
+        try {
+            jobs.jobs().insert(tableId.getProject(), job, new FileContent("application/octet-stream", file.toFile())).execute();
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() != CONFLICT) {
+                throw e;
+            }
+            // Submitted before the previous run could record it, the file must not be loaded twice
+            log.info("Load job " + jobId + " of " + file + " already submitted");
+        }
+    }
+
+    @Override
+    public Status status(String projectId, String privateKeyId, String jobId) throws IOException {
+        final Job job = getService(projectId, privateKeyId).getJob(jobId);
+        if (job == null) {
+            log.warn("Load job " + jobId + " not found, submitting its file again");
+            return Status.FAILED_RETRYABLE;
+        }
+        if (!job.isDone()) {
+            return Status.RUNNING;
+        }
+        final BigQueryError error = job.getStatus().getError();
+        if (error == null) {
+            return Status.SUCCEEDED;
+        }
+        log.warn("Load job " + jobId + " failed: " + error + ", " + job.getStatus().getExecutionErrors());
+        return RETRYABLE_REASONS.contains(error.getReason()) ? Status.FAILED_RETRYABLE : Status.FAILED;
+    }
+
+    private BigQuery getService(String projectId, String privateKeyId) throws IOException {
+        final BigQuery bigQuery = bigQueryServiceCache.findService(projectId, privateKeyId);
+        if (bigQuery == null) {
+            // Only the messages of the project carry its credentials, the files wait for the next one
+            throw new IOException("No credentials cached for project " + projectId);
+        }
+        return bigQuery;
+    }
+}
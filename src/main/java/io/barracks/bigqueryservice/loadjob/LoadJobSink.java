@@ -0,0 +1,465 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.loadjob;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.cloud.bigquery.TableId;
+import io.barracks.bigqueryservice.model.GoogleClientSecret;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Cheaper alternative to streaming inserts for the tenants that can wait a few minutes for their data: rows are
+ * appended to newline-delimited JSON files on local disk, one per table, and each file is loaded by a BigQuery load
+ * job once it is large or old enough.
+ * <p>
+ * Rows are buffered in memory and written to their file when it is synced, then acknowledged, so that a file never
+ * holds rows whose message may be sent again. The files of a table live in {@code <project>/<dataset>/<table>}:
+ * {@code .part} while being written, {@code .ndjson} once closed, with a {@code .job} file holding the id of their load
+ * job once submitted, and {@code .failed} if BigQuery refused them. Load jobs append to the table itself, template
+ * suffixes being a feature of streaming inserts only.
+ * <p>
+ * The id of a load job is derived from the directory, the file and the number of failed attempts, so that a file
+ * submitted again after a crash hits the job already started for it instead of being loaded twice. File sequences
+ * start from the clock so that a name is never used twice, even once every file of a table has been loaded.
+ * <p>
+ * The credentials of the tenant are not written to the disk, only the id of their private key: the load jobs are
+ * submitted with the credentials cached by the {@link io.barracks.bigqueryservice.client.BigQueryServiceCache}.
+ */
+@Slf4j
+@Component
+public class LoadJobSink {
+
+    static final String PART_EXTENSION = ".part";
+    static final String READY_EXTENSION = ".ndjson";
+    static final String JOB_EXTENSION = ".job";
+    static final String FAILED_EXTENSION = ".failed";
+    static final String ATTEMPT_EXTENSION = ".attempt";
+    static final String KEY_ID_FILE = "privatekeyid";
+    static final String DIRECTORY_ID_FILE = "directoryid";
+
+    private static final byte NEWLINE = '\n';
+
+    private final Set<String> projects;
+    private final Path directory;
+    private final long maxFileBytes;
+    private final long maxFileAgeMillis;
+    private final long syncMillis;
+    private final long jobIntervalMillis;
+    private final LoadJobs loadJobs;
+    private final ObjectMapper mapper;
+    private final CounterService counter;
+    private final ScheduledExecutorService executor;
+
+    private final Map<TableId, TableFiles> tables = new ConcurrentHashMap<>();
+
+    private String directoryId;
+
+    @Autowired
+    public LoadJobSink(
+            @Value("${io.barracks.bigqueryservice.loadjob.projects}") String[] projects,
+            @Value("${io.barracks.bigqueryservice.loadjob.directory}") String directory,
+            @Value("${io.barracks.bigqueryservice.loadjob.maxfilebytes}") long maxFileBytes,
+            @Value("${io.barracks.bigqueryservice.loadjob.maxfileagemillis}") long maxFileAgeMillis,
+            @Value("${io.barracks.bigqueryservice.loadjob.syncmillis}") long syncMillis,
+            @Value("${io.barracks.bigqueryservice.loadjob.jobintervalmillis}") long jobIntervalMillis,
+            LoadJobs loadJobs,
+            ObjectMapper mapper,
+            CounterService counter
+    ) {
+        this(projects, directory, maxFileBytes, maxFileAgeMillis, syncMillis, jobIntervalMillis, loadJobs, mapper, counter,
+                Executors.newScheduledThreadPool(2, runnable -> {
+                    final Thread thread = new Thread(runnable, "bigquery-load-job");
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+    }
+
+    LoadJobSink(String[] projects, String directory, long maxFileBytes, long maxFileAgeMillis, long syncMillis, long jobIntervalMillis,
+                LoadJobs loadJobs, ObjectMapper mapper, CounterService counter, ScheduledExecutorService executor) {
+        this.projects = Arrays.stream(projects).map(String::trim).filter(project -> !project.isEmpty()).collect(Collectors.toSet());
+        this.directory = Paths.get(directory);
+        this.maxFileBytes = maxFileBytes;
+        this.maxFileAgeMillis = maxFileAgeMillis;
+        this.syncMillis = syncMillis;
+        this.jobIntervalMillis = jobIntervalMillis;
+        this.loadJobs = loadJobs;
+        this.mapper = mapper;
+        this.counter = counter;
+        this.executor = executor;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (projects.isEmpty()) {
+            return;
+        }
+        recover();
+        executor.scheduleWithFixedDelay(this::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::processJobs, jobIntervalMillis, jobIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdown();
+        // Completes the rows written since the last sync, the open files are loaded after the restart
+        sync();
+    }
+
+    /**
+     * @return true if the rows of the project are loaded by load jobs instead of streaming inserts.
+     */
+    public boolean accepts(String projectId) {
+        return projects.contains(projectId);
+    }
+
+    /**
+     * Appends the rows to the current file of the table.
+     *
+     * @return a future completed once the rows have been synced to disk.
+     */
+    public CompletableFuture<Void> add(GoogleClientSecret googleClientSecret, TableId tableId, List<InsertAllRequest.RowToInsert> rows) throws IOException {
+        final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (InsertAllRequest.RowToInsert row : rows) {
+            mapper.writeValue(lines, row.getContent());
+            lines.write(NEWLINE);
+        }
+        final TableFiles table = tables.computeIfAbsent(tableId, key -> new TableFiles(tableDirectory(key)));
+        final CompletableFuture<Void> synced = new CompletableFuture<>();
+        synchronized (table) {
+            table.updatePrivateKeyId(googleClientSecret.getPrivateKeyId());
+            if (table.current == null) {
+                table.open();
+            }
+            table.current.write(lines.toByteArray(), synced);
+        }
+        return synced;
+    }
+
+    /**
+     * Syncs the open files to disk, completing the rows written to them, and closes the files large or old enough to
+     * be loaded.
+     */
+    void sync() {
+        final long now = System.currentTimeMillis();
+        for (TableFiles table : tables.values()) {
+            synchronized (table) {
+                if (table.current == null) {
+                    continue;
+                }
+                try {
+                    table.current.sync();
+                    if (table.current.bytes >= maxFileBytes || now - table.current.createdAt >= maxFileAgeMillis) {
+                        table.close();
+                    }
+                } catch (IOException e) {
+                    log.error("Unable to sync " + table.current.path + ", its pending rows will be sent again", e);
+                    table.discard(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Submits a load job for every closed file and follows the jobs already submitted.
+     */
+    void processJobs() {
+        for (TableId tableId : new ArrayList<>(tables.keySet())) {
+            final TableFiles table = tables.get(tableId);
+            final List<Path> files;
+            try (Stream<Path> list = Files.list(table.directory)) {
+                files = list.filter(file -> file.toString().endsWith(READY_EXTENSION)).sorted().collect(Collectors.toList());
+            } catch (IOException e) {
+                log.error("Unable to list the files of " + tableId, e);
+                continue;
+            }
+            for (Path file : files) {
+                try {
+                    processJob(tableId, table, file);
+                } catch (Exception e) {
+                    log.warn("Unable to load " + file + ", retrying later: " + e);
+                    counter.increment("loadjob.error");
+                }
+            }
+        }
+    }
+
+    private void processJob(TableId tableId, TableFiles table, Path file) throws IOException {
+        final String privateKeyId = table.readPrivateKeyId();
+        final Path jobFile = withExtension(file, JOB_EXTENSION);
+        final Path attemptFile = withExtension(file, ATTEMPT_EXTENSION);
+        if (!Files.exists(jobFile)) {
+            final int attempt = readAttempt(attemptFile);
+            final String jobId = jobId(tableId, file, attempt);
+            loadJobs.submit(tableId, privateKeyId, file, jobId);
+            Files.write(jobFile, jobId.getBytes(StandardCharsets.UTF_8));
+            log.debug("Load job " + jobId + " submitted for " + file);
+            counter.increment("loadjob.submitted");
+            return;
+        }
+        final String jobId = new String(Files.readAllBytes(jobFile), StandardCharsets.UTF_8);
+        switch (loadJobs.status(tableId.getProject(), privateKeyId, jobId)) {
+            case RUNNING:
+                return;
+            case SUCCEEDED:
+                Files.delete(file);
+                Files.delete(jobFile);
+                Files.deleteIfExists(attemptFile);
+                counter.increment("loadjob.succeeded");
+                return;
+            case FAILED_RETRYABLE:
+                // Submitted again on the next run, under a new job id
+                final int attempt = readAttempt(attemptFile);
+                Files.write(attemptFile, Integer.toString(attempt + 1).getBytes(StandardCharsets.UTF_8));
+                Files.delete(jobFile);
+                counter.increment("loadjob.retried");
+                return;
+            case FAILED:
+                log.error("Load job " + jobId + " of " + file + " failed, keeping the file for inspection");
+                Files.move(file, withExtension(file, FAILED_EXTENSION), StandardCopyOption.ATOMIC_MOVE);
+                Files.delete(jobFile);
+                Files.deleteIfExists(attemptFile);
+                counter.increment("loadjob.failed");
+        }
+    }
+
+    /**
+     * Closes the files left open by a previous run, dropping their incomplete last line, so that they get loaded.
+     */
+    void recover() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        final List<Path> tableDirectories;
+        try (Stream<Path> files = Files.walk(directory, 3)) {
+            tableDirectories = files.filter(file -> directory.relativize(file).getNameCount() == 3 && Files.isDirectory(file)).collect(Collectors.toList());
+        }
+        for (Path tableDirectory : tableDirectories) {
+            final Path relative = directory.relativize(tableDirectory);
+            final TableId tableId = TableId.of(relative.getName(0).toString(), relative.getName(1).toString(), relative.getName(2).toString());
+            final TableFiles table = new TableFiles(tableDirectory);
+            try (Stream<Path> files = Files.list(tableDirectory)) {
+                for (Path part : files.filter(file -> file.toString().endsWith(PART_EXTENSION)).collect(Collectors.toList())) {
+                    truncateToLastLine(part);
+                    Files.move(part, withExtension(part, READY_EXTENSION), StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            table.sequence = Math.max(table.sequence, nextSequence(tableDirectory));
+            tables.put(tableId, table);
+        }
+    }
+
+    private String jobId(TableId tableId, Path file, int attempt) throws IOException {
+        final String name = file.getFileName().toString();
+        final String jobId = String.join("_", "barracks", directoryId(), tableId.getProject(), tableId.getDataset(), tableId.getTable(), name.substring(0, name.indexOf('.')), Integer.toString(attempt));
+        // Job ids only take letters, numbers, dashes and underscores
+        return jobId.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+
+    /**
+     * @return the id of the directory of this service, tagging its load jobs apart from those of other instances.
+     */
+    private synchronized String directoryId() throws IOException {
+        if (directoryId == null) {
+            final Path idFile = directory.resolve(DIRECTORY_ID_FILE);
+            if (Files.exists(idFile)) {
+                directoryId = new String(Files.readAllBytes(idFile), StandardCharsets.UTF_8);
+            } else {
+                directoryId = UUID.randomUUID().toString();
+                Files.createDirectories(directory);
+                Files.write(idFile, directoryId.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return directoryId;
+    }
+
+    private Path tableDirectory(TableId tableId) {
+        return directory.resolve(tableId.getProject()).resolve(tableId.getDataset()).resolve(tableId.getTable());
+    }
+
+    private static void truncateToLastLine(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long end = channel.size();
+            final ByteBuffer single = ByteBuffer.allocate(1);
+            while (end > 0) {
+                single.clear();
+                channel.read(single, end - 1);
+                if (single.get(0) == NEWLINE) {
+                    break;
+                }
+                end--;
+            }
+            channel.truncate(end);
+        }
+    }
+
+    /**
+     * @return the number of the failed load jobs of a file.
+     */
+    private static int readAttempt(Path attemptFile) throws IOException {
+        return Files.exists(attemptFile) ? Integer.parseInt(new String(Files.readAllBytes(attemptFile), StandardCharsets.UTF_8)) : 0;
+    }
+
+    private static long nextSequence(Path tableDirectory) throws IOException {
+        try (Stream<Path> files = Files.list(tableDirectory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.matches("\\d+\\..*"))
+                    .mapToLong(name -> Long.parseLong(name.substring(0, name.indexOf('.'))) + 1)
+                    .max()
+                    .orElse(0);
+        }
+    }
+
+    private static Path withExtension(Path file, String extension) {
+        final String name = file.getFileName().toString();
+        return file.resolveSibling(name.substring(0, name.indexOf('.')) + extension);
+    }
+
+    private class TableFiles {
+        private final Path directory;
+        private String privateKeyId;
+        private OpenFile current;
+        private long sequence = System.currentTimeMillis();
+
+        TableFiles(Path directory) {
+            this.directory = directory;
+        }
+
+        void updatePrivateKeyId(String keyId) throws IOException {
+            if (keyId != null && !keyId.equals(privateKeyId)) {
+                // Kept on disk so that the files of a restart are loaded with the same key when it is still cached
+                Files.createDirectories(directory);
+                Files.write(directory.resolve(KEY_ID_FILE), keyId.getBytes(StandardCharsets.UTF_8));
+                privateKeyId = keyId;
+            }
+        }
+
+        /**
+         * @return the id of the last private key used for the table, or null to use any key of its project.
+         */
+        String readPrivateKeyId() throws IOException {
+            synchronized (this) {
+                final Path keyIdFile = directory.resolve(KEY_ID_FILE);
+                if (privateKeyId == null && Files.exists(keyIdFile)) {
+                    privateKeyId = new String(Files.readAllBytes(keyIdFile), StandardCharsets.UTF_8);
+                }
+                return privateKeyId;
+            }
+        }
+
+        void open() throws IOException {
+            final Path path = directory.resolve(String.format("%020d", sequence++) + PART_EXTENSION);
+            current = new OpenFile(path, FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), System.currentTimeMillis());
+        }
+
+        void close() throws IOException {
+            current.channel.close();
+            Files.move(current.path, withExtension(current.path, READY_EXTENSION), StandardCopyOption.ATOMIC_MOVE);
+            current = null;
+        }
+
+        /**
+         * Fails the rows not synced yet and closes the file, the rows already synced are still loaded.
+         */
+        void discard(Exception e) {
+            current.pending.forEach(future -> future.completeExceptionally(e));
+            try {
+                // The failed rows are sent again by their message, the lines of the failed sync must not be loaded
+                current.channel.truncate(current.syncedBytes);
+                current.channel.close();
+                if (current.syncedBytes == 0) {
+                    Files.delete(current.path);
+                } else {
+                    Files.move(current.path, withExtension(current.path, READY_EXTENSION), StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException closeException) {
+                log.warn("Unable to close " + current.path, closeException);
+            }
+            current = null;
+        }
+    }
+
+    private static class OpenFile {
+        private final Path path;
+        private final FileChannel channel;
+        private final long createdAt;
+        private final List<CompletableFuture<Void>> pending = new ArrayList<>();
+        private final ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+        private long bytes;
+        private long syncedBytes;
+
+        OpenFile(Path path, FileChannel channel, long createdAt) {
+            this.path = path;
+            this.channel = channel;
+            this.createdAt = createdAt;
+        }
+
+        void write(byte[] lines, CompletableFuture<Void> synced) {
+            buffered.write(lines, 0, lines.length);
+            bytes += lines.length;
+            pending.add(synced);
+        }
+
+        void sync() throws IOException {
+            if (pending.isEmpty()) {
+                return;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(buffered.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            syncedBytes = bytes;
+            buffered.reset();
+            pending.forEach(future -> future.complete(null));
+            pending.clear();
+        }
+    }
+}
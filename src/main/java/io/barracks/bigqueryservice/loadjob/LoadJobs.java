@@ -0,0 +1,55 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.loadjob;
+
+import com.google.cloud.bigquery.TableId;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Jobs API used by the {@link LoadJobSink} to load its files into BigQuery.
+ */
+public interface LoadJobs {
+
+    /**
+     * Uploads a newline-delimited JSON file and starts a job appending its rows to the table, with the credentials of
+     * the project identified by the private key id, or any credentials of the project if it is null. Nothing is loaded
+     * if a job with the same id has already been submitted.
+     */
+    void submit(TableId tableId, String privateKeyId, Path file, String jobId) throws IOException;
+
+    Status status(String projectId, String privateKeyId, String jobId) throws IOException;
+
+    enum Status {
+        RUNNING,
+        SUCCEEDED,
+        /**
+         * The job failed but the file can be submitted again.
+         */
+        FAILED_RETRYABLE,
+        FAILED
+    }
+}
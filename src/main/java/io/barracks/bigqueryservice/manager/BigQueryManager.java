@@ -26,50 +26,169 @@ package io.barracks.bigqueryservice.manager;
 
 
 import io.barracks.bigqueryservice.client.BigQueryClient;
+import io.barracks.bigqueryservice.client.DeviceEventRows;
+import io.barracks.bigqueryservice.client.PipelineMetrics;
+import io.barracks.bigqueryservice.client.TableLayout;
+import io.barracks.bigqueryservice.client.VersionRollup;
+import io.barracks.bigqueryservice.index.VersionDistributionIndex;
 import io.barracks.bigqueryservice.model.DeviceChangeEventHook;
 import io.barracks.bigqueryservice.model.DeviceEvent;
 import io.barracks.bigqueryservice.model.DeviceEventHook;
-import io.barracks.bigqueryservice.model.DeviceRequest;
+import io.barracks.bigqueryservice.model.GoogleClientSecret;
+import io.barracks.bigqueryservice.model.Hook;
+import io.barracks.bigqueryservice.model.MessageMetadata;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.actuate.metrics.CounterService;
 import org.springframework.stereotype.Component;
 
+import java.util.concurrent.CompletableFuture;
+
 @Slf4j
 @Component
 public class BigQueryManager {
 
     private final CounterService counter;
     private BigQueryClient bigQueryClient;
+    private final RetryScheduler retryScheduler;
+    private final TableLayout tableLayout;
+    private final VersionRollup versionRollup;
+    private final VersionDistributionIndex versionDistributionIndex;
+    private final PipelineMetrics pipelineMetrics;
 
     @Autowired
-    public BigQueryManager(BigQueryClient bigQueryClient, CounterService counter) {
+    public BigQueryManager(BigQueryClient bigQueryClient, RetryScheduler retryScheduler, TableLayout tableLayout, VersionRollup versionRollup, VersionDistributionIndex versionDistributionIndex, PipelineMetrics pipelineMetrics, CounterService counter) {
         this.bigQueryClient = bigQueryClient;
+        this.retryScheduler = retryScheduler;
+        this.tableLayout = tableLayout;
+        this.versionRollup = versionRollup;
+        this.versionDistributionIndex = versionDistributionIndex;
+        this.pipelineMetrics = pipelineMetrics;
         this.counter = counter;
     }
 
-    public void sendEventToBigQuery(DeviceEventHook deviceEventHook) {
+    /**
+     * @return a future completed once the event has been accepted by BigQuery, or completed exceptionally if it could
+     * not be sent within the retry budget.
+     */
+    public CompletableFuture<Void> sendEventToBigQuery(DeviceEventHook deviceEventHook, MessageMetadata messageMetadata) {
+        final long start = System.nanoTime();
+        final String projectId = projectId(deviceEventHook.getHook());
+        CompletableFuture<Void> result;
         try {
-            bigQueryClient.sendEventToBigQuery(deviceEventHook);
-            incrementRabbitMQMetric("success");
+            final GoogleClientSecret googleClientSecret = deviceEventHook.getHook().getGoogleClientSecret();
+            index(() -> versionDistributionIndex.add(deviceEventHook, messageMetadata));
+            if (tableLayout.isRollupOnly(projectId)) {
+                versionRollup.add(googleClientSecret, messageMetadata, deviceEventHook.getDeviceEvent().getRequest().getPackages());
+                return rolledUp(deviceEventHook, projectId, start);
+            }
+            result = retryScheduler.execute(() -> bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata));
+            if (tableLayout.isRolledUp(projectId)) {
+                // Counted once its rows are stored, a message sent again after a failed insert is not counted twice
+                result = result.thenRun(() -> versionRollup.add(googleClientSecret, messageMetadata, deviceEventHook.getDeviceEvent().getRequest().getPackages()));
+            }
         } catch (Exception e) {
-            log.warn("Unable to send Device Event Hook to BigQueryService: " + deviceEventHook + " with exception : " + e);
-            incrementRabbitMQMetric("error");
+            result = failedFuture(e);
+        }
+        return result.whenComplete((ignored, e) -> handleResult(deviceEventHook, projectId, start, e));
+    }
+
+    /**
+     * @return a future completed once the rows have been accepted by BigQuery, or completed exceptionally if they could
+     * not be sent within the retry budget.
+     */
+    public CompletableFuture<Void> sendEventToBigQuery(DeviceEventRows deviceEventRows) {
+        if (deviceEventRows.getDeviceEventHook() != null) {
+            // Bound to the models by the converter, as the project does not use the layout of the streamed rows
+            return sendEventToBigQuery(deviceEventRows.getDeviceEventHook(), deviceEventRows.getMessageMetadata());
+        }
+        final long start = System.nanoTime();
+        final String projectId = projectId(deviceEventRows.getGoogleClientSecret());
+        CompletableFuture<Void> result;
+        try {
+            index(() -> versionDistributionIndex.add(deviceEventRows));
+            if (tableLayout.isRollupOnly(projectId)) {
+                versionRollup.add(deviceEventRows);
+                return rolledUp(deviceEventRows, projectId, start);
+            }
+            result = retryScheduler.execute(() -> bigQueryClient.sendEventToBigQuery(deviceEventRows));
+            if (tableLayout.isRolledUp(projectId)) {
+                // Counted once its rows are stored, a message sent again after a failed insert is not counted twice
+                result = result.thenRun(() -> versionRollup.add(deviceEventRows));
+            }
+        } catch (Exception e) {
+            result = failedFuture(e);
         }
+        return result.whenComplete((ignored, e) -> handleResult(deviceEventRows, projectId, start, e));
     }
 
-    public void sendEventToBigQuery(DeviceChangeEventHook deviceChangeEventHook) {
+    /**
+     * @return a future completed once the event has been accepted by BigQuery, or completed exceptionally if it could
+     * not be sent within the retry budget.
+     */
+    public CompletableFuture<Void> sendEventToBigQuery(DeviceChangeEventHook deviceChangeEventHook, MessageMetadata messageMetadata) {
+        final long start = System.nanoTime();
+        final String projectId = projectId(deviceChangeEventHook.getHook());
+        CompletableFuture<Void> result;
         try {
-            final DeviceEvent deviceEvent = deviceChangeEventHook.getDeviceChangeEvent().getDeviceEvent();
-            final DeviceEventHook deviceEventHook = DeviceEventHook.builder()
-                    .deviceEvent(deviceEvent)
-                    .hook(deviceChangeEventHook.getHook())
-                    .build();
+            if (tableLayout.isChangeOnly(projectId)) {
+                result = retryScheduler.execute(() -> bigQueryClient.sendChangeEventToBigQuery(deviceChangeEventHook, messageMetadata));
+            } else {
+                final DeviceEvent deviceEvent = deviceChangeEventHook.getDeviceChangeEvent().getDeviceEvent();
+                final DeviceEventHook deviceEventHook = DeviceEventHook.builder()
+                        .deviceEvent(deviceEvent)
+                        .hook(deviceChangeEventHook.getHook())
+                        .build();
 
-            bigQueryClient.sendEventToBigQuery(deviceEventHook);
-            incrementRabbitMQMetric("success");
+                result = retryScheduler.execute(() -> bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata));
+            }
         } catch (Exception e) {
-            log.warn("Unable to send Device Event Hook to BigQueryService: " + deviceChangeEventHook + " with exception : " + e);
+            result = failedFuture(e);
+        }
+        return result.whenComplete((ignored, e) -> handleResult(deviceChangeEventHook, projectId, start, e));
+    }
+
+    /**
+     * Feeds the version distribution index, which only serves dashboards, so that none of its failures holds back the
+     * delivery of the event.
+     */
+    private void index(Runnable indexing) {
+        try {
+            indexing.run();
+        } catch (Exception e) {
+            log.warn("Unable to index the package versions of an event", e);
+            counter.increment("index.error");
+        }
+    }
+
+    /**
+     * Acknowledges an event only counted in the rollup, the count is written by the next flush of the rollup.
+     */
+    private CompletableFuture<Void> rolledUp(Object hook, String projectId, long start) {
+        handleResult(hook, projectId, start, null);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private static String projectId(Hook hook) {
+        return hook == null ? null : projectId(hook.getGoogleClientSecret());
+    }
+
+    private static String projectId(GoogleClientSecret googleClientSecret) {
+        return googleClientSecret == null ? null : googleClientSecret.getProjectId();
+    }
+
+    private static CompletableFuture<Void> failedFuture(Exception e) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        result.completeExceptionally(e);
+        return result;
+    }
+
+    private void handleResult(Object hook, String projectId, long start, Throwable e) {
+        pipelineMetrics.recordMessage(projectId, start, e == null);
+        if (e == null) {
+            incrementRabbitMQMetric("success");
+        } else {
+            log.warn("Unable to send Device Event Hook to BigQueryService: " + hook + " with exception : " + e);
             incrementRabbitMQMetric("error");
         }
     }
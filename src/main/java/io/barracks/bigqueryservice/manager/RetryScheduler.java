@@ -0,0 +1,144 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.manager;
+
+import io.barracks.bigqueryservice.client.BigQueryErrors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.*;
+
+/**
+ * Runs an asynchronous operation again, after an exponential backoff with jitter, as long as it fails with a
+ * retryable error and its retry budget is not exhausted.
+ * <p>
+ * Attempts are scheduled on a dedicated executor so that the listener threads never wait for a retry. Permanent
+ * errors, such as invalid credentials or rows not matching the table schema, are never retried.
+ */
+@Slf4j
+@Component
+public class RetryScheduler {
+
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double multiplier;
+    private final ScheduledExecutorService retryExecutor;
+    private final CounterService counter;
+
+    @Autowired
+    public RetryScheduler(
+            @Value("${io.barracks.bigqueryservice.retry.maxattempts}") int maxAttempts,
+            @Value("${io.barracks.bigqueryservice.retry.initialdelaymillis}") long initialDelayMillis,
+            @Value("${io.barracks.bigqueryservice.retry.maxdelaymillis}") long maxDelayMillis,
+            @Value("${io.barracks.bigqueryservice.retry.multiplier}") double multiplier,
+            CounterService counter
+    ) {
+        this(maxAttempts, initialDelayMillis, maxDelayMillis, multiplier, Executors.newScheduledThreadPool(2, runnable -> {
+            final Thread thread = new Thread(runnable, "bigquery-retry");
+            thread.setDaemon(true);
+            return thread;
+        }), counter);
+    }
+
+    RetryScheduler(int maxAttempts, long initialDelayMillis, long maxDelayMillis, double multiplier, ScheduledExecutorService retryExecutor, CounterService counter) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = Math.max(initialDelayMillis, maxDelayMillis);
+        this.multiplier = multiplier;
+        this.retryExecutor = retryExecutor;
+        this.counter = counter;
+    }
+
+    /**
+     * @return a future completed with the result of the first successful attempt, or completed exceptionally with the
+     * error of the last attempt once the error is permanent or the retry budget is exhausted.
+     */
+    public <T> CompletableFuture<T> execute(Callable<CompletableFuture<T>> operation) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(operation, 1, result);
+        return result;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        retryExecutor.shutdownNow();
+    }
+
+    boolean isRetryable(Throwable e) {
+        return BigQueryErrors.isRetryable(e);
+    }
+
+    long delayBeforeAttempt(int attempt) {
+        final double backoff = initialDelayMillis * Math.pow(multiplier, attempt - 2);
+        final long delay = (long) Math.min(maxDelayMillis, backoff);
+        // Equal jitter: keeps at least half of the backoff while spreading the retries of a brownout
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private <T> void attempt(Callable<CompletableFuture<T>> operation, int attempt, CompletableFuture<T> result) {
+        CompletableFuture<T> future;
+        try {
+            future = operation.call();
+        } catch (Exception e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((value, e) -> {
+            if (e == null) {
+                result.complete(value);
+            } else if (!isRetryable(e)) {
+                incrementRetryMetric("permanent");
+                result.completeExceptionally(e);
+            } else if (attempt >= maxAttempts) {
+                incrementRetryMetric("exhausted");
+                result.completeExceptionally(e);
+            } else {
+                final long delay = delayBeforeAttempt(attempt + 1);
+                log.debug("Attempt " + attempt + " failed with " + e + ", retrying in " + delay + "ms");
+                incrementRetryMetric("scheduled");
+                schedule(() -> attempt(operation, attempt + 1, result), delay, e, result);
+            }
+        });
+    }
+
+    private <T> void schedule(Runnable retry, long delay, Throwable e, CompletableFuture<T> result) {
+        try {
+            retryExecutor.schedule(retry, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException rejected) {
+            // Shutting down, the failure is reported to the caller instead of being retried
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void incrementRetryMetric(String status) {
+        counter.increment("bigquery.retry." + status);
+    }
+
+}
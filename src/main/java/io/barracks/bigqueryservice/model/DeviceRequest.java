@@ -28,8 +28,6 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import lombok.Builder;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
@@ -52,7 +50,7 @@ public class DeviceRequest {
     @NotBlank
     private final String unitId;
 
-    private final ObjectNode customClientData;
+    private final RawJson customClientData;
 
     private final List<Package> packages;
 
@@ -71,7 +69,7 @@ public class DeviceRequest {
     }
 
     @JsonProperty
-    public ObjectNode getCustomClientData() {
-        return Optional.ofNullable(customClientData).orElse(new ObjectNode(JsonNodeFactory.instance));
+    public RawJson getCustomClientData() {
+        return Optional.ofNullable(customClientData).orElse(RawJson.EMPTY_OBJECT);
     }
 }
@@ -0,0 +1,117 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.model;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import lombok.EqualsAndHashCode;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * A JSON object kept as its compact text instead of a tree of nodes. The text is copied token by token from the
+ * incoming message and written back as is, so large payloads that are only stored never get a tree allocated for
+ * them nor get serialized again for every row.
+ */
+@EqualsAndHashCode
+@JsonSerialize(using = RawJson.Serializer.class)
+@JsonDeserialize(using = RawJson.Deserializer.class)
+public final class RawJson {
+
+    public static final RawJson EMPTY_OBJECT = new RawJson("{}");
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private static final ObjectMapper MAPPER = new ObjectMapper(FACTORY);
+
+    private final String json;
+
+    private RawJson(String json) {
+        this.json = json;
+    }
+
+    public static RawJson of(JsonNode node) {
+        return new RawJson(node.toString());
+    }
+
+    /**
+     * Parses the JSON into a tree, for the few uses that need to look into it.
+     */
+    public ObjectNode toObjectNode() throws IOException {
+        return MAPPER.readValue(json, ObjectNode.class);
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+
+    static class Serializer extends StdSerializer<RawJson> {
+
+        private static final long serialVersionUID = 1L;
+
+        Serializer() {
+            super(RawJson.class);
+        }
+
+        @Override
+        public void serialize(RawJson value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeRawValue(value.json);
+        }
+    }
+
+    static class Deserializer extends StdDeserializer<RawJson> {
+
+        private static final long serialVersionUID = 1L;
+
+        Deserializer() {
+            super(RawJson.class);
+        }
+
+        @Override
+        public RawJson deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                return (RawJson) context.handleUnexpectedToken(RawJson.class, parser);
+            }
+            final StringWriter writer = new StringWriter();
+            try (JsonGenerator generator = FACTORY.createGenerator(writer)) {
+                generator.copyCurrentStructure(parser);
+            }
+            return new RawJson(writer.toString());
+        }
+    }
+}
@@ -60,13 +60,19 @@ public class Version {
     public static Version fromJson(
             @JsonProperty("packageRef") String reference,
             @JsonProperty("id") String version,
+            @JsonProperty("url") String url,
+            @JsonProperty("md5") String md5,
             @JsonProperty("length") long size,
+            @JsonProperty("filename") String filename,
             @JsonProperty("metadata") Map<String, ?> customUpdateData
     ) {
         return builder()
                 .reference(reference)
                 .version(version)
+                .url(url)
+                .md5(md5)
                 .size(size)
+                .filename(filename)
                 .customUpdateData(Optional.ofNullable(customUpdateData).orElse(Collections.emptyMap()))
                 .build();
     }
@@ -0,0 +1,181 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Acknowledges manually acknowledged deliveries once they have been processed, with a single multiple-ack covering
+ * every delivery completed since the previous one.
+ * <p>
+ * A multiple-ack can only be sent up to the lowest delivery still in progress on the channel, so the deliveries
+ * completed after it wait for it to complete. Deliveries that never reached the listener, such as messages that
+ * could not be converted, are covered by the next multiple-ack and therefore discarded. The deliveries of a channel
+ * are forgotten once it shuts down, the broker redelivering its unacknowledged messages.
+ */
+@Slf4j
+@Component
+public class DeliveryAcknowledger {
+
+    private final Map<Channel, Deliveries> deliveries = new ConcurrentHashMap<>();
+    private final Executor ackExecutor;
+
+    public DeliveryAcknowledger() {
+        this(Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "amqp-ack");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    DeliveryAcknowledger(Executor ackExecutor) {
+        this.ackExecutor = ackExecutor;
+    }
+
+    /**
+     * Registers a delivery, must be called by the listener before it starts processing it.
+     */
+    public void track(Channel channel, long deliveryTag) {
+        Deliveries channelDeliveries = deliveries.get(channel);
+        if (channelDeliveries == null) {
+            final Deliveries created = new Deliveries();
+            channelDeliveries = deliveries.putIfAbsent(channel, created);
+            if (channelDeliveries == null) {
+                channelDeliveries = created;
+                // Registered outside of the map update, the listener runs at once if the channel is already closed
+                channel.addShutdownListener(cause -> deliveries.remove(channel, created));
+            }
+        }
+        channelDeliveries.track(deliveryTag);
+    }
+
+    public void acknowledge(Channel channel, long deliveryTag) {
+        final Deliveries channelDeliveries = deliveries.get(channel);
+        if (channelDeliveries != null && channelDeliveries.complete(deliveryTag)) {
+            // Acks are sent asynchronously so that the deliveries completed together share the same multiple-ack
+            ackExecutor.execute(() -> flush(channel, channelDeliveries));
+        }
+    }
+
+    public void reject(Channel channel, long deliveryTag, boolean requeue) {
+        final Deliveries channelDeliveries = deliveries.get(channel);
+        if (channelDeliveries == null) {
+            return;
+        }
+        synchronized (channelDeliveries) {
+            try {
+                channelDeliveries.forget(deliveryTag);
+                channel.basicNack(deliveryTag, false, requeue);
+            } catch (Exception e) {
+                discard(channel, e);
+                return;
+            }
+        }
+        // Deliveries completed after the rejected one may be acknowledged now
+        ackExecutor.execute(() -> flush(channel, channelDeliveries));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (ackExecutor instanceof ExecutorService) {
+            ((ExecutorService) ackExecutor).shutdown();
+        }
+    }
+
+    private void flush(Channel channel, Deliveries channelDeliveries) {
+        synchronized (channelDeliveries) {
+            final long deliveryTag = channelDeliveries.acknowledgeableTag();
+            if (deliveryTag < 0) {
+                return;
+            }
+            try {
+                channel.basicAck(deliveryTag, true);
+            } catch (Exception e) {
+                discard(channel, e);
+            }
+        }
+    }
+
+    private void discard(Channel channel, Exception e) {
+        // The broker redelivers every unacknowledged message of a closed channel
+        log.warn("Unable to acknowledge deliveries on channel " + channel + ", they will be redelivered", e);
+        deliveries.remove(channel);
+    }
+
+    private static class Deliveries {
+        private final NavigableSet<Long> pending = new TreeSet<>();
+        private final NavigableSet<Long> completed = new TreeSet<>();
+        private boolean flushScheduled;
+
+        synchronized void track(long deliveryTag) {
+            pending.add(deliveryTag);
+        }
+
+        /**
+         * @return true if a flush has to be scheduled for this delivery.
+         */
+        synchronized boolean complete(long deliveryTag) {
+            if (!pending.remove(deliveryTag)) {
+                return false;
+            }
+            completed.add(deliveryTag);
+            if (flushScheduled) {
+                return false;
+            }
+            flushScheduled = true;
+            return true;
+        }
+
+        synchronized void forget(long deliveryTag) {
+            pending.remove(deliveryTag);
+            completed.remove(deliveryTag);
+        }
+
+        /**
+         * @return the highest tag that can be acknowledged with a multiple-ack, or -1 if there is none.
+         */
+        synchronized long acknowledgeableTag() {
+            flushScheduled = false;
+            final NavigableSet<Long> acknowledgeable = pending.isEmpty() ? completed : completed.headSet(pending.first(), false);
+            if (acknowledgeable.isEmpty()) {
+                return -1;
+            }
+            final long deliveryTag = acknowledgeable.last();
+            acknowledgeable.clear();
+            return deliveryTag;
+        }
+    }
+}
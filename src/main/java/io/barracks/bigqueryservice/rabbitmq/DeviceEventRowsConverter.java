@@ -0,0 +1,244 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.rabbitmq;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.bigquery.InsertAllRequest;
+import io.barracks.bigqueryservice.client.DeviceEventRows;
+import io.barracks.bigqueryservice.client.PackageRows;
+import io.barracks.bigqueryservice.client.TableLayout;
+import io.barracks.bigqueryservice.model.DeviceEventHook;
+import io.barracks.bigqueryservice.model.GoogleClientSecret;
+import io.barracks.bigqueryservice.model.MessageMetadata;
+import io.barracks.bigqueryservice.model.RawJson;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads a device event hook message with a streaming parser straight into the rows to insert, instead of binding it
+ * to the immutable models first. Only the fields stored in BigQuery are read, everything else is skipped without
+ * being materialized.
+ * <p>
+ * The streamed rows have the one row per package layout: the messages of the projects using nested rows, which also
+ * need the versions resolved for the request, are bound to the models once their project is known.
+ * <p>
+ * This converter only reads messages.
+ */
+public class DeviceEventRowsConverter implements MessageConverter {
+
+    private final ObjectMapper mapper;
+
+    private final TableLayout tableLayout;
+
+    public DeviceEventRowsConverter(ObjectMapper mapper, TableLayout tableLayout) {
+        this.mapper = mapper;
+        this.tableLayout = tableLayout;
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) {
+        throw new MessageConversionException("Device event rows cannot be written to a message");
+    }
+
+    @Override
+    public DeviceEventRows fromMessage(Message message) {
+        final MessageMetadata messageMetadata = DeviceMessageReceiver.buildMessageMetadata(message);
+        final Request request = new Request();
+        GoogleClientSecret googleClientSecret = null;
+        try (JsonParser parser = mapper.getFactory().createParser(message.getBody())) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                parser.nextToken();
+                if ("hook".equals(name)) {
+                    googleClientSecret = readHook(parser);
+                } else if ("deviceEvent".equals(name)) {
+                    readDeviceEvent(parser, request);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            throw new MessageConversionException("Failed to read device event rows", e);
+        }
+
+        if (googleClientSecret == null || !request.read) {
+            throw new MessageConversionException("Message has no hook credentials or no device request");
+        }
+        if (tableLayout.isNested(googleClientSecret.getProjectId())) {
+            try {
+                return DeviceEventRows.of(mapper.readValue(message.getBody(), DeviceEventHook.class), messageMetadata);
+            } catch (IOException e) {
+                throw new MessageConversionException("Failed to read device event hook", e);
+            }
+        }
+        return DeviceEventRows.of(googleClientSecret, messageMetadata, request.toRows(messageMetadata));
+    }
+
+    private GoogleClientSecret readHook(JsonParser parser) throws IOException {
+        if (!isObject(parser)) {
+            return null;
+        }
+        GoogleClientSecret googleClientSecret = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            parser.nextToken();
+            if ("googleClientSecret".equals(name)) {
+                googleClientSecret = mapper.readValue(parser, GoogleClientSecret.class);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return googleClientSecret;
+    }
+
+    private void readDeviceEvent(JsonParser parser, Request request) throws IOException {
+        if (!isObject(parser)) {
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            parser.nextToken();
+            if ("request".equals(name) && isObject(parser)) {
+                readRequest(parser, request);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readRequest(JsonParser parser, Request request) throws IOException {
+        request.read = true;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            parser.nextToken();
+            switch (name) {
+                case "userId":
+                    request.userId = readText(parser);
+                    break;
+                case "unitId":
+                    request.unitId = readText(parser);
+                    break;
+                case "ipAddress":
+                    request.ipAddress = readText(parser);
+                    break;
+                case "userAgent":
+                    request.userAgent = readText(parser);
+                    break;
+                case "customClientData":
+                    if (isObject(parser)) {
+                        request.customClientData = mapper.readValue(parser, RawJson.class);
+                    }
+                    break;
+                case "packages":
+                    readPackages(parser, request);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+    }
+
+    private void readPackages(JsonParser parser, Request request) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String reference = null;
+            String version = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                parser.nextToken();
+                if ("reference".equals(name)) {
+                    reference = readText(parser);
+                } else if ("version".equals(name)) {
+                    version = readText(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            request.references.add(reference);
+            request.versions.add(version);
+        }
+    }
+
+    private static String readText(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken().isScalarValue()) {
+            return parser.getValueAsString();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    private static boolean isObject(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+            return true;
+        }
+        parser.skipChildren();
+        return false;
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected) {
+        if (actual != expected) {
+            throw new MessageConversionException("Expected " + expected + " but got " + actual);
+        }
+    }
+
+    /**
+     * The fields of the device request that end up in the rows, filled in while the message is read.
+     */
+    private static class Request {
+        private boolean read;
+        private String userId;
+        private String unitId;
+        private String ipAddress;
+        private String userAgent;
+        private RawJson customClientData = RawJson.EMPTY_OBJECT;
+        private final List<String> references = new ArrayList<>();
+        private final List<String> versions = new ArrayList<>();
+
+        private List<InsertAllRequest.RowToInsert> toRows(MessageMetadata messageMetadata) {
+            if (references.isEmpty()) {
+                return Collections.emptyList();
+            }
+            final String customClientDataJson = customClientData.toString();
+            final List<InsertAllRequest.RowToInsert> rows = new ArrayList<>(references.size());
+            for (int i = 0; i < references.size(); i++) {
+                rows.add(PackageRows.of(messageMetadata, userId, unitId, ipAddress, userAgent, customClientDataJson, references.get(i), versions.get(i)));
+            }
+            return rows;
+        }
+    }
+}
@@ -24,27 +24,57 @@
 
 package io.barracks.bigqueryservice.rabbitmq;
 
+import com.google.common.hash.Hashing;
+import com.rabbitmq.client.Channel;
+import io.barracks.bigqueryservice.capture.TrafficCapture;
+import io.barracks.bigqueryservice.client.DeviceEventRows;
 import io.barracks.bigqueryservice.manager.BigQueryManager;
 import io.barracks.bigqueryservice.model.DeviceChangeEventHook;
 import io.barracks.bigqueryservice.model.DeviceEventHook;
-import io.barracks.bigqueryservice.model.DeviceRequest;
+import io.barracks.bigqueryservice.model.MessageMetadata;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.rabbit.annotation.Exchange;
 import org.springframework.amqp.rabbit.annotation.Queue;
 import org.springframework.amqp.rabbit.annotation.QueueBinding;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.actuate.metrics.CounterService;
 import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Component;
 
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
 @Component
 public class DeviceMessageReceiver {
 
     private final BigQueryManager bigQueryManager;
 
+    private final DeliveryAcknowledger deliveryAcknowledger;
+
+    private final ParkingLot parkingLot;
+
+    private final TrafficCapture trafficCapture;
+
     @Autowired
-    DeviceMessageReceiver(BigQueryManager bigQueryManager) {
+    DeviceMessageReceiver(BigQueryManager bigQueryManager, DeliveryAcknowledger deliveryAcknowledger, ParkingLot parkingLot, TrafficCapture trafficCapture) {
         this.bigQueryManager = bigQueryManager;
+        this.deliveryAcknowledger = deliveryAcknowledger;
+        this.parkingLot = parkingLot;
+        this.trafficCapture = trafficCapture;
+    }
+
+    @RabbitListener(
+            bindings = @QueueBinding(
+                    value = @Queue(value = "${io.barracks.bigqueryservice.queuename}", durable = "true", autoDelete = "false"),
+                    exchange = @Exchange(value = "${io.barracks.amqp.exchangename}", type = "topic", durable = "true"),
+                    key = "${io.barracks.bigqueryservice.routingkey}"
+            ),
+            containerFactory = "deviceEventContainerFactory"
+    )
+    public void receiveMessage(@Payload DeviceEventHook deviceEventHook, Message message, Channel channel) {
+        process(message, channel, metadata -> bigQueryManager.sendEventToBigQuery(deviceEventHook, metadata));
     }
 
     @RabbitListener(
@@ -52,10 +82,11 @@ public class DeviceMessageReceiver {
                     value = @Queue(value = "${io.barracks.bigqueryservice.queuename}", durable = "true", autoDelete = "false"),
                     exchange = @Exchange(value = "${io.barracks.amqp.exchangename}", type = "topic", durable = "true"),
                     key = "${io.barracks.bigqueryservice.routingkey}"
-            )
+            ),
+            containerFactory = "deviceEventRowsContainerFactory"
     )
-    public void receiveMessage(@Payload DeviceEventHook deviceEventHook) {
-        bigQueryManager.sendEventToBigQuery(deviceEventHook);
+    public void receiveMessage(@Payload DeviceEventRows deviceEventRows, Message message, Channel channel) {
+        process(message, channel, deviceEventRows.getMessageMetadata(), metadata -> bigQueryManager.sendEventToBigQuery(deviceEventRows));
     }
 
     @RabbitListener(
@@ -63,10 +94,49 @@ public class DeviceMessageReceiver {
                     value = @Queue(value = "${io.barracks.eventchange.queuename}", durable = "true", autoDelete = "false"),
                     exchange = @Exchange(value = "${io.barracks.amqp.exchangename}", type = "topic", durable = "true"),
                     key = "${io.barracks.eventchange.routingkey}"
-            )
+            ),
+            containerFactory = "deviceChangeEventContainerFactory"
     )
-    public void receiveMessage(@Payload DeviceChangeEventHook deviceChangeEventHook) {
-        bigQueryManager.sendEventToBigQuery(deviceChangeEventHook);
+    public void receiveMessage(@Payload DeviceChangeEventHook deviceChangeEventHook, Message message, Channel channel) {
+        process(message, channel, metadata -> bigQueryManager.sendEventToBigQuery(deviceChangeEventHook, metadata));
+    }
+
+    private void process(Message message, Channel channel, Function<MessageMetadata, CompletableFuture<Void>> processing) {
+        process(message, channel, buildMessageMetadata(message), processing);
+    }
+
+    private void process(Message message, Channel channel, MessageMetadata messageMetadata, Function<MessageMetadata, CompletableFuture<Void>> processing) {
+        trafficCapture.record(message);
+        final long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        deliveryAcknowledger.track(channel, deliveryTag);
+        CompletableFuture<Void> processed;
+        try {
+            processed = processing.apply(messageMetadata);
+        } catch (Exception e) {
+            // The tag is tracked, it must still be parked or rejected
+            processed = new CompletableFuture<>();
+            processed.completeExceptionally(e);
+        }
+        processed.whenComplete((result, e) -> {
+            if (e == null || parkingLot.park(message, e)) {
+                deliveryAcknowledger.acknowledge(channel, deliveryTag);
+            } else {
+                // Neither sent nor parked, the broker keeps the message
+                deliveryAcknowledger.reject(channel, deliveryTag, true);
+            }
+        });
+    }
+
+    static MessageMetadata buildMessageMetadata(Message message) {
+        final MessageProperties properties = message.getMessageProperties();
+        // The publisher timestamp is the same for every delivery of a message, unlike the time of reception, which is
+        // left out of the insertIds. It only has a one second resolution, so messages without id are told apart by the
+        // hash of their body.
+        return MessageMetadata.builder()
+                .messageId(properties.getMessageId() == null ? Hashing.murmur3_128().hashBytes(message.getBody()).toString() : properties.getMessageId())
+                .timestamp(properties.getTimestamp() == null ? Instant.now() : properties.getTimestamp().toInstant())
+                .receptionTimestamp(properties.getTimestamp() == null)
+                .build();
     }
 
 }
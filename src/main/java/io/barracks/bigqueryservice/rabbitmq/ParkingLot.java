@@ -0,0 +1,136 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.rabbitmq;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Moves the messages that could not be sent to BigQuery to the dead-letter exchange, whose parking-lot queue keeps
+ * them until they are replayed.
+ * <p>
+ * Parked messages keep their body, properties and routing key, along with headers telling where they came from and
+ * why they failed, so that they can be shovelled back to their original exchange once the cause has been fixed.
+ * <p>
+ * A message only counts as parked once the broker confirmed its copy and routed it to a queue. A copy that is nacked,
+ * returned as unroutable or not confirmed in time leaves the original delivery to be requeued.
+ */
+@Slf4j
+@Component
+public class ParkingLot {
+
+    static final String ORIGINAL_EXCHANGE_HEADER = "x-original-exchange";
+    static final String ORIGINAL_ROUTING_KEY_HEADER = "x-original-routing-key";
+    static final String FAILURE_HEADER = "x-failure";
+    static final String PARKED_AT_HEADER = "x-parked-at";
+    static final String PARKING_ID_HEADER = "x-parking-id";
+
+    private final RabbitTemplate rabbitTemplate;
+    private final String deadLetterExchangeName;
+    private final long confirmTimeoutMillis;
+    private final CounterService counter;
+
+    private final Map<String, CompletableFuture<Boolean>> confirms = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ParkingLot(
+            ConnectionFactory connectionFactory,
+            @Value("${io.barracks.amqp.deadletter.exchangename}") String deadLetterExchangeName,
+            @Value("${io.barracks.amqp.parkinglot.confirmtimeoutmillis}") long confirmTimeoutMillis,
+            CounterService counter
+    ) {
+        this(new RabbitTemplate(connectionFactory), deadLetterExchangeName, confirmTimeoutMillis, counter);
+    }
+
+    ParkingLot(RabbitTemplate rabbitTemplate, String deadLetterExchangeName, long confirmTimeoutMillis, CounterService counter) {
+        this.rabbitTemplate = rabbitTemplate;
+        this.deadLetterExchangeName = deadLetterExchangeName;
+        this.confirmTimeoutMillis = confirmTimeoutMillis;
+        this.counter = counter;
+        rabbitTemplate.setMandatory(true);
+        rabbitTemplate.setConfirmCallback((correlationData, ack, cause) -> confirm(correlationData == null ? null : correlationData.getId(), ack));
+        // Returns come before the confirm of their message, which then no longer counts
+        rabbitTemplate.setReturnCallback((returned, replyCode, replyText, exchange, routingKey) ->
+                confirm((String) returned.getMessageProperties().getHeaders().get(PARKING_ID_HEADER), false));
+    }
+
+    /**
+     * @return true if the message has been published to the dead-letter exchange and can be acknowledged.
+     */
+    public boolean park(Message message, Throwable failure) {
+        final MessageProperties properties = message.getMessageProperties();
+        properties.setHeader(ORIGINAL_EXCHANGE_HEADER, properties.getReceivedExchange());
+        properties.setHeader(ORIGINAL_ROUTING_KEY_HEADER, properties.getReceivedRoutingKey());
+        properties.setHeader(FAILURE_HEADER, String.valueOf(failure));
+        properties.setHeader(PARKED_AT_HEADER, Instant.now().toString());
+        final String parkingId = UUID.randomUUID().toString();
+        properties.setHeader(PARKING_ID_HEADER, parkingId);
+        final CompletableFuture<Boolean> confirm = new CompletableFuture<>();
+        confirms.put(parkingId, confirm);
+        try {
+            rabbitTemplate.send(deadLetterExchangeName, properties.getReceivedRoutingKey(), message, new CorrelationData(parkingId));
+            if (!confirm.get(confirmTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                log.error("Unable to park message " + properties.getMessageId() + " failed with " + failure + ", the broker did not take it");
+                counter.increment("message.parked.error");
+                return false;
+            }
+        } catch (AmqpException | ExecutionException | TimeoutException e) {
+            log.error("Unable to park message " + properties.getMessageId() + " failed with " + failure, e);
+            counter.increment("message.parked.error");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            counter.increment("message.parked.error");
+            return false;
+        } finally {
+            confirms.remove(parkingId);
+        }
+        log.warn("Message " + properties.getMessageId() + " parked after failing with " + failure);
+        counter.increment("message.parked.success");
+        return true;
+    }
+
+    private void confirm(String parkingId, boolean parked) {
+        final CompletableFuture<Boolean> confirm = parkingId == null ? null : confirms.get(parkingId);
+        if (confirm != null) {
+            confirm.complete(parked);
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.rest;
+
+import io.barracks.bigqueryservice.index.VersionDistribution;
+import io.barracks.bigqueryservice.index.VersionDistributionIndex;
+import io.barracks.bigqueryservice.index.VersionUpdate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads the version distribution index, only exposed when the index is enabled.
+ * <p>
+ * The resource does not check who asks: it returns the unit ids of any tenant, and must only be reachable from the
+ * internal network, like the actuator endpoints of the service.
+ */
+@RestController
+@ConditionalOnProperty(name = "io.barracks.bigqueryservice.index.enabled", havingValue = "true")
+@RequestMapping("/projects/{projectId}")
+public class VersionDistributionResource {
+
+    private final VersionDistributionIndex versionDistributionIndex;
+
+    @Autowired
+    public VersionDistributionResource(VersionDistributionIndex versionDistributionIndex) {
+        this.versionDistributionIndex = versionDistributionIndex;
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value = "/packages")
+    public Set<String> getPackages(@PathVariable("projectId") String projectId) {
+        return versionDistributionIndex.getReferences(projectId);
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value = "/packages/{reference:.+}/versions")
+    public VersionDistribution getVersionDistribution(@PathVariable("projectId") String projectId, @PathVariable("reference") String reference) {
+        return versionDistributionIndex.getDistribution(projectId, reference);
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value = "/updates")
+    public List<VersionUpdate> getRecentUpdates(@PathVariable("projectId") String projectId, @RequestParam(value = "limit", defaultValue = "20") int limit) {
+        return versionDistributionIndex.getRecentUpdates(projectId, limit);
+    }
+}
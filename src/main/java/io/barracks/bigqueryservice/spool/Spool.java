@@ -0,0 +1,251 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.spool;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.bigquery.TableId;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Local write-ahead journal of the rows BigQuery could not take, replayed by the {@link SpoolReplayer} once it
+ * recovers, so that an outage is absorbed on disk instead of in RabbitMQ.
+ * <p>
+ * Rows of a project are spooled as soon as an insert for this project failed with a transient error of the project
+ * itself, and until the replayer manages to insert spooled rows again. The records of each table are kept in their own
+ * directory, {@code <project>/<dataset>/<table>}, as a sequence of memory-mapped segments forced to the disk every
+ * sync interval.
+ */
+@Slf4j
+@Component
+public class Spool {
+
+    static final String SEGMENT_EXTENSION = ".seg";
+
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final long syncIntervalMillis;
+    private final ObjectMapper mapper;
+    private final CounterService counter;
+
+    private final Map<TableId, TableSpool> tables = new ConcurrentHashMap<>();
+    private final Set<String> unhealthyProjects = ConcurrentHashMap.newKeySet();
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    private ScheduledExecutorService syncExecutor;
+
+    @Autowired
+    public Spool(
+            @Value("${io.barracks.bigqueryservice.spool.enabled}") boolean enabled,
+            @Value("${io.barracks.bigqueryservice.spool.directory}") String directory,
+            @Value("${io.barracks.bigqueryservice.spool.segmentsize}") int segmentSize,
+            @Value("${io.barracks.bigqueryservice.spool.maxbytes}") long maxBytes,
+            @Value("${io.barracks.bigqueryservice.spool.syncintervalmillis}") long syncIntervalMillis,
+            ObjectMapper mapper,
+            CounterService counter
+    ) {
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.mapper = mapper;
+        this.counter = counter;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        recover();
+        if (enabled && syncIntervalMillis > 0) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "bigquery-spool-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncExecutor.scheduleWithFixedDelay(this::sync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (syncExecutor != null) {
+            syncExecutor.shutdownNow();
+        }
+        sync();
+    }
+
+    public void recover() throws IOException {
+        if (!enabled || !Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory, 4)) {
+            final List<Path> segmentFiles = files
+                    .filter(file -> file.getFileName().toString().endsWith(SEGMENT_EXTENSION))
+                    .sorted()
+                    .collect(Collectors.toList());
+            for (Path file : segmentFiles) {
+                final Path tableDirectory = directory.relativize(file.getParent());
+                if (tableDirectory.getNameCount() != 3) {
+                    log.warn("Ignoring spool segment " + file + " outside of a table directory");
+                    continue;
+                }
+                final TableId tableId = TableId.of(tableDirectory.getName(0).toString(), tableDirectory.getName(1).toString(), tableDirectory.getName(2).toString());
+                final String name = file.getFileName().toString();
+                final SpoolSegment segment = SpoolSegment.open(file, Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length())));
+                tableSpool(tableId).add(segment);
+                usedBytes.addAndGet(segment.capacity());
+                // Until replayed rows prove otherwise, the project is considered as still unavailable
+                if (segment.hasPendingRecords()) {
+                    unhealthyProjects.add(tableId.getProject());
+                }
+            }
+        }
+        log.info("Recovered " + tables.size() + " spooled tables using " + usedBytes.get() + " bytes");
+    }
+
+    /**
+     * @return true if the rows of the project have to be spooled instead of being sent to BigQuery.
+     */
+    public boolean shouldSpool(String projectId) {
+        return enabled && unhealthyProjects.contains(projectId);
+    }
+
+    public void markUnhealthy(String projectId) {
+        if (enabled && unhealthyProjects.add(projectId)) {
+            log.warn("BigQuery unavailable for project " + projectId + ", spooling its rows");
+        }
+    }
+
+    public void markHealthy(String projectId) {
+        if (unhealthyProjects.remove(projectId)) {
+            log.info("BigQuery available again for project " + projectId + ", stopping spooling its rows");
+        }
+    }
+
+    /**
+     * Journals the record on disk.
+     *
+     * @return false if the spool is disabled, full, or the record could not be written.
+     */
+    public boolean append(SpoolRecord record) {
+        if (!enabled) {
+            return false;
+        }
+        try {
+            final byte[] payload = mapper.writeValueAsBytes(record);
+            if (SpoolSegment.HEADER_SIZE + payload.length > segmentSize) {
+                log.error("Record of " + payload.length + " bytes too large for spool segments of " + segmentSize + " bytes");
+                return false;
+            }
+            final TableSpool tableSpool = tableSpool(record.toTableId());
+            synchronized (tableSpool) {
+                if (!tableSpool.append(payload)) {
+                    if (usedBytes.get() + segmentSize > maxBytes) {
+                        log.error("Spool full, unable to spool " + record);
+                        counter.increment("spool.append.full");
+                        return false;
+                    }
+                    tableSpool.add(tableSpool.newSegment(segmentSize));
+                    usedBytes.addAndGet(segmentSize);
+                    tableSpool.append(payload);
+                }
+            }
+            counter.increment("spool.append.success");
+            return true;
+        } catch (IOException e) {
+            log.error("Unable to spool " + record, e);
+            counter.increment("spool.append.error");
+            return false;
+        }
+    }
+
+    /**
+     * Forces the records appended and replayed since the previous sync to the disk.
+     */
+    public void sync() {
+        for (TableSpool tableSpool : tables.values()) {
+            try {
+                tableSpool.sync();
+            } catch (RuntimeException e) {
+                log.error("Unable to sync spooled records of " + tableSpool.getDirectory(), e);
+            }
+        }
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    Collection<TableSpool> tables() {
+        return tables.values();
+    }
+
+    /**
+     * Stops spooling the rows of the project of a drained table, unless another of its tables still has records to
+     * replay.
+     */
+    void markDrained(TableSpool tableSpool) {
+        final Optional<String> projectId = tables.entrySet().stream()
+                .filter(table -> table.getValue() == tableSpool)
+                .map(table -> table.getKey().getProject())
+                .findFirst();
+        if (projectId.isPresent() && tables.entrySet().stream().noneMatch(table -> table.getKey().getProject().equals(projectId.get()) && table.getValue().hasPendingRecords())) {
+            markHealthy(projectId.get());
+        }
+    }
+
+    SpoolRecord read(SpoolSegment.Entry entry) throws IOException {
+        return mapper.readValue(entry.getPayload(), SpoolRecord.class);
+    }
+
+    void markReplayed(TableSpool tableSpool, SpoolSegment.Entry entry) throws IOException {
+        usedBytes.addAndGet(-tableSpool.markReplayed(entry));
+    }
+
+    private TableSpool tableSpool(TableId tableId) {
+        return tables.computeIfAbsent(tableId, key -> new TableSpool(directory.resolve(key.getProject()).resolve(key.getDataset()).resolve(key.getTable())));
+    }
+
+}
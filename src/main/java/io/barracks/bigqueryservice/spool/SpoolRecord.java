@@ -0,0 +1,111 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.spool;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.cloud.bigquery.TableId;
+import io.barracks.bigqueryservice.model.GoogleClientSecret;
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Rows journaled in the spool, with everything needed to insert them once BigQuery is available again.
+ * <p>
+ * The credentials of the tenant are not written to the disk, only the id of their private key: the replayed rows are
+ * sent with the credentials cached by the {@link io.barracks.bigqueryservice.client.BigQueryServiceCache}.
+ */
+@Builder(toBuilder = true)
+@Getter
+@EqualsAndHashCode
+@ToString
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class SpoolRecord {
+
+    private final String projectId;
+
+    private final String privateKeyId;
+
+    private final String datasetName;
+
+    private final String tableName;
+
+    private final String templateSuffix;
+
+    private final List<Row> rows;
+
+    @JsonCreator
+    public static SpoolRecord fromJson() {
+        return builder().build();
+    }
+
+    public static SpoolRecord of(GoogleClientSecret googleClientSecret, TableId tableId, String templateSuffix, List<InsertAllRequest.RowToInsert> rows) {
+        return builder()
+                .projectId(tableId.getProject())
+                .privateKeyId(googleClientSecret.getPrivateKeyId())
+                .datasetName(tableId.getDataset())
+                .tableName(tableId.getTable())
+                .templateSuffix(templateSuffix)
+                .rows(rows.stream().map(row -> new Row(row.getId(), row.getContent())).collect(Collectors.toList()))
+                .build();
+    }
+
+    public TableId toTableId() {
+        return TableId.of(projectId, datasetName, tableName);
+    }
+
+    public InsertAllRequest toInsertAllRequest() {
+        return InsertAllRequest.newBuilder(toTableId())
+                .setRows(rows.stream().map(row -> InsertAllRequest.RowToInsert.of(row.getInsertId(), row.getContent())).collect(Collectors.toList()))
+                .setTemplateSuffix(templateSuffix)
+                .build();
+    }
+
+    @Getter
+    @EqualsAndHashCode
+    @ToString
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Row {
+
+        private final String insertId;
+
+        private final Map<String, Object> content;
+
+        @JsonCreator
+        Row(@JsonProperty("insertId") String insertId,
+            @JsonProperty("content") Map<String, Object> content) {
+            this.insertId = insertId;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.spool;
+
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.cloud.bigquery.InsertAllResponse;
+import io.barracks.bigqueryservice.client.BigQueryClient;
+import io.barracks.bigqueryservice.client.BigQueryErrors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains the spool in the background: the records of each table are replayed in order, the tables in parallel.
+ * <p>
+ * A table stops being drained at the first transient error and is tried again on the next run. Rows BigQuery will
+ * never accept are dropped with an error log, as they would otherwise block their table forever. Replayed rows go
+ * through the circuit breaker and the insert caps of their project like the live ones, and the project only stops
+ * being spooled once every one of its tables has been drained.
+ */
+@Slf4j
+@Component
+public class SpoolReplayer {
+
+    // Reason of the rows that can never be inserted
+    private static final String INVALID_ROW_REASON = "invalid";
+
+    private final Spool spool;
+    private final BigQueryClient bigQueryClient;
+    private final long intervalMillis;
+    private final ScheduledExecutorService replayExecutor;
+    private final CounterService counter;
+
+    @Autowired
+    public SpoolReplayer(
+            Spool spool,
+            BigQueryClient bigQueryClient,
+            @Value("${io.barracks.bigqueryservice.spool.replayintervalmillis}") long intervalMillis,
+            @Value("${io.barracks.bigqueryservice.spool.replaythreads}") int threads,
+            CounterService counter
+    ) {
+        this(spool, bigQueryClient, intervalMillis, Executors.newScheduledThreadPool(Math.max(1, threads), runnable -> {
+            final Thread thread = new Thread(runnable, "bigquery-spool-replay");
+            thread.setDaemon(true);
+            return thread;
+        }), counter);
+    }
+
+    SpoolReplayer(Spool spool, BigQueryClient bigQueryClient, long intervalMillis, ScheduledExecutorService replayExecutor, CounterService counter) {
+        this.spool = spool;
+        this.bigQueryClient = bigQueryClient;
+        this.intervalMillis = intervalMillis;
+        this.replayExecutor = replayExecutor;
+        this.counter = counter;
+    }
+
+    @PostConstruct
+    public void start() {
+        replayExecutor.scheduleWithFixedDelay(this::replay, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        replayExecutor.shutdownNow();
+    }
+
+    void replay() {
+        for (TableSpool tableSpool : spool.tables()) {
+            if (tableSpool.hasPendingRecords() && tableSpool.startDraining()) {
+                try {
+                    replayExecutor.execute(() -> {
+                        try {
+                            drain(tableSpool);
+                        } finally {
+                            tableSpool.stopDraining();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    tableSpool.stopDraining();
+                    return;
+                }
+            }
+        }
+    }
+
+    void drain(TableSpool tableSpool) {
+        SpoolSegment.Entry entry;
+        while ((entry = tableSpool.next()) != null) {
+            if (Thread.currentThread().isInterrupted() || !replay(tableSpool, entry)) {
+                return;
+            }
+        }
+        spool.markDrained(tableSpool);
+    }
+
+    /**
+     * @return false if the record could not be replayed yet and the table has to be drained again later.
+     */
+    private boolean replay(TableSpool tableSpool, SpoolSegment.Entry entry) {
+        final SpoolRecord record;
+        try {
+            record = spool.read(entry);
+        } catch (IOException e) {
+            log.error("Dropping unreadable spooled record in " + tableSpool.getDirectory(), e);
+            return drop(tableSpool, entry);
+        }
+
+        try {
+            final InsertAllRequest request = record.toInsertAllRequest();
+            InsertAllResponse response = bigQueryClient.insertSpooledRows(record.getPrivateKeyId(), request);
+            if (response.hasErrors()) {
+                final Set<Long> invalidRows = invalidRows(response);
+                if (invalidRows.isEmpty()) {
+                    log.warn("Spooled rows of " + record + " rejected, retrying later: " + response.getInsertErrors());
+                    return false;
+                }
+                log.error("Dropping invalid spooled rows " + response.getInsertErrors() + " of " + record);
+                counter.increment("spool.replay.dropped");
+                // The valid rows have been stopped along with the invalid ones, they are sent again without them
+                final List<InsertAllRequest.RowToInsert> validRows = new ArrayList<>();
+                for (int index = 0; index < request.getRows().size(); index++) {
+                    if (!invalidRows.contains((long) index)) {
+                        validRows.add(request.getRows().get(index));
+                    }
+                }
+                if (!validRows.isEmpty()) {
+                    response = bigQueryClient.insertSpooledRows(record.getPrivateKeyId(), InsertAllRequest.newBuilder(request.getTable())
+                            .setRows(validRows)
+                            .setTemplateSuffix(request.getTemplateSuffix())
+                            .build());
+                    if (response.hasErrors()) {
+                        log.warn("Spooled rows of " + record + " rejected, retrying later: " + response.getInsertErrors());
+                        return false;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            if (BigQueryErrors.isRetryable(e)) {
+                log.debug("Unable to replay spooled rows of " + record + ", retrying later: " + e);
+                spool.markUnhealthy(record.getProjectId());
+                return false;
+            }
+            log.error("Dropping spooled rows of " + record + " permanently rejected", e);
+            counter.increment("spool.replay.dropped");
+            return drop(tableSpool, entry);
+        }
+
+        counter.increment("spool.replay.success");
+        return drop(tableSpool, entry);
+    }
+
+    private static Set<Long> invalidRows(InsertAllResponse response) {
+        final Set<Long> invalidRows = new HashSet<>();
+        for (Map.Entry<Long, List<BigQueryError>> error : response.getInsertErrors().entrySet()) {
+            if (error.getValue().stream().anyMatch(rowError -> INVALID_ROW_REASON.equals(rowError.getReason()))) {
+                invalidRows.add(error.getKey());
+            }
+        }
+        return invalidRows;
+    }
+
+    private boolean drop(TableSpool tableSpool, SpoolSegment.Entry entry) {
+        try {
+            spool.markReplayed(tableSpool, entry);
+            return true;
+        } catch (IOException e) {
+            log.error("Unable to release spooled record in " + tableSpool.getDirectory(), e);
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.spool;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of fixed size, mapped in memory, holding spooled records one after the other.
+ * <p>
+ * Each record is written as its length, the CRC32 of its payload, a state byte and the payload itself. A record whose
+ * length or checksum does not match marks the end of the segment, such as a write torn by a crash. Replayed records
+ * are flagged in place so that they are skipped after a restart.
+ * <p>
+ * Writes go to the page cache and outlive a crash of the process, they are only forced to the disk by {@link #sync()}
+ * so that spooling costs no msync per record.
+ */
+@Slf4j
+class SpoolSegment {
+
+    static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES + 1;
+
+    private static final byte PENDING = 0;
+    private static final byte REPLAYED = 1;
+
+    @Getter
+    private final Path path;
+    @Getter
+    private final long sequence;
+    private final MappedByteBuffer buffer;
+
+    private int writePosition;
+    private int readPosition;
+    private boolean sealed;
+    private int pendingRecords;
+    private boolean dirty;
+
+    private SpoolSegment(Path path, long sequence, MappedByteBuffer buffer) {
+        this.path = path;
+        this.sequence = sequence;
+        this.buffer = buffer;
+    }
+
+    static SpoolSegment create(Path path, long sequence, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new SpoolSegment(path, sequence, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    static SpoolSegment open(Path path, long sequence) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final SpoolSegment segment = new SpoolSegment(path, sequence, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            segment.recover();
+            return segment;
+        }
+    }
+
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    synchronized boolean append(byte[] payload) {
+        if (sealed || writePosition + HEADER_SIZE + payload.length > buffer.capacity()) {
+            return false;
+        }
+        buffer.position(writePosition + HEADER_SIZE);
+        buffer.put(payload);
+        // The length is written last, a record is not visible until it is complete
+        buffer.putInt(writePosition + Integer.BYTES, (int) checksum(payload, 0, payload.length));
+        buffer.put(writePosition + Integer.BYTES + Integer.BYTES, PENDING);
+        buffer.putInt(writePosition, payload.length);
+        dirty = true;
+        writePosition += HEADER_SIZE + payload.length;
+        pendingRecords++;
+        return true;
+    }
+
+    /**
+     * @return the oldest record not replayed yet, or null if every record of the segment has been replayed.
+     */
+    synchronized Entry next() {
+        while (readPosition < writePosition) {
+            final int length = buffer.getInt(readPosition);
+            final int position = readPosition;
+            if (buffer.get(position + Integer.BYTES + Integer.BYTES) == PENDING) {
+                final byte[] payload = new byte[length];
+                buffer.position(position + HEADER_SIZE);
+                buffer.get(payload);
+                return new Entry(this, position, payload);
+            }
+            readPosition += HEADER_SIZE + length;
+        }
+        return null;
+    }
+
+    synchronized void markReplayed(Entry entry) {
+        if (buffer.get(entry.getPosition() + Integer.BYTES + Integer.BYTES) == REPLAYED) {
+            return;
+        }
+        buffer.put(entry.getPosition() + Integer.BYTES + Integer.BYTES, REPLAYED);
+        dirty = true;
+        pendingRecords--;
+        if (entry.getPosition() == readPosition) {
+            readPosition += HEADER_SIZE + entry.getPayload().length;
+        }
+    }
+
+    /**
+     * Forces the records appended and replayed since the previous sync to the disk.
+     */
+    synchronized void sync() {
+        if (dirty) {
+            buffer.force();
+            dirty = false;
+        }
+    }
+
+    synchronized boolean hasPendingRecords() {
+        return pendingRecords > 0;
+    }
+
+    void delete() throws IOException {
+        // The mapping itself is released once the buffer is garbage collected
+        Files.deleteIfExists(path);
+    }
+
+    private void recover() {
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            final int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+                break;
+            }
+            final int crc = buffer.getInt(position + Integer.BYTES);
+            final byte[] payload = new byte[length];
+            buffer.position(position + HEADER_SIZE);
+            buffer.get(payload);
+            if ((int) checksum(payload, 0, length) != crc) {
+                log.warn("Corrupted record at " + position + " in " + path + ", ignoring the end of the segment");
+                break;
+            }
+            if (buffer.get(position + Integer.BYTES + Integer.BYTES) == PENDING) {
+                pendingRecords++;
+            }
+            position += HEADER_SIZE + length;
+        }
+        writePosition = position;
+        // Records appended after a corrupted one would be hidden by it on the next recovery
+        sealed = position + HEADER_SIZE <= buffer.capacity() && buffer.getInt(position) != 0;
+    }
+
+    private static long checksum(byte[] payload, int offset, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload, offset, length);
+        return crc.getValue();
+    }
+
+    @Getter
+    static class Entry {
+        private final SpoolSegment segment;
+        private final int position;
+        private final byte[] payload;
+
+        Entry(SpoolSegment segment, int position, byte[] payload) {
+            this.segment = segment;
+            this.position = position;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.spool;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Ordered segments holding the records spooled for one table. Records are appended to the newest segment and
+ * replayed from the oldest one, whose file is deleted once all of its records have been replayed.
+ */
+@Slf4j
+class TableSpool {
+
+    private static final String SEGMENT_FORMAT = "%020d" + Spool.SEGMENT_EXTENSION;
+
+    @Getter
+    private final Path directory;
+    private final Deque<SpoolSegment> segments = new ArrayDeque<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    TableSpool(Path directory) {
+        this.directory = directory;
+    }
+
+    synchronized void add(SpoolSegment segment) {
+        segments.addLast(segment);
+    }
+
+    synchronized boolean append(byte[] payload) {
+        final SpoolSegment last = segments.peekLast();
+        return last != null && last.append(payload);
+    }
+
+    synchronized long nextSequence() {
+        final SpoolSegment last = segments.peekLast();
+        return last == null ? 0 : last.getSequence() + 1;
+    }
+
+    SpoolSegment newSegment(int size) throws IOException {
+        Files.createDirectories(directory);
+        final long sequence = nextSequence();
+        return SpoolSegment.create(directory.resolve(String.format(SEGMENT_FORMAT, sequence)), sequence, size);
+    }
+
+    synchronized SpoolSegment.Entry next() {
+        for (SpoolSegment segment : segments) {
+            final SpoolSegment.Entry entry = segment.next();
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Flags the record as replayed and deletes the segments left without pending records.
+     *
+     * @return the number of bytes released on disk.
+     */
+    synchronized long markReplayed(SpoolSegment.Entry entry) throws IOException {
+        entry.getSegment().markReplayed(entry);
+        long released = 0;
+        // The newest segment is kept while it can still take records
+        while (segments.size() > 1 && !segments.peekFirst().hasPendingRecords()) {
+            final SpoolSegment segment = segments.removeFirst();
+            segment.delete();
+            released += segment.capacity();
+            log.debug("Spool segment " + segment.getPath() + " replayed and deleted");
+        }
+        return released;
+    }
+
+    synchronized void sync() {
+        segments.forEach(SpoolSegment::sync);
+    }
+
+    synchronized boolean hasPendingRecords() {
+        return segments.stream().anyMatch(SpoolSegment::hasPendingRecords);
+    }
+
+    /**
+     * @return false if the table is already being drained.
+     */
+    boolean startDraining() {
+        return draining.compareAndSet(false, true);
+    }
+
+    void stopDraining() {
+        draining.set(false);
+    }
+
+}
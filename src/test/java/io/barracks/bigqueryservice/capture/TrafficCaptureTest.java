@@ -0,0 +1,171 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.capture;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.util.FileCopyUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TrafficCaptureTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private CounterService counter;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void record_whenStopped_shouldWriteRedactedMessagesWithTheirArrivalTime() throws Exception {
+        // Given
+        final TrafficCapture capture = spy(capture(true, 1L << 20, 1L << 30));
+        doReturn(1000L).doReturn(2500L).when(capture).now();
+        final Message first = message("first", "devices.v2.tenant");
+        final Message second = message("second", "devices.change.v2.tenant");
+
+        // When
+        capture.record(first);
+        capture.record(second);
+        capture.stop();
+
+        // Then
+        final List<CaptureRecord> records = readAll();
+        assertThat(records).extracting(CaptureRecord::getArrivalMillis).containsExactly(1000L, 2500L);
+        assertThat(records).extracting(CaptureRecord::getRoutingKey).containsExactly("devices.v2.tenant", "devices.change.v2.tenant");
+        assertThat(records).extracting(CaptureRecord::getMessageId).containsExactly("first", "second");
+        final JsonNode secret = mapper.readTree(records.get(0).getBody()).path("hook").path("googleClientSecret");
+        assertThat(secret.path("private_key").asText()).isEqualTo(TrafficCapture.REDACTED);
+        assertThat(secret.path("private_key_id").asText()).isEqualTo(TrafficCapture.REDACTED);
+        assertThat(secret.path("client_email").asText()).isEqualTo(TrafficCapture.REDACTED);
+        assertThat(secret.path("project_id").asText()).isEqualTo("ID of the project");
+        assertThat(mapper.readTree(records.get(0).getBody()).path("deviceEvent")).isEqualTo(mapper.readTree(first.getBody()).path("deviceEvent"));
+        verify(counter, times(2)).increment("capture.record.success");
+    }
+
+    @Test
+    public void record_whenFileFull_shouldStartAnotherFile() throws Exception {
+        // Given
+        final TrafficCapture capture = capture(true, 1L, 1L << 30);
+
+        // When
+        capture.record(message("first", "devices.v2.tenant"));
+        capture.record(message("second", "devices.v2.tenant"));
+        capture.stop();
+
+        // Then
+        assertThat(CaptureFiles.list(folder.getRoot().toPath())).hasSize(2);
+        assertThat(readAll()).extracting(CaptureRecord::getMessageId).containsExactly("first", "second");
+    }
+
+    @Test
+    public void record_whenBudgetSpent_shouldStopRecordingWithoutRedacting() throws Exception {
+        // Given
+        final TrafficCapture capture = spy(capture(true, 1L, 1L));
+
+        // When
+        capture.record(message("first", "devices.v2.tenant"));
+        capture.record(message("second", "devices.v2.tenant"));
+        capture.stop();
+
+        // Then
+        assertThat(readAll()).extracting(CaptureRecord::getMessageId).containsExactly("first");
+        verify(capture, times(1)).redact(any());
+    }
+
+    @Test
+    public void record_whenBodyIsNotJson_shouldSkipIt() throws Exception {
+        // Given
+        final TrafficCapture capture = capture(true, 1L << 20, 1L << 30);
+        final MessageProperties properties = new MessageProperties();
+        properties.setMessageId("broken");
+
+        // When
+        capture.record(new Message("{broken".getBytes(StandardCharsets.UTF_8), properties));
+        capture.stop();
+
+        // Then
+        assertThat(folder.getRoot().list()).isEmpty();
+        verify(counter).increment("capture.record.skipped");
+    }
+
+    @Test
+    public void record_whenDisabled_shouldNotWriteAnything() throws Exception {
+        // Given
+        final TrafficCapture capture = capture(false, 1L << 20, 1L << 30);
+
+        // When
+        capture.record(message("first", "devices.v2.tenant"));
+        capture.stop();
+
+        // Then
+        assertThat(folder.getRoot().list()).isEmpty();
+        verifyZeroInteractions(counter);
+    }
+
+    private TrafficCapture capture(boolean enabled, long maxFileBytes, long maxBytes) {
+        return new TrafficCapture(enabled, folder.getRoot().getPath(), maxFileBytes, maxBytes, mapper, counter);
+    }
+
+    private Message message(String messageId, String routingKey) throws IOException {
+        final MessageProperties properties = new MessageProperties();
+        properties.setMessageId(messageId);
+        properties.setReceivedRoutingKey(routingKey);
+        final byte[] body = FileCopyUtils.copyToByteArray(getClass().getResourceAsStream("/io/barracks/bigqueryservice/rabbitmq/deviceEventHook.json"));
+        return new Message(body, properties);
+    }
+
+    private List<CaptureRecord> readAll() throws IOException {
+        final List<CaptureRecord> records = new ArrayList<>();
+        for (Path file : CaptureFiles.list(folder.getRoot().toPath())) {
+            try (CaptureFiles.Reader reader = CaptureFiles.open(file)) {
+                CaptureRecord record;
+                while ((record = reader.next()) != null) {
+                    records.add(record);
+                }
+            }
+        }
+        return records;
+    }
+}
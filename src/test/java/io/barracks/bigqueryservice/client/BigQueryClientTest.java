@@ -25,31 +25,53 @@
 package io.barracks.bigqueryservice.client;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.api.gax.core.RetrySettings;
-import com.google.auth.oauth2.ServiceAccountCredentials;
-import com.google.cloud.HttpTransportOptions;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.google.cloud.bigquery.*;
+import com.google.common.collect.ImmutableMap;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import io.barracks.bigqueryservice.client.exception.BigQueryClientException;
+import io.barracks.bigqueryservice.loadjob.LoadJobSink;
+import io.barracks.bigqueryservice.model.DeviceChangeEventHook;
 import io.barracks.bigqueryservice.model.DeviceEventHook;
 import io.barracks.bigqueryservice.model.DeviceRequest;
 import io.barracks.bigqueryservice.model.GoogleClientSecret;
+import io.barracks.bigqueryservice.model.MessageMetadata;
+import io.barracks.bigqueryservice.model.Package;
+import io.barracks.bigqueryservice.model.RawJson;
+import io.barracks.bigqueryservice.model.ResolvedVersions;
+import io.barracks.bigqueryservice.model.Version;
+import io.barracks.bigqueryservice.spool.Spool;
+import io.barracks.bigqueryservice.spool.SpoolRecord;
+import io.barracks.bigqueryservice.utils.DeviceChangeEventHookUtils;
 import io.barracks.bigqueryservice.utils.DeviceEventHookUtils;
 import io.barracks.bigqueryservice.utils.DeviceEventUtils;
 import io.barracks.bigqueryservice.utils.DeviceRequestUtils;
-import org.joda.time.Duration;
+import io.barracks.bigqueryservice.utils.GoogleClientSecretUtils;
+import io.barracks.bigqueryservice.utils.MessageMetadataUtils;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Spy;
 import org.mockito.internal.verification.Times;
 import org.mockito.runners.MockitoJUnitRunner;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.boot.actuate.metrics.CounterService;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
 
@@ -67,20 +89,44 @@ public class BigQueryClientTest {
     private InsertAllResponse response;
 
     @Mock
-    private ObjectMapper mapper;
+    private BigQueryServiceCache bigQueryServiceCache;
+
+    @Mock
+    private BigQueryTableRegistry bigQueryTableRegistry;
+
+    @Mock
+    private Spool spool;
+
+    @Mock
+    private LoadJobSink loadJobSink;
+
+    @Mock
+    private TableLayout tableLayout;
+
+    @Mock
+    private PipelineMetrics pipelineMetrics;
+
+    @Spy
+    private ProjectCircuitBreaker projectCircuitBreaker = new ProjectCircuitBreaker(5, 60000L, mock(CounterService.class));
+
+    // One row per batch so that every row is inserted synchronously
+    @Spy
+    private InsertBatcher insertBatcher = new InsertBatcher(1, InsertBatcher.MAX_BYTES_PER_REQUEST, 1000L, Executors.newSingleThreadScheduledExecutor(),
+            new InsertExecutor(1, 1, Runnable::run, mock(CounterService.class)));
 
     @Test
     @SuppressFBWarnings(value = "RV_RETURN_VALUE_IGNORED_NO_SIDE_EFFECT", justification = "mock doReturn")
     public void sendDataToBigQuery_whenInsertFails_shouldCreateTableAndDatasetAndLogErrors() throws Exception {
         // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
         final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
 
-        doReturn(bigQuery).when(bigQueryClient).buildBigQueryCredentialsAndProjectId(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
         doReturn(response).when(bigQuery).insertAll(any());
         doReturn(true).when(response).hasErrors();
 
         // When
-        bigQueryClient.sendEventToBigQuery(deviceEventHook);
+        bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
 
         // Then
         verify(bigQuery).create(any(TableInfo.class));
@@ -94,14 +140,15 @@ public class BigQueryClientTest {
     @SuppressFBWarnings(value = "RV_RETURN_VALUE_IGNORED_NO_SIDE_EFFECT", justification = "mock doReturn")
     public void sendDataToBigQuery_whenTableAndDatasetExistAndSucceeds_shouldCreateTableAndDatasetAndSendRequest() throws Exception {
         // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
         final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
 
-        doReturn(bigQuery).when(bigQueryClient).buildBigQueryCredentialsAndProjectId(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
         doReturn(response).when(bigQuery).insertAll(any());
         doReturn(false).when(response).hasErrors();
 
         // When
-        bigQueryClient.sendEventToBigQuery(deviceEventHook);
+        bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
 
         // Then
         verify(bigQuery).create(any(TableInfo.class));
@@ -114,6 +161,7 @@ public class BigQueryClientTest {
     @SuppressFBWarnings(value = "RV_RETURN_VALUE_IGNORED_NO_SIDE_EFFECT", justification = "mock doReturn")
     public void sendDataToBigQuery_whenNoUserAgentAndIPAddress_shouldCreateTableAndDatasetAndSendRequest() throws Exception {
         // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
         final DeviceRequest request = DeviceRequestUtils.getDeviceRequest().toBuilder()
                 .ipAddress(null)
                 .userAgent(null)
@@ -129,12 +177,12 @@ public class BigQueryClientTest {
                 )
                 .build();
 
-        doReturn(bigQuery).when(bigQueryClient).buildBigQueryCredentialsAndProjectId(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
         doReturn(response).when(bigQuery).insertAll(any());
         doReturn(false).when(response).hasErrors();
 
         // When
-        bigQueryClient.sendEventToBigQuery(deviceEventHook);
+        bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
 
         // Then
         verify(bigQuery).create(any(TableInfo.class));
@@ -144,40 +192,633 @@ public class BigQueryClientTest {
     }
 
     @Test
-    public void buildBigQueryCredentialsAndProjectId_whenAllIsFine_shouldSetCredentialsAndProjectId() throws IOException {
-        //Given
-        final ObjectMapper objectMapper = new ObjectMapper();
-        final ClassPathResource resource = new ClassPathResource("googleClientSecret.json", getClass());
-        final GoogleClientSecret googleClientSecret = objectMapper.readValue(resource.getInputStream(), GoogleClientSecret.class);
-        final RetrySettings retrySettings = RetrySettings.newBuilder().setMaxAttempts(10)
-                .setMaxRetryDelay(Duration.millis(1000L))
-                .setTotalTimeout(Duration.millis(2000L))
-                .setInitialRetryDelay(Duration.millis(250L))
-                .setRetryDelayMultiplier(1.0)
-                .setInitialRpcTimeout(Duration.millis(2000L))
-                .setRpcTimeoutMultiplier(1.0)
-                .setMaxRpcTimeout(Duration.millis(2000L))
+    @SuppressWarnings("unchecked")
+    public void sendDataToBigQuery_shouldQueueAllPackagesOfTheEventInOneBatch() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final ArgumentCaptor<InsertBatcher.BatchKey> key = ArgumentCaptor.forClass(InsertBatcher.BatchKey.class);
+        final ArgumentCaptor<List> rows = ArgumentCaptor.forClass(List.class);
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(response).when(bigQuery).insertAll(any());
+
+        // When
+        bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        verify(insertBatcher).add(key.capture(), rows.capture(), any(InsertBatcher.BatchInserter.class));
+        assertThat(key.getValue().getTableId())
+                .isEqualTo(TableId.of(deviceEventHook.getHook().getGoogleClientSecret().getProjectId(), "Barracks", "ResolveVersions"));
+        assertThat(key.getValue().getTemplateSuffix()).hasSize(8);
+        assertThat(rows.getValue()).hasSize(deviceEventHook.getDeviceEvent().getRequest().getPackages().size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendDataToBigQuery_whenProjectIsPartitioned_shouldCreatePartitionedTableAndQueueWithoutSuffix() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final String projectId = deviceEventHook.getHook().getGoogleClientSecret().getProjectId();
+        final ArgumentCaptor<TableInfo> tableInfo = ArgumentCaptor.forClass(TableInfo.class);
+        final ArgumentCaptor<InsertBatcher.BatchKey> key = ArgumentCaptor.forClass(InsertBatcher.BatchKey.class);
+
+        doReturn(true).when(tableLayout).isPartitioned(projectId);
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(response).when(bigQuery).insertAll(any());
+
+        // When
+        bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        verify(bigQuery).create(tableInfo.capture());
+        assertThat(tableInfo.getValue().getTableId()).isEqualTo(TableId.of(projectId, "Barracks", "ResolveVersionsPartitioned"));
+        assertThat(((StandardTableDefinition) tableInfo.getValue().getDefinition()).getTimePartitioning())
+                .isEqualTo(TimePartitioning.of(TimePartitioning.Type.DAY));
+        verify(insertBatcher).add(key.capture(), any(List.class), any(InsertBatcher.BatchInserter.class));
+        assertThat(key.getValue().getTableId()).isEqualTo(tableInfo.getValue().getTableId());
+        assertThat(key.getValue().getTemplateSuffix()).isNull();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendRollupRows_shouldCreateRollupTableAndQueueRowsWithBucketDay() throws Exception {
+        // Given
+        final GoogleClientSecret googleClientSecret = GoogleClientSecretUtils.getGoogleClientSecret();
+        final Instant bucket = Instant.parse("2017-03-01T10:00:00Z");
+        final List<InsertAllRequest.RowToInsert> rows = Collections.singletonList(InsertAllRequest.RowToInsert.of(Collections.singletonMap("count", 1L)));
+        final ArgumentCaptor<TableInfo> tableInfo = ArgumentCaptor.forClass(TableInfo.class);
+        final ArgumentCaptor<InsertBatcher.BatchKey> key = ArgumentCaptor.forClass(InsertBatcher.BatchKey.class);
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(googleClientSecret);
+        doReturn(response).when(bigQuery).insertAll(any());
+
+        // When
+        bigQueryClient.sendRollupRows(googleClientSecret, bucket, rows);
+
+        // Then
+        verify(bigQuery).create(tableInfo.capture());
+        assertThat(tableInfo.getValue().getTableId()).isEqualTo(TableId.of(googleClientSecret.getProjectId(), "Barracks", "VersionRollups"));
+        assertThat(tableInfo.getValue().getDefinition().getSchema().getFields()).extracting(Field::getName)
+                .containsExactly("timestamp", "reference", "version", "count");
+        verify(insertBatcher).add(key.capture(), eq(rows), any(InsertBatcher.BatchInserter.class));
+        assertThat(key.getValue().getTemplateSuffix()).isEqualTo(LocalDate.from(bucket.atZone(ZoneId.systemDefault())).format(DateTimeFormatter.ofPattern("yyyyMMdd")));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendDataToBigQuery_whenProjectIsNested_shouldQueueOneRowHoldingEveryPackageAndResolvedVersion() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final String projectId = deviceEventHook.getHook().getGoogleClientSecret().getProjectId();
+        final ResolvedVersions resolvedVersions = deviceEventHook.getDeviceEvent().getResponse();
+        final ArgumentCaptor<TableInfo> tableInfo = ArgumentCaptor.forClass(TableInfo.class);
+        final ArgumentCaptor<InsertBatcher.BatchKey> key = ArgumentCaptor.forClass(InsertBatcher.BatchKey.class);
+        final ArgumentCaptor<List> rows = ArgumentCaptor.forClass(List.class);
+
+        doReturn(true).when(tableLayout).isNested(projectId);
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(response).when(bigQuery).insertAll(any());
+
+        // When
+        bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        verify(bigQuery).create(tableInfo.capture());
+        assertThat(tableInfo.getValue().getTableId()).isEqualTo(TableId.of(projectId, "Barracks", "DeviceRequests"));
+        assertThat(tableInfo.getValue().getDefinition().getSchema().getFields().stream().filter(field -> field.getName().equals("packages")).findFirst().get().getMode()).isEqualTo(Field.Mode.REPEATED);
+        assertThat(tableInfo.getValue().getDefinition().getSchema().getFields().stream().filter(field -> field.getName().equals("changed")).findFirst().get().getMode()).isEqualTo(Field.Mode.REPEATED);
+        verify(insertBatcher).add(key.capture(), rows.capture(), any(InsertBatcher.BatchInserter.class));
+        assertThat(key.getValue().getTableId()).isEqualTo(tableInfo.getValue().getTableId());
+        assertThat(rows.getValue()).hasSize(1);
+        final Map<String, Object> content = ((InsertAllRequest.RowToInsert) rows.getValue().get(0)).getContent();
+        assertThat((List) content.get("packages")).hasSize(deviceEventHook.getDeviceEvent().getRequest().getPackages().size());
+        assertThat((List) content.get("changed")).hasSize(resolvedVersions.getChanged().size());
+        assertThat((List) content.get("available")).hasSize(resolvedVersions.getAvailable().size());
+        assertThat((List) content.get("unchanged")).hasSize(resolvedVersions.getUnchanged().size());
+        assertThat((List) content.get("unavailable")).hasSize(resolvedVersions.getUnavailable().size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendChangeToBigQuery_whenOnePackageChanged_shouldQueueOneChangeRow() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceChangeEventHook hook = DeviceChangeEventHookUtils.getDeviceChangeEventHook();
+        final DeviceRequest oldRequest = hook.getDeviceChangeEvent().getDeviceEvent().getRequest();
+        final Package aPackage = oldRequest.getPackages().get(0);
+        final DeviceRequest newRequest = oldRequest.toBuilder()
+                .packages(Arrays.asList(aPackage.toBuilder().version("2.0.0").build(), oldRequest.getPackages().get(1)))
+                .build();
+        final DeviceChangeEventHook deviceChangeEventHook = hook.toBuilder()
+                .deviceChangeEvent(hook.getDeviceChangeEvent().toBuilder()
+                        .oldRequest(oldRequest)
+                        .deviceEvent(hook.getDeviceChangeEvent().getDeviceEvent().toBuilder().request(newRequest).build())
+                        .build())
+                .build();
+        final String projectId = deviceChangeEventHook.getHook().getGoogleClientSecret().getProjectId();
+        final ArgumentCaptor<InsertBatcher.BatchKey> key = ArgumentCaptor.forClass(InsertBatcher.BatchKey.class);
+        final ArgumentCaptor<List> rows = ArgumentCaptor.forClass(List.class);
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceChangeEventHook.getHook().getGoogleClientSecret());
+        doReturn(response).when(bigQuery).insertAll(any());
+
+        // When
+        bigQueryClient.sendChangeEventToBigQuery(deviceChangeEventHook, messageMetadata);
+
+        // Then
+        verify(insertBatcher).add(key.capture(), rows.capture(), any(InsertBatcher.BatchInserter.class));
+        assertThat(key.getValue().getTableId()).isEqualTo(TableId.of(projectId, "Barracks", "DeviceChanges"));
+        assertThat(rows.getValue()).hasSize(1);
+        final Map<String, Object> content = ((InsertAllRequest.RowToInsert) rows.getValue().get(0)).getContent();
+        assertThat(content.get("change")).isEqualTo("UPDATED");
+        assertThat(content.get("reference")).isEqualTo(aPackage.getReference());
+        assertThat(content.get("oldVersion")).isEqualTo(aPackage.getVersion().get());
+        assertThat(content.get("version")).isEqualTo("2.0.0");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void buildRowToInsert_whenPackageHasNoVersion_shouldBuildTheSameRowAsStreamedRows() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final Package aPackage = Package.builder().reference("reference").build();
+        final DeviceRequest deviceRequest = DeviceRequestUtils.getDeviceRequest().toBuilder().packages(Collections.singletonList(aPackage)).build();
+
+        // When
+        final InsertAllRequest.RowToInsert row = BigQueryClient.buildRowToInsert(deviceRequest, aPackage, messageMetadata);
+        final InsertAllRequest.RowToInsert nestedRow = BigQueryClient.buildNestedRowToInsert(deviceRequest, null, messageMetadata);
+
+        // Then
+        assertThat(row).isEqualTo(PackageRows.of(
+                messageMetadata,
+                deviceRequest.getUserId(),
+                deviceRequest.getUnitId(),
+                deviceRequest.getIpAddress(),
+                deviceRequest.getUserAgent(),
+                deviceRequest.getCustomClientData().toString(),
+                "reference",
+                null
+        ));
+        assertThat((Map<String, Object>) row.getContent().get("packages")).containsOnlyKeys("reference");
+        assertThat((List<Map<String, Object>>) nestedRow.getContent().get("packages")).containsExactly(Collections.singletonMap("reference", "reference"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void buildNestedRowToInsert_whenUserIdAndVersionDetailsMissing_shouldLeaveThemOut() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceRequest deviceRequest = DeviceRequestUtils.getDeviceRequest().toBuilder().userId(null).build();
+        final ResolvedVersions resolvedVersions = ResolvedVersions.builder()
+                .addChanged(Version.fromPackage(Package.builder().reference("reference").build()))
+                .build();
+
+        // When
+        final InsertAllRequest.RowToInsert row = BigQueryClient.buildNestedRowToInsert(deviceRequest, resolvedVersions, messageMetadata);
+
+        // Then
+        assertThat(row.getContent()).doesNotContainKey("userId").containsEntry("unitId", deviceRequest.getUnitId());
+        assertThat((List<Map<String, Object>>) row.getContent().get("changed")).containsExactly(Collections.singletonMap("reference", "reference"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void buildNestedRowToInsert_whenVersionReadFromJson_shouldFillItsFile() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final Version version = new ObjectMapper().readValue(
+                "{\"packageRef\":\"reference\",\"id\":\"1.0\",\"url\":\"https://barracks.io/package\",\"md5\":\"md5\",\"length\":42,\"filename\":\"package.bin\"}",
+                Version.class
+        );
+
+        // When
+        final InsertAllRequest.RowToInsert row = BigQueryClient.buildNestedRowToInsert(DeviceRequestUtils.getDeviceRequest(), ResolvedVersions.builder().addChanged(version).build(), messageMetadata);
+
+        // Then
+        assertThat((List<Map<String, Object>>) row.getContent().get("changed")).containsExactly(ImmutableMap.<String, Object>builder()
+                .put("reference", "reference")
+                .put("version", "1.0")
+                .put("url", "https://barracks.io/package")
+                .put("md5", "md5")
+                .put("size", 42L)
+                .put("filename", "package.bin")
+                .build());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendChangeToBigQuery_whenPackagesAddedAndRemoved_shouldLeaveMissingVersionsOut() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceChangeEventHook hook = DeviceChangeEventHookUtils.getDeviceChangeEventHook();
+        final DeviceRequest newRequest = hook.getDeviceChangeEvent().getDeviceEvent().getRequest();
+        final DeviceChangeEventHook deviceChangeEventHook = hook.toBuilder()
+                .deviceChangeEvent(hook.getDeviceChangeEvent().toBuilder()
+                        .oldRequest(DeviceRequestUtils.getDeviceRequest().toBuilder().customClientData(newRequest.getCustomClientData()).build())
+                        .build())
                 .build();
+        final ArgumentCaptor<List> rows = ArgumentCaptor.forClass(List.class);
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceChangeEventHook.getHook().getGoogleClientSecret());
+        doReturn(response).when(bigQuery).insertAll(any());
+
+        // When
+        bigQueryClient.sendChangeEventToBigQuery(deviceChangeEventHook, messageMetadata);
 
-        final HttpTransportOptions transportOptions = BigQueryOptions.getDefaultHttpTransportOptions().toBuilder()
-                .setConnectTimeout(2000)
-                .setReadTimeout(2000)
+        // Then
+        verify(insertBatcher).add(any(InsertBatcher.BatchKey.class), rows.capture(), any(InsertBatcher.BatchInserter.class));
+        final List<Map<String, Object>> contents = ((List<InsertAllRequest.RowToInsert>) rows.getValue()).stream()
+                .map(InsertAllRequest.RowToInsert::getContent)
+                .collect(Collectors.toList());
+        assertThat(contents).hasSize(4);
+        assertThat(contents).filteredOn(content -> "ADDED".equals(content.get("change")))
+                .hasSize(2)
+                .allMatch(content -> !content.containsKey("oldVersion") && content.containsKey("version"));
+        assertThat(contents).filteredOn(content -> "REMOVED".equals(content.get("change")))
+                .hasSize(2)
+                .allMatch(content -> content.containsKey("oldVersion") && !content.containsKey("version"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendChangeToBigQuery_whenDeviceAndPackageUnidentified_shouldLeaveMissingIdsOut() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceChangeEventHook hook = DeviceChangeEventHookUtils.getDeviceChangeEventHook();
+        final DeviceRequest newRequest = DeviceRequestUtils.getDeviceRequest().toBuilder()
+                .userId(null)
+                .unitId(null)
+                .packages(Collections.singletonList(Package.builder().version("1.0").build()))
+                .customClientData(RawJson.of(JsonNodeFactory.instance.objectNode().put("level", 50)))
+                .build();
+        final DeviceChangeEventHook deviceChangeEventHook = hook.toBuilder()
+                .deviceChangeEvent(hook.getDeviceChangeEvent().toBuilder()
+                        .oldRequest(newRequest.toBuilder().packages(Collections.emptyList()).customClientData(RawJson.EMPTY_OBJECT).build())
+                        .deviceEvent(hook.getDeviceChangeEvent().getDeviceEvent().toBuilder().request(newRequest).build())
+                        .build())
                 .build();
-        final BigQuery newBigQuery = BigQueryOptions.newBuilder()
-                .setTransportOptions(transportOptions)
-                .setRetrySettings(retrySettings)
-                .setProjectId("DefaultProjectId")
-                .build()
-                .getService();
-
-        doReturn(newBigQuery.getOptions()).when(bigQuery).getOptions();
-        doReturn(objectMapper.writeValueAsBytes(googleClientSecret)).when(mapper).writeValueAsBytes(googleClientSecret);
-
-        //When
-        final BigQuery result = bigQueryClient.buildBigQueryCredentialsAndProjectId(googleClientSecret);
-
-        //Then
-        assertThat(result.getOptions().getProjectId()).isEqualTo(googleClientSecret.getProjectId());
-        assertThat(result.getOptions().getCredentials()).isEqualTo(ServiceAccountCredentials.fromStream(new ByteArrayInputStream(objectMapper.writeValueAsBytes(googleClientSecret))));
+        final ArgumentCaptor<List> rows = ArgumentCaptor.forClass(List.class);
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceChangeEventHook.getHook().getGoogleClientSecret());
+        doReturn(response).when(bigQuery).insertAll(any());
+
+        // When
+        bigQueryClient.sendChangeEventToBigQuery(deviceChangeEventHook, messageMetadata);
+
+        // Then
+        verify(insertBatcher).add(any(InsertBatcher.BatchKey.class), rows.capture(), any(InsertBatcher.BatchInserter.class));
+        final List<Map<String, Object>> contents = ((List<InsertAllRequest.RowToInsert>) rows.getValue()).stream()
+                .map(InsertAllRequest.RowToInsert::getContent)
+                .collect(Collectors.toList());
+        assertThat(contents).extracting(content -> content.get("change")).containsExactlyInAnyOrder("ADDED", "CUSTOM_CLIENT_DATA");
+        assertThat(contents).allMatch(content -> !content.containsKey("userId") && !content.containsKey("unitId") && !content.containsKey("reference"));
+    }
+
+    @Test
+    public void sendChangeToBigQuery_whenNothingChanged_shouldNotSendAnything() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceChangeEventHook hook = DeviceChangeEventHookUtils.getDeviceChangeEventHook();
+        final DeviceChangeEventHook deviceChangeEventHook = hook.toBuilder()
+                .deviceChangeEvent(hook.getDeviceChangeEvent().toBuilder()
+                        .oldRequest(hook.getDeviceChangeEvent().getDeviceEvent().getRequest())
+                        .build())
+                .build();
+
+        // When
+        final CompletableFuture<Void> result = bigQueryClient.sendChangeEventToBigQuery(deviceChangeEventHook, messageMetadata);
+
+        // Then
+        assertThat(result).isCompleted();
+        verifyZeroInteractions(bigQueryServiceCache, insertBatcher, spool, loadJobSink);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendRowsToBigQuery_shouldQueueTheRowsAsIs() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final List<InsertAllRequest.RowToInsert> rows = Collections.singletonList(
+                InsertAllRequest.RowToInsert.of("id", Collections.singletonMap("unitId", "unit"))
+        );
+        final DeviceEventRows deviceEventRows = DeviceEventRows.of(deviceEventHook.getHook().getGoogleClientSecret(), messageMetadata, rows);
+        final ArgumentCaptor<InsertBatcher.BatchKey> key = ArgumentCaptor.forClass(InsertBatcher.BatchKey.class);
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(response).when(bigQuery).insertAll(any());
+
+        // When
+        bigQueryClient.sendEventToBigQuery(deviceEventRows);
+
+        // Then
+        verify(insertBatcher).add(key.capture(), eq(rows), any(InsertBatcher.BatchInserter.class));
+        assertThat(key.getValue().getTableId())
+                .isEqualTo(TableId.of(deviceEventHook.getHook().getGoogleClientSecret().getProjectId(), "Barracks", "ResolveVersions"));
+    }
+
+    @Test
+    public void sendDataToBigQuery_whenTableAlreadyProvisioned_shouldNotCheckTableAndDataset() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(true).when(bigQueryTableRegistry).isProvisioned(any(TableId.class));
+        doReturn(response).when(bigQuery).insertAll(any());
+        doReturn(false).when(response).hasErrors();
+
+        // When
+        bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        verify(bigQuery, never()).getDataset(any(DatasetId.class));
+        verify(bigQuery, never()).getTable(any(TableId.class));
+        verify(bigQuery, never()).create(any(TableInfo.class));
+        verify(bigQuery, never()).create(any(DatasetInfo.class));
+        verify(bigQuery, new Times(2)).insertAll(any());
+    }
+
+    @Test
+    public void sendDataToBigQuery_whenProvisionedTableNotFound_shouldProvisionAgainAndRetryInsert() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(true).when(bigQueryTableRegistry).isProvisioned(any(TableId.class));
+        doThrow(new BigQueryException(404, "Not found")).doReturn(response).when(bigQuery).insertAll(any());
+        doReturn(false).when(response).hasErrors();
+
+        // When
+        bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        verify(bigQueryTableRegistry).invalidate(any(TableId.class));
+        verify(bigQuery).create(any(TableInfo.class));
+        verify(bigQuery).create(any(DatasetInfo.class));
+        verify(bigQueryTableRegistry).markProvisioned(any(TableId.class));
+        verify(bigQuery, new Times(3)).insertAll(any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendDataToBigQuery_whenSameMessageSentTwice_shouldReuseInsertIds() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final ArgumentCaptor<List> rows = ArgumentCaptor.forClass(List.class);
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(response).when(bigQuery).insertAll(any());
+
+        // When
+        bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+        bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        verify(insertBatcher, new Times(2)).add(any(InsertBatcher.BatchKey.class), rows.capture(), any(InsertBatcher.BatchInserter.class));
+        final List<InsertAllRequest.RowToInsert> first = rows.getAllValues().get(0);
+        final List<InsertAllRequest.RowToInsert> second = rows.getAllValues().get(1);
+        assertThat(first).extracting(InsertAllRequest.RowToInsert::getId).doesNotContainNull().doesNotHaveDuplicates();
+        assertThat(second).extracting(InsertAllRequest.RowToInsert::getId)
+                .containsExactlyElementsOf(first.stream().map(InsertAllRequest.RowToInsert::getId).collect(Collectors.toList()));
+        assertThat(first.get(0).getContent().get("timestamp")).isEqualTo(messageMetadata.getTimestamp().toString());
+    }
+
+    @Test
+    public void sendDataToBigQuery_whenInsertFailsWithTransientError_shouldSpoolRows() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final String projectId = deviceEventHook.getHook().getGoogleClientSecret().getProjectId();
+        final ArgumentCaptor<SpoolRecord> record = ArgumentCaptor.forClass(SpoolRecord.class);
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(true).when(bigQueryTableRegistry).isProvisioned(any(TableId.class));
+        doThrow(new BigQueryException(503, "Backend error")).when(bigQuery).insertAll(any());
+        doReturn(true).when(spool).append(any(SpoolRecord.class));
+
+        // When
+        final CompletableFuture<Void> result = bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        assertThat(result).isCompleted();
+        verify(spool).markUnhealthy(projectId);
+        verify(spool).append(record.capture());
+        assertThat(record.getValue().getPrivateKeyId()).isEqualTo(deviceEventHook.getHook().getGoogleClientSecret().getPrivateKeyId());
+        assertThat(record.getValue().getRows()).hasSize(deviceEventHook.getDeviceEvent().getRequest().getPackages().size());
+    }
+
+    @Test
+    @SuppressFBWarnings(value = "RV_RETURN_VALUE_IGNORED_NO_SIDE_EFFECT", justification = "mock doReturn")
+    public void sendDataToBigQuery_whenRowsStoppedByAnInvalidRow_shouldRetryWithoutSpoolingRows() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final String projectId = deviceEventHook.getHook().getGoogleClientSecret().getProjectId();
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(true).when(bigQueryTableRegistry).isProvisioned(any(TableId.class));
+        doReturn(response).when(bigQuery).insertAll(any());
+        doReturn(true).when(response).hasErrors();
+        doReturn(Collections.singletonList(new BigQueryError("stopped", null, "Stopped"))).when(response).getErrorsFor(anyLong());
+
+        // When
+        final CompletableFuture<Void> result = bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        assertThat(result).isCompletedExceptionally();
+        assertThat(BigQueryErrors.isRetryable(catchThrowable(result::join))).isTrue();
+        verify(spool, never()).markUnhealthy(projectId);
+        verify(spool, never()).append(any(SpoolRecord.class));
+    }
+
+    @Test
+    public void sendDataToBigQuery_whenInsertFailsWithPermanentError_shouldNotSpoolRows() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(true).when(bigQueryTableRegistry).isProvisioned(any(TableId.class));
+        doThrow(new BigQueryException(403, "Access denied")).when(bigQuery).insertAll(any());
+
+        // When
+        final CompletableFuture<Void> result = bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        assertThat(result).isCompletedExceptionally();
+        verify(spool, never()).append(any(SpoolRecord.class));
+    }
+
+    @Test
+    @SuppressFBWarnings(value = "RV_RETURN_VALUE_IGNORED_NO_SIDE_EFFECT", justification = "mock doReturn")
+    public void sendDataToBigQuery_whenInsertFailsWithPermanentError_shouldRecordProjectFailure() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final String projectId = deviceEventHook.getHook().getGoogleClientSecret().getProjectId();
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(true).when(bigQueryTableRegistry).isProvisioned(any(TableId.class));
+        doThrow(new BigQueryException(403, "Access denied")).when(bigQuery).insertAll(any());
+
+        // When
+        bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        verify(projectCircuitBreaker).recordFailure(projectId);
+        verify(projectCircuitBreaker, never()).recordSuccess(projectId);
+    }
+
+    @Test
+    @SuppressFBWarnings(value = "RV_RETURN_VALUE_IGNORED_NO_SIDE_EFFECT", justification = "mock doReturn")
+    public void sendDataToBigQuery_whenRowsRejected_shouldRecordProjectSuccess() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final String projectId = deviceEventHook.getHook().getGoogleClientSecret().getProjectId();
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(true).when(bigQueryTableRegistry).isProvisioned(any(TableId.class));
+        doReturn(response).when(bigQuery).insertAll(any());
+        doReturn(true).when(response).hasErrors();
+        doReturn(Collections.singletonList(new BigQueryError("invalid", "field", "Invalid value"))).when(response).getErrorsFor(0L);
+
+        // When
+        final CompletableFuture<Void> result = bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        assertThat(result).isCompletedExceptionally();
+        verify(projectCircuitBreaker).recordSuccess(projectId);
+        verify(projectCircuitBreaker, never()).recordFailure(projectId);
+    }
+
+    @Test
+    public void sendDataToBigQuery_whenCircuitOpen_shouldFailWithoutReachingBigQuery() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final String projectId = deviceEventHook.getHook().getGoogleClientSecret().getProjectId();
+
+        doReturn(false).when(projectCircuitBreaker).allowRequest(projectId);
+
+        // When
+        final CompletableFuture<Void> result = bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        final Throwable failure = catchThrowable(result::join);
+        assertThat(failure).hasCauseInstanceOf(BigQueryClientException.class);
+        assertThat(BigQueryErrors.isRetryable(failure)).isFalse();
+        verify(bigQueryServiceCache, never()).getService(any());
+        verify(spool, never()).append(any(SpoolRecord.class));
+    }
+
+    @Test
+    public void sendDataToBigQuery_whenCircuitOpenAndProjectSpooled_shouldSpoolRows() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final String projectId = deviceEventHook.getHook().getGoogleClientSecret().getProjectId();
+
+        doReturn(false).when(projectCircuitBreaker).allowRequest(projectId);
+        doReturn(true).when(spool).shouldSpool(projectId);
+        doReturn(true).when(spool).append(any(SpoolRecord.class));
+
+        // When
+        final CompletableFuture<Void> result = bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        assertThat(result).isCompleted();
+        verify(bigQueryServiceCache, never()).getService(any());
+    }
+
+    @Test
+    public void sendDataToBigQuery_whenProjectSpooled_shouldNotSendRowsToBigQuery() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final String projectId = deviceEventHook.getHook().getGoogleClientSecret().getProjectId();
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(true).when(spool).shouldSpool(projectId);
+        doReturn(true).when(spool).append(any(SpoolRecord.class));
+
+        // When
+        final CompletableFuture<Void> result = bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        assertThat(result).isCompleted();
+        verify(bigQuery, never()).insertAll(any());
+        verify(bigQuery, never()).getDataset(any(DatasetId.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendDataToBigQuery_whenProjectUsesLoadJobs_shouldWriteRowsToLoadJobSink() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final String projectId = deviceEventHook.getHook().getGoogleClientSecret().getProjectId();
+        final ArgumentCaptor<List> rows = ArgumentCaptor.forClass(List.class);
+        final CompletableFuture<Void> synced = new CompletableFuture<>();
+
+        doReturn(bigQuery).when(bigQueryServiceCache).getService(deviceEventHook.getHook().getGoogleClientSecret());
+        doReturn(true).when(bigQueryTableRegistry).isProvisioned(any(TableId.class));
+        doReturn(true).when(loadJobSink).accepts(projectId);
+        doReturn(synced).when(loadJobSink).add(any(), any(), any());
+
+        // When
+        final CompletableFuture<Void> result = bigQueryClient.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        assertThat(result).isSameAs(synced);
+        verify(loadJobSink).add(eq(deviceEventHook.getHook().getGoogleClientSecret()), eq(TableId.of(projectId, "Barracks", "ResolveVersions")), rows.capture());
+        assertThat(rows.getValue()).hasSize(deviceEventHook.getDeviceEvent().getRequest().getPackages().size());
+        verify(bigQuery, never()).insertAll(any());
+    }
+
+    @Test
+    public void insertSpooledRows_shouldQueueTheRequestBehindTheOtherInsertsOfTheProject() throws Exception {
+        // Given
+        final GoogleClientSecret googleClientSecret = GoogleClientSecretUtils.getGoogleClientSecret();
+        final InsertAllRequest request = InsertAllRequest.newBuilder(TableId.of(googleClientSecret.getProjectId(), "Barracks", "ResolveVersions"))
+                .addRow(Collections.singletonMap("userId", "user"))
+                .build();
+        doReturn(bigQuery).when(bigQueryServiceCache).findService(googleClientSecret.getProjectId(), googleClientSecret.getPrivateKeyId());
+        doReturn(true).when(bigQueryTableRegistry).isProvisioned(any(TableId.class));
+        doReturn(response).when(bigQuery).insertAll(request);
+
+        // When
+        final InsertAllResponse result = bigQueryClient.insertSpooledRows(googleClientSecret.getPrivateKeyId(), request);
+
+        // Then
+        assertThat(result).isSameAs(response);
+        verify(insertBatcher).submit(eq(request), any(InsertBatcher.BatchInserter.class));
+        verify(projectCircuitBreaker).recordSuccess(googleClientSecret.getProjectId());
+    }
+
+    @Test
+    public void insertSpooledRows_whenCircuitOpen_shouldNotSendTheRequest() throws Exception {
+        // Given
+        final GoogleClientSecret googleClientSecret = GoogleClientSecretUtils.getGoogleClientSecret();
+        final InsertAllRequest request = InsertAllRequest.newBuilder(TableId.of(googleClientSecret.getProjectId(), "Barracks", "ResolveVersions"))
+                .addRow(Collections.singletonMap("userId", "user"))
+                .build();
+        doReturn(bigQuery).when(bigQueryServiceCache).findService(googleClientSecret.getProjectId(), googleClientSecret.getPrivateKeyId());
+        doReturn(false).when(projectCircuitBreaker).allowRequest(googleClientSecret.getProjectId());
+
+        // When
+        final Throwable failure = catchThrowable(() -> bigQueryClient.insertSpooledRows(googleClientSecret.getPrivateKeyId(), request));
+
+        // Then
+        assertThat(failure).isInstanceOf(BigQueryClientException.class);
+        assertThat(BigQueryErrors.isRetryable(failure)).isTrue();
+        verify(insertBatcher, never()).submit(any(), any());
+        verify(bigQuery, never()).insertAll(any());
     }
 }
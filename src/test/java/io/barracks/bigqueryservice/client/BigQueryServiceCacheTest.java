@@ -0,0 +1,268 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.gax.core.RetrySettings;
+import com.google.cloud.HttpTransportOptions;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryOptions;
+import io.barracks.bigqueryservice.model.GoogleClientSecret;
+import io.barracks.bigqueryservice.utils.GoogleClientSecretUtils;
+import org.joda.time.Duration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.internal.verification.Times;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BigQueryServiceCacheTest {
+
+    private static final long IDLE_TIMEOUT = 1000L;
+    private static final long ROTATION_GRACE = 100L;
+
+    @Mock
+    private BigQuery bigQuery;
+
+    @Mock
+    private CounterService counter;
+
+    private BigQueryServiceCache bigQueryServiceCache;
+
+    @Before
+    public void setUp() {
+        bigQueryServiceCache = spy(new BigQueryServiceCache(bigQuery, counter, 2, IDLE_TIMEOUT, ROTATION_GRACE));
+    }
+
+    @Test
+    public void getService_whenCalledTwiceWithSameSecret_shouldBuildServiceOnce() throws Exception {
+        // Given
+        final GoogleClientSecret googleClientSecret = GoogleClientSecretUtils.getGoogleClientSecret();
+        final BigQuery tenantBigQuery = mock(BigQuery.class);
+        doReturn(tenantBigQuery).when(bigQueryServiceCache).buildBigQueryCredentialsAndProjectId(googleClientSecret);
+
+        // When
+        final BigQuery first = bigQueryServiceCache.getService(googleClientSecret);
+        final BigQuery second = bigQueryServiceCache.getService(googleClientSecret);
+
+        // Then
+        assertThat(first).isSameAs(tenantBigQuery);
+        assertThat(second).isSameAs(tenantBigQuery);
+        verify(bigQueryServiceCache, new Times(1)).buildBigQueryCredentialsAndProjectId(googleClientSecret);
+        verify(counter).increment("bigquery.client.cache.miss");
+        verify(counter).increment("bigquery.client.cache.hit");
+    }
+
+    @Test
+    public void getService_whenPrivateKeyRotated_shouldRetirePreviousKeyAfterGracePeriod() throws Exception {
+        // Given
+        final GoogleClientSecret oldSecret = GoogleClientSecretUtils.getGoogleClientSecret();
+        final GoogleClientSecret newSecret = oldSecret.toBuilder().privateKeyId("rotated").privateKey("new key").build();
+        final BigQuery oldBigQuery = mock(BigQuery.class);
+        final BigQuery newBigQuery = mock(BigQuery.class);
+        doReturn(oldBigQuery).when(bigQueryServiceCache).buildBigQueryCredentialsAndProjectId(oldSecret);
+        doReturn(newBigQuery).when(bigQueryServiceCache).buildBigQueryCredentialsAndProjectId(newSecret);
+        doReturn(0L).when(bigQueryServiceCache).now();
+        bigQueryServiceCache.getService(oldSecret);
+        doReturn(TimeUnit.MILLISECONDS.toNanos(ROTATION_GRACE)).when(bigQueryServiceCache).now();
+
+        // When
+        final BigQuery result = bigQueryServiceCache.getService(newSecret);
+
+        // Then
+        assertThat(result).isSameAs(newBigQuery);
+        assertThat(bigQueryServiceCache.size()).isEqualTo(1);
+        verify(counter).increment("bigquery.client.cache.eviction.rotated");
+    }
+
+    @Test
+    public void getService_whenOldAndNewKeysInterleavedDuringRotation_shouldBuildEachServiceOnce() throws Exception {
+        // Given
+        final GoogleClientSecret oldSecret = GoogleClientSecretUtils.getGoogleClientSecret();
+        final GoogleClientSecret newSecret = oldSecret.toBuilder().privateKeyId("rotated").privateKey("new key").build();
+        doReturn(mock(BigQuery.class)).when(bigQueryServiceCache).buildBigQueryCredentialsAndProjectId(oldSecret);
+        doReturn(mock(BigQuery.class)).when(bigQueryServiceCache).buildBigQueryCredentialsAndProjectId(newSecret);
+        doReturn(0L).when(bigQueryServiceCache).now();
+
+        // When
+        for (int i = 0; i < 3; i++) {
+            bigQueryServiceCache.getService(oldSecret);
+            bigQueryServiceCache.getService(newSecret);
+        }
+
+        // Then
+        assertThat(bigQueryServiceCache.size()).isEqualTo(2);
+        verify(bigQueryServiceCache, new Times(1)).buildBigQueryCredentialsAndProjectId(oldSecret);
+        verify(bigQueryServiceCache, new Times(1)).buildBigQueryCredentialsAndProjectId(newSecret);
+        verify(counter, never()).increment("bigquery.client.cache.eviction.rotated");
+    }
+
+    @Test
+    public void getService_whenSecretChangedWithSameKeyId_shouldRebuildService() throws Exception {
+        // Given
+        final GoogleClientSecret oldSecret = GoogleClientSecretUtils.getGoogleClientSecret();
+        final GoogleClientSecret newSecret = oldSecret.toBuilder().clientEmail("another@email.com").build();
+        final BigQuery newBigQuery = mock(BigQuery.class);
+        doReturn(mock(BigQuery.class)).when(bigQueryServiceCache).buildBigQueryCredentialsAndProjectId(oldSecret);
+        doReturn(newBigQuery).when(bigQueryServiceCache).buildBigQueryCredentialsAndProjectId(newSecret);
+        bigQueryServiceCache.getService(oldSecret);
+
+        // When
+        final BigQuery result = bigQueryServiceCache.getService(newSecret);
+
+        // Then
+        assertThat(result).isSameAs(newBigQuery);
+        assertThat(bigQueryServiceCache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void findService_shouldReturnCachedServiceOfTheKeyOrOfTheProject() throws Exception {
+        // Given
+        final GoogleClientSecret googleClientSecret = GoogleClientSecretUtils.getGoogleClientSecret();
+        final BigQuery tenantBigQuery = mock(BigQuery.class);
+        doReturn(tenantBigQuery).when(bigQueryServiceCache).buildBigQueryCredentialsAndProjectId(googleClientSecret);
+        bigQueryServiceCache.getService(googleClientSecret);
+
+        // When / Then
+        assertThat(bigQueryServiceCache.findService(googleClientSecret.getProjectId(), googleClientSecret.getPrivateKeyId())).isSameAs(tenantBigQuery);
+        assertThat(bigQueryServiceCache.findService(googleClientSecret.getProjectId(), "retired")).isSameAs(tenantBigQuery);
+        assertThat(bigQueryServiceCache.findService("other", googleClientSecret.getPrivateKeyId())).isNull();
+    }
+
+    @Test
+    public void getService_whenEntryIdle_shouldEvictAndRebuild() throws Exception {
+        // Given
+        final GoogleClientSecret googleClientSecret = GoogleClientSecretUtils.getGoogleClientSecret();
+        doReturn(mock(BigQuery.class)).when(bigQueryServiceCache).buildBigQueryCredentialsAndProjectId(googleClientSecret);
+        doReturn(0L).when(bigQueryServiceCache).now();
+        bigQueryServiceCache.getService(googleClientSecret);
+        doReturn(TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT)).when(bigQueryServiceCache).now();
+
+        // When
+        bigQueryServiceCache.getService(googleClientSecret);
+
+        // Then
+        verify(bigQueryServiceCache, new Times(2)).buildBigQueryCredentialsAndProjectId(googleClientSecret);
+        verify(counter).increment("bigquery.client.cache.eviction.idle");
+    }
+
+    @Test
+    public void getActiveCredentials_whenEntryIdle_shouldOnlyReturnCredentialsOfActiveEntries() throws Exception {
+        // Given
+        final GoogleClientSecret idleSecret = GoogleClientSecretUtils.getGoogleClientSecret();
+        final GoogleClientSecret activeSecret = GoogleClientSecretUtils.getGoogleClientSecret();
+        final RefreshingCredentials activeCredentials = mock(RefreshingCredentials.class);
+        doReturn(bigQueryWith(mock(RefreshingCredentials.class))).when(bigQueryServiceCache).buildBigQueryCredentialsAndProjectId(idleSecret);
+        doReturn(bigQueryWith(activeCredentials)).when(bigQueryServiceCache).buildBigQueryCredentialsAndProjectId(activeSecret);
+        doReturn(0L).when(bigQueryServiceCache).now();
+        bigQueryServiceCache.getService(idleSecret);
+        doReturn(TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT / 2)).when(bigQueryServiceCache).now();
+        bigQueryServiceCache.getService(activeSecret);
+        doReturn(TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT)).when(bigQueryServiceCache).now();
+
+        // When
+        final List<RefreshingCredentials> result = bigQueryServiceCache.getActiveCredentials();
+
+        // Then
+        assertThat(result).containsExactly(activeCredentials);
+    }
+
+    @Test
+    public void getService_whenCacheFull_shouldEvictLeastRecentlyUsed() throws Exception {
+        // Given
+        final GoogleClientSecret first = GoogleClientSecretUtils.getGoogleClientSecret();
+        final GoogleClientSecret second = GoogleClientSecretUtils.getGoogleClientSecret();
+        final GoogleClientSecret third = GoogleClientSecretUtils.getGoogleClientSecret();
+        doReturn(mock(BigQuery.class)).when(bigQueryServiceCache).buildBigQueryCredentialsAndProjectId(any(GoogleClientSecret.class));
+        bigQueryServiceCache.getService(first);
+        bigQueryServiceCache.getService(second);
+        bigQueryServiceCache.getService(first);
+
+        // When
+        bigQueryServiceCache.getService(third);
+        bigQueryServiceCache.getService(first);
+        bigQueryServiceCache.getService(second);
+
+        // Then
+        assertThat(bigQueryServiceCache.size()).isEqualTo(2);
+        verify(bigQueryServiceCache, new Times(1)).buildBigQueryCredentialsAndProjectId(first);
+        verify(bigQueryServiceCache, new Times(2)).buildBigQueryCredentialsAndProjectId(second);
+        verify(counter, new Times(2)).increment("bigquery.client.cache.eviction.size");
+    }
+
+    @Test
+    public void buildBigQueryCredentialsAndProjectId_whenAllIsFine_shouldSetCredentialsAndProjectId() throws IOException {
+        //Given
+        final ObjectMapper objectMapper = new ObjectMapper();
+        final ClassPathResource resource = new ClassPathResource("googleClientSecret.json", getClass());
+        final GoogleClientSecret googleClientSecret = objectMapper.readValue(resource.getInputStream(), GoogleClientSecret.class);
+        final RetrySettings retrySettings = RetrySettings.newBuilder().setMaxAttempts(10)
+                .setMaxRetryDelay(Duration.millis(1000L))
+                .setTotalTimeout(Duration.millis(2000L))
+                .setInitialRetryDelay(Duration.millis(250L))
+                .setRetryDelayMultiplier(1.0)
+                .setInitialRpcTimeout(Duration.millis(2000L))
+                .setRpcTimeoutMultiplier(1.0)
+                .setMaxRpcTimeout(Duration.millis(2000L))
+                .build();
+
+        final HttpTransportOptions transportOptions = BigQueryOptions.getDefaultHttpTransportOptions().toBuilder()
+                .setConnectTimeout(2000)
+                .setReadTimeout(2000)
+                .build();
+        final BigQuery newBigQuery = BigQueryOptions.newBuilder()
+                .setTransportOptions(transportOptions)
+                .setRetrySettings(retrySettings)
+                .setProjectId("DefaultProjectId")
+                .build()
+                .getService();
+
+        doReturn(newBigQuery.getOptions()).when(bigQuery).getOptions();
+
+        //When
+        final BigQuery result = bigQueryServiceCache.buildBigQueryCredentialsAndProjectId(googleClientSecret);
+
+        //Then
+        assertThat(result.getOptions().getProjectId()).isEqualTo(googleClientSecret.getProjectId());
+        assertThat(result.getOptions().getCredentials()).isInstanceOf(RefreshingCredentials.class);
+    }
+
+    private static BigQuery bigQueryWith(RefreshingCredentials credentials) {
+        final BigQuery tenantBigQuery = mock(BigQuery.class);
+        doReturn(BigQueryOptions.newBuilder().setProjectId("project").setCredentials(credentials).build()).when(tenantBigQuery).getOptions();
+        return tenantBigQuery;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.barracks.bigqueryservice.model.DeviceRequest;
+import io.barracks.bigqueryservice.model.Package;
+import io.barracks.bigqueryservice.model.RawJson;
+import io.barracks.bigqueryservice.utils.DeviceRequestUtils;
+import io.barracks.bigqueryservice.utils.PackageUtils;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeviceRequestDiffTest {
+
+    @Test
+    public void of_whenRequestsAreTheSame_shouldBeEmpty() throws Exception {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+
+        // When
+        final DeviceRequestDiff diff = DeviceRequestDiff.of(request, request.toBuilder().build());
+
+        // Then
+        assertThat(diff.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void of_whenPackagesChanged_shouldListAddedRemovedAndUpdatedPackages() throws Exception {
+        // Given
+        final Package kept = PackageUtils.getPackage();
+        final Package updated = PackageUtils.getPackage();
+        final Package removed = PackageUtils.getPackage();
+        final Package added = PackageUtils.getPackage();
+        final Package newVersion = updated.toBuilder().version(UUID.randomUUID().toString()).build();
+        final DeviceRequest oldRequest = DeviceRequestUtils.getDeviceRequest().toBuilder()
+                .packages(Arrays.asList(kept, updated, removed))
+                .build();
+        final DeviceRequest newRequest = oldRequest.toBuilder()
+                .packages(Arrays.asList(kept, newVersion, added))
+                .build();
+
+        // When
+        final DeviceRequestDiff diff = DeviceRequestDiff.of(oldRequest, newRequest);
+
+        // Then
+        assertThat(diff.getPackageChanges()).containsOnly(
+                DeviceRequestDiff.PackageChange.of(DeviceRequestDiff.ChangeType.UPDATED, updated.getReference(), updated.getVersion().get(), newVersion.getVersion().get()),
+                DeviceRequestDiff.PackageChange.of(DeviceRequestDiff.ChangeType.REMOVED, removed.getReference(), removed.getVersion().get(), null),
+                DeviceRequestDiff.PackageChange.of(DeviceRequestDiff.ChangeType.ADDED, added.getReference(), null, added.getVersion().get())
+        );
+        assertThat(diff.getCustomClientDataDelta().size()).isEqualTo(0);
+    }
+
+    @Test
+    public void of_whenCustomClientDataChanged_shouldOnlyKeepChangedAndRemovedFields() throws Exception {
+        // Given
+        final ObjectNode oldData = JsonNodeFactory.instance.objectNode().put("kept", "value").put("changed", 1).put("removed", true);
+        final ObjectNode newData = JsonNodeFactory.instance.objectNode().put("kept", "value").put("changed", 2).put("added", "value");
+        final DeviceRequest oldRequest = DeviceRequestUtils.getDeviceRequest().toBuilder().customClientData(RawJson.of(oldData)).build();
+        final DeviceRequest newRequest = oldRequest.toBuilder().customClientData(RawJson.of(newData)).build();
+
+        // When
+        final DeviceRequestDiff diff = DeviceRequestDiff.of(oldRequest, newRequest);
+
+        // Then
+        assertThat(diff.getPackageChanges()).isEmpty();
+        assertThat(diff.getCustomClientDataDelta()).isEqualTo(
+                JsonNodeFactory.instance.objectNode().put("changed", 2).put("added", "value").putNull("removed")
+        );
+    }
+
+    @Test
+    public void of_whenNoOldRequest_shouldAddEveryPackage() throws Exception {
+        // Given
+        final DeviceRequest newRequest = DeviceRequestUtils.getDeviceRequest();
+
+        // When
+        final DeviceRequestDiff diff = DeviceRequestDiff.of(null, newRequest);
+
+        // Then
+        assertThat(diff.getPackageChanges())
+                .hasSize(newRequest.getPackages().size())
+                .allMatch(change -> change.getType() == DeviceRequestDiff.ChangeType.ADDED);
+    }
+
+}
@@ -0,0 +1,243 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.cloud.bigquery.InsertAllResponse;
+import com.google.cloud.bigquery.TableId;
+import io.barracks.bigqueryservice.client.exception.BigQueryClientException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.internal.verification.Times;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class InsertBatcherTest {
+
+    private static final InsertBatcher.BatchKey KEY = InsertBatcher.BatchKey.of(TableId.of("project", "dataset", "table"), "20170101");
+
+    @Mock
+    private InsertBatcher.BatchInserter inserter;
+
+    @Mock
+    private InsertAllResponse response;
+
+    @Mock
+    private ScheduledExecutorService lingerExecutor;
+
+    @Mock
+    private CounterService counter;
+
+    private InsertExecutor insertExecutor;
+
+    @Before
+    public void setUp() {
+        doReturn(response).when(inserter).insert(any());
+        // Inserts run on the calling thread
+        insertExecutor = new InsertExecutor(4, 4, Runnable::run, counter);
+    }
+
+    @Test
+    public void add_whenRowsFromSeveralCallsFitInABatch_shouldSendThemInOneRequest() {
+        // Given
+        final InsertBatcher insertBatcher = new InsertBatcher(4, InsertBatcher.MAX_BYTES_PER_REQUEST, 1000L, lingerExecutor, insertExecutor);
+        final ArgumentCaptor<InsertAllRequest> request = ArgumentCaptor.forClass(InsertAllRequest.class);
+
+        // When
+        final CompletableFuture<Void> first = insertBatcher.add(KEY, rows(2), inserter);
+        final CompletableFuture<Void> second = insertBatcher.add(KEY, rows(2), inserter);
+
+        // Then
+        verify(inserter).insert(request.capture());
+        assertThat(request.getValue().getRows()).hasSize(4);
+        assertThat(request.getValue().getTable()).isEqualTo(KEY.getTableId());
+        assertThat(request.getValue().getTemplateSuffix()).isEqualTo(KEY.getTemplateSuffix());
+        assertThat(first).isCompleted();
+        assertThat(second).isCompleted();
+    }
+
+    @Test
+    public void add_whenRowsExceedMaxRows_shouldSplitThemAcrossBatches() {
+        // Given
+        final InsertBatcher insertBatcher = new InsertBatcher(3, InsertBatcher.MAX_BYTES_PER_REQUEST, 1000L, lingerExecutor, insertExecutor);
+
+        // When
+        final CompletableFuture<Void> result = insertBatcher.add(KEY, rows(5), inserter);
+
+        // Then
+        verify(inserter, new Times(1)).insert(any());
+        assertThat(result).isNotDone();
+
+        // When
+        insertBatcher.flushAll();
+
+        // Then
+        verify(inserter, new Times(2)).insert(any());
+        assertThat(result).isCompleted();
+    }
+
+    @Test
+    public void add_whenNextRowExceedsMaxBytes_shouldFlushCurrentBatchFirst() {
+        // Given
+        final List<InsertAllRequest.RowToInsert> rows = rows(3);
+        final int rowSize = InsertBatcher.estimateSize(rows.get(0).getContent());
+        final InsertBatcher insertBatcher = new InsertBatcher(100, rowSize * 2 + 1, 1000L, lingerExecutor, insertExecutor);
+        final ArgumentCaptor<InsertAllRequest> request = ArgumentCaptor.forClass(InsertAllRequest.class);
+
+        // When
+        insertBatcher.add(KEY, rows, inserter);
+
+        // Then
+        verify(inserter).insert(request.capture());
+        assertThat(request.getValue().getRows()).containsExactlyElementsOf(rows.subList(0, 2));
+    }
+
+    @Test
+    public void add_whenLingerElapsed_shouldFlushIncompleteBatch() throws Exception {
+        // Given
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        final InsertBatcher insertBatcher = new InsertBatcher(100, InsertBatcher.MAX_BYTES_PER_REQUEST, 10L, executor, insertExecutor);
+
+        // When
+        final CompletableFuture<Void> result = insertBatcher.add(KEY, rows(2), inserter);
+
+        // Then
+        result.get(5, TimeUnit.SECONDS);
+        verify(inserter, new Times(1)).insert(any());
+        executor.shutdown();
+    }
+
+    @Test
+    public void add_whenLingerElapsedWhileTenantThrottled_shouldQueueBatchUntilTenantCanSend() throws Exception {
+        // Given
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        final List<Runnable> inFlight = new ArrayList<>();
+        final InsertExecutor throttled = new InsertExecutor(1, 1, runnable -> {
+            synchronized (inFlight) {
+                inFlight.add(runnable);
+            }
+        }, counter);
+        throttled.execute(KEY.getTableId().getProject(), 1, () -> {
+        });
+        final InsertBatcher insertBatcher = new InsertBatcher(100, InsertBatcher.MAX_BYTES_PER_REQUEST, 10L, executor, throttled);
+
+        // When
+        final CompletableFuture<Void> result = insertBatcher.add(KEY, rows(2), inserter);
+
+        // Then
+        verify(counter, timeout(1000)).increment("bigquery.insert.throttled.tenant");
+        verify(inserter, never()).insert(any());
+        assertThat(result).isNotDone();
+
+        // When
+        synchronized (inFlight) {
+            inFlight.remove(0).run();
+        }
+        synchronized (inFlight) {
+            inFlight.remove(0).run();
+        }
+
+        // Then
+        final ArgumentCaptor<InsertAllRequest> request = ArgumentCaptor.forClass(InsertAllRequest.class);
+        verify(inserter).insert(request.capture());
+        assertThat(request.getValue().getRows()).hasSize(2);
+        assertThat(result).isCompleted();
+        executor.shutdown();
+    }
+
+    @Test
+    public void add_whenInsertThrows_shouldFailEveryCall() {
+        // Given
+        final InsertBatcher insertBatcher = new InsertBatcher(4, InsertBatcher.MAX_BYTES_PER_REQUEST, 1000L, lingerExecutor, insertExecutor);
+        doThrow(new BigQueryException(500, "Backend error")).when(inserter).insert(any());
+
+        // When
+        final CompletableFuture<Void> first = insertBatcher.add(KEY, rows(2), inserter);
+        final CompletableFuture<Void> second = insertBatcher.add(KEY, rows(2), inserter);
+
+        // Then
+        assertThat(first).isCompletedExceptionally();
+        assertThat(second).isCompletedExceptionally();
+    }
+
+    @Test
+    public void add_whenSomeRowsRejected_shouldOnlyFailTheCallsOwningThem() throws Exception {
+        // Given
+        final InsertBatcher insertBatcher = new InsertBatcher(4, InsertBatcher.MAX_BYTES_PER_REQUEST, 1000L, lingerExecutor, insertExecutor);
+        final List<BigQueryError> errors = Collections.singletonList(new BigQueryError("invalid", "packages", "Invalid row"));
+        doReturn(true).when(response).hasErrors();
+        doReturn(Collections.singletonMap(3L, errors)).when(response).getInsertErrors();
+        doReturn(errors).when(response).getErrorsFor(3L);
+
+        // When
+        final CompletableFuture<Void> first = insertBatcher.add(KEY, rows(2), inserter);
+        final CompletableFuture<Void> second = insertBatcher.add(KEY, rows(2), inserter);
+
+        // Then
+        assertThat(first).isCompleted();
+        assertThat(second).isCompletedExceptionally();
+        try {
+            second.get();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(BigQueryClientException.class);
+            assertThat(((BigQueryClientException) e.getCause()).isRetryable()).isFalse();
+        }
+    }
+
+    @Test
+    public void constructor_whenLimitsAboveStreamingLimits_shouldCapThem() {
+        // Given
+        final InsertBatcher insertBatcher = new InsertBatcher(50000, Integer.MAX_VALUE, 1000L, lingerExecutor, insertExecutor);
+        final ArgumentCaptor<InsertAllRequest> request = ArgumentCaptor.forClass(InsertAllRequest.class);
+
+        // When
+        insertBatcher.add(KEY, rows(InsertBatcher.MAX_ROWS_PER_REQUEST + 1), inserter);
+
+        // Then
+        verify(inserter).insert(request.capture());
+        assertThat(request.getValue().getRows()).hasSize(InsertBatcher.MAX_ROWS_PER_REQUEST);
+    }
+
+    private static List<InsertAllRequest.RowToInsert> rows(int count) {
+        final List<InsertAllRequest.RowToInsert> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rows.add(InsertAllRequest.RowToInsert.of(Collections.singletonMap("unitId", UUID.randomUUID().toString())));
+        }
+        return rows;
+    }
+}
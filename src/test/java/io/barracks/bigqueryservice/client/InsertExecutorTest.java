@@ -0,0 +1,187 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class InsertExecutorTest {
+
+    // Submitted inserts stay in flight until they are run by the test
+    private final List<Runnable> submitted = new ArrayList<>();
+
+    // Tenants of the inserts, in the order they ran
+    private final List<String> ran = new ArrayList<>();
+
+    @Mock
+    private CounterService counter;
+
+    @Test
+    public void execute_whenTenantCapReached_shouldOnlyQueueThisTenant() {
+        // Given
+        final InsertExecutor insertExecutor = new InsertExecutor(4, 2, submitted::add, counter);
+        insertExecutor.execute("tenant", 1, insert("tenant"));
+        insertExecutor.execute("tenant", 1, insert("tenant"));
+
+        // When
+        insertExecutor.execute("tenant", 1, insert("tenant"));
+        insertExecutor.execute("other", 1, insert("other"));
+
+        // Then
+        assertThat(submitted).hasSize(3);
+        verify(counter).increment("bigquery.insert.throttled.tenant");
+    }
+
+    @Test
+    public void execute_whenGlobalCapReached_shouldQueueEveryTenant() {
+        // Given
+        final InsertExecutor insertExecutor = new InsertExecutor(2, 2, submitted::add, counter);
+        insertExecutor.execute("tenant", 1, insert("tenant"));
+        insertExecutor.execute("other", 1, insert("other"));
+
+        // When
+        insertExecutor.execute("third", 1, insert("third"));
+
+        // Then
+        assertThat(submitted).hasSize(2);
+        verify(counter).increment("bigquery.insert.throttled.global");
+    }
+
+    @Test
+    public void getQueued_whenCapReached_shouldCountWaitingInserts() {
+        // Given
+        final InsertExecutor insertExecutor = new InsertExecutor(2, 1, submitted::add, counter);
+        insertExecutor.execute("tenant", 1, insert("tenant"));
+        insertExecutor.execute("tenant", 1, insert("tenant"));
+        insertExecutor.execute("other", 1, insert("other"));
+
+        // When
+        final int inFlight = insertExecutor.getInFlight();
+        final int queued = insertExecutor.getQueued();
+
+        // Then
+        assertThat(inFlight).isEqualTo(2);
+        assertThat(queued).isEqualTo(1);
+    }
+
+    @Test
+    public void execute_whenInsertCompleted_shouldStartAQueuedInsert() {
+        // Given
+        final InsertExecutor insertExecutor = new InsertExecutor(1, 1, submitted::add, counter);
+        insertExecutor.execute("tenant", 1, insert("tenant"));
+        insertExecutor.execute("tenant", 1, insert("tenant"));
+
+        // When
+        submitted.remove(0).run();
+
+        // Then
+        assertThat(submitted).hasSize(1);
+        submitted.remove(0).run();
+        assertThat(ran).containsExactly("tenant", "tenant");
+    }
+
+    @Test
+    public void execute_whenOneTenantFloodsTheService_shouldAlternateBetweenTenants() {
+        // Given
+        final InsertExecutor insertExecutor = new InsertExecutor(1, 1, 100, ImmutableMap.of(), submitted::add, counter);
+        insertExecutor.execute("noisy", 100, insert("noisy"));
+        for (int i = 0; i < 5; i++) {
+            insertExecutor.execute("noisy", 100, insert("noisy"));
+        }
+        insertExecutor.execute("quiet", 100, insert("quiet"));
+        insertExecutor.execute("quiet", 100, insert("quiet"));
+
+        // When
+        runAll();
+
+        // Then
+        assertThat(ran).containsExactly("noisy", "quiet", "noisy", "quiet", "noisy", "noisy", "noisy", "noisy");
+    }
+
+    @Test
+    public void execute_whenTenantHasAWeight_shouldGiveItAProportionalShare() {
+        // Given
+        final InsertExecutor insertExecutor = new InsertExecutor(1, 1, 100, ImmutableMap.of("heavy", 2), submitted::add, counter);
+        insertExecutor.execute("light", 100, insert("light"));
+        for (int i = 0; i < 4; i++) {
+            insertExecutor.execute("heavy", 100, insert("heavy"));
+            insertExecutor.execute("light", 100, insert("light"));
+        }
+
+        // When
+        runAll();
+
+        // Then
+        assertThat(ran).containsExactly("light", "heavy", "heavy", "light", "heavy", "heavy", "light", "light", "light");
+    }
+
+    @Test
+    public void execute_whenInsertLargerThanQuantum_shouldWaitForEnoughCredit() {
+        // Given
+        final InsertExecutor insertExecutor = new InsertExecutor(1, 1, 100, ImmutableMap.of(), submitted::add, counter);
+        insertExecutor.execute("small", 100, insert("small"));
+        insertExecutor.execute("large", 300, insert("large"));
+        for (int i = 0; i < 3; i++) {
+            insertExecutor.execute("small", 100, insert("small"));
+        }
+
+        // When
+        runAll();
+
+        // Then
+        assertThat(ran).containsExactly("small", "small", "large", "small", "small");
+    }
+
+    @Test
+    public void parseWeights_whenInvalidWeights_shouldIgnoreThem() {
+        // When
+        final Object weights = InsertExecutor.parseWeights(new String[]{"tenant:3", "other: 2", "invalid", "nan:x", "zero:0", ""});
+
+        // Then
+        assertThat(weights).isEqualTo(ImmutableMap.of("tenant", 3, "other", 2, "zero", 1));
+    }
+
+    private Runnable insert(String tenant) {
+        return () -> ran.add(tenant);
+    }
+
+    private void runAll() {
+        while (!submitted.isEmpty()) {
+            submitted.remove(0).run();
+        }
+    }
+
+}
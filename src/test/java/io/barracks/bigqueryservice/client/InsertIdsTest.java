@@ -0,0 +1,71 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InsertIdsTest {
+
+    @Test
+    public void of_whenSameEvent_shouldReturnSameId() {
+        // Given
+        final long timestamp = 1487000000000L;
+
+        // When
+        final String first = InsertIds.of("unit", timestamp, "reference", "1.0.0", "message");
+        final String second = InsertIds.of("unit", timestamp, "reference", "1.0.0", "message");
+
+        // Then
+        assertThat(first).isEqualTo(second).hasSize(32).matches("[0-9a-f]{32}");
+    }
+
+    @Test
+    public void of_whenAnyComponentDiffers_shouldReturnDifferentIds() {
+        // Given
+        final long timestamp = 1487000000000L;
+        final String id = InsertIds.of("unit", timestamp, "reference", "1.0.0", "message");
+
+        // When / Then
+        assertThat(InsertIds.of("unit2", timestamp, "reference", "1.0.0", "message")).isNotEqualTo(id);
+        assertThat(InsertIds.of("unit", timestamp + 1, "reference", "1.0.0", "message")).isNotEqualTo(id);
+        assertThat(InsertIds.of("unit", timestamp, "reference2", "1.0.0", "message")).isNotEqualTo(id);
+        assertThat(InsertIds.of("unit", timestamp, "reference", "1.0.1", "message")).isNotEqualTo(id);
+        assertThat(InsertIds.of("unit", timestamp, "reference", "1.0.0", "message2")).isNotEqualTo(id);
+        assertThat(InsertIds.of("unit", timestamp, "reference", "1.0.0", null)).isNotEqualTo(id);
+    }
+
+    @Test
+    public void of_whenComponentsShifted_shouldReturnDifferentIds() {
+        // When
+        final String first = InsertIds.of("ab", 0L, "c", "1.0.0", "message");
+        final String second = InsertIds.of("a", 0L, "bc", "1.0.0", "message");
+
+        // Then
+        assertThat(first).isNotEqualTo(second);
+    }
+
+}
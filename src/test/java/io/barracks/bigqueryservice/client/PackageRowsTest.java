@@ -0,0 +1,88 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.common.collect.ImmutableMap;
+import io.barracks.bigqueryservice.model.MessageMetadata;
+import io.barracks.bigqueryservice.utils.MessageMetadataUtils;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class PackageRowsTest {
+
+    @Test
+    public void of_shouldBuildRowWithEveryColumn() {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+
+        // When
+        final InsertAllRequest.RowToInsert row = PackageRows.of(messageMetadata, "user", "unit", "10.0.0.1", "agent", "{}", "reference", "1.0.0");
+
+        // Then
+        assertThat(row.getId()).isEqualTo(InsertIds.of("unit", messageMetadata.getTimestamp().toEpochMilli(), "reference", "1.0.0", messageMetadata.getMessageId()));
+        assertThat(row.getContent()).containsOnly(
+                entry("timestamp", messageMetadata.getTimestamp().toString()),
+                entry("userId", "user"),
+                entry("unitId", "unit"),
+                entry("ipAddress", "10.0.0.1"),
+                entry("userAgent", "agent"),
+                entry("customClientData", "{}"),
+                entry("packages", ImmutableMap.of("reference", "reference", "version", "1.0.0"))
+        );
+    }
+
+    @Test
+    public void of_whenValuesAreMissing_shouldLeaveThemOutOrUseDefaults() {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+
+        // When
+        final InsertAllRequest.RowToInsert row = PackageRows.of(messageMetadata, null, "unit", null, null, "{}", "reference", null);
+
+        // Then
+        assertThat(row.getContent())
+                .doesNotContainKey("userId")
+                .containsEntry("ipAddress", " ")
+                .containsEntry("userAgent", " ")
+                .containsEntry("packages", ImmutableMap.of("reference", "reference"));
+    }
+
+    @Test
+    public void of_shouldKeepTheBuiltContentWithoutCopyingIt() {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final InsertAllRequest.RowToInsert row = PackageRows.of(messageMetadata, "user", "unit", null, null, "{}", "reference", "1.0.0");
+
+        // When
+        final InsertAllRequest.RowToInsert copy = InsertAllRequest.RowToInsert.of(row.getId(), row.getContent());
+
+        // Then
+        assertThat(copy.getContent()).isSameAs(row.getContent());
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.cloud.bigquery.InsertAllResponse;
+import com.google.cloud.bigquery.TableId;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PipelineMetricsTest {
+
+    private static final String PROJECT_ID = "project";
+    private static final String TABLE = "events";
+
+    @Mock
+    private GaugeService gauge;
+
+    @Mock
+    private InsertExecutor insertExecutor;
+
+    @Mock
+    private InsertBatcher insertBatcher;
+
+    @Mock
+    private InsertAllResponse response;
+
+    private PipelineMetrics pipelineMetrics;
+
+    @Before
+    public void setUp() {
+        pipelineMetrics = new PipelineMetrics(gauge, insertExecutor, insertBatcher);
+    }
+
+    @Test
+    public void recordStage_shouldSubmitGlobalAndPerTableTimers() {
+        // When
+        pipelineMetrics.recordStage(PipelineMetrics.INSERT, PROJECT_ID, TABLE, System.nanoTime());
+
+        // Then
+        verify(gauge).submit(eq("timer.bigquery.insert"), anyDouble());
+        verify(gauge).submit(eq("timer.bigquery.insert.project.events"), anyDouble());
+    }
+
+    @Test
+    public void recordStage_whenTableUnknown_shouldSubmitPerProjectTimer() {
+        // When
+        pipelineMetrics.recordStage(PipelineMetrics.CREDENTIALS, PROJECT_ID, null, System.nanoTime());
+
+        // Then
+        verify(gauge).submit(eq("timer.bigquery.credentials"), anyDouble());
+        verify(gauge).submit(eq("timer.bigquery.credentials.project"), anyDouble());
+    }
+
+    @Test
+    public void recordStage_whenProjectIsDomainScoped_shouldKeepItOneNameSegment() {
+        // When
+        pipelineMetrics.recordStage(PipelineMetrics.INSERT, "example.com:project", TABLE, System.nanoTime());
+
+        // Then
+        verify(gauge).submit(eq("timer.bigquery.insert.example_com_project.events"), anyDouble());
+    }
+
+    @Test
+    public void metrics_shouldPublishMedianAnd99thPercentileOfTheLatestDurations() {
+        // Given
+        final long now = System.nanoTime();
+        for (int i = 0; i < 50; i++) {
+            pipelineMetrics.recordStage(PipelineMetrics.INSERT, PROJECT_ID, TABLE, now - TimeUnit.MILLISECONDS.toNanos(10));
+            pipelineMetrics.recordStage(PipelineMetrics.INSERT, PROJECT_ID, TABLE, now - TimeUnit.SECONDS.toNanos(10));
+        }
+
+        // When
+        final Map<String, Number> metrics = getMetrics();
+
+        // Then
+        assertThat(metrics.get("timer.bigquery.insert.snapshot.median").doubleValue()).isBetween(10.0, 10000.0);
+        assertThat(metrics.get("timer.bigquery.insert.snapshot.99thPercentile").doubleValue()).isGreaterThanOrEqualTo(10000.0);
+        assertThat(metrics).containsKeys(
+                "timer.bigquery.insert.project.events.snapshot.median",
+                "timer.bigquery.insert.project.events.snapshot.99thPercentile"
+        );
+    }
+
+    @Test
+    public void recordMessage_whenProjectUnknown_shouldCountItUnderUnknown() {
+        // When
+        pipelineMetrics.recordMessage(null, System.nanoTime(), false);
+
+        // Then
+        verify(gauge).submit(eq("timer.message.process.unknown"), anyDouble());
+        assertThat(getMetrics()).containsEntry("counter.message.process.error.unknown", 1L);
+    }
+
+    @Test
+    public void recordMessage_shouldSubmitTimersAndCountOutcomePerProject() {
+        // When
+        pipelineMetrics.recordMessage(PROJECT_ID, System.nanoTime(), true);
+        pipelineMetrics.recordMessage(PROJECT_ID, System.nanoTime(), true);
+        pipelineMetrics.recordMessage(PROJECT_ID, System.nanoTime(), false);
+
+        // Then
+        verify(gauge, times(3)).submit(eq("timer.message.process"), anyDouble());
+        verify(gauge, times(3)).submit(eq("timer.message.process.project"), anyDouble());
+        assertThat(getMetrics())
+                .containsEntry("counter.message.process.success.project", 2L)
+                .containsEntry("counter.message.process.error.project", 1L);
+    }
+
+    @Test
+    public void recordInsert_shouldCountRowsBytesAndRowErrorsPerTable() {
+        // Given
+        final Map<String, Object> content = ImmutableMap.of("key", "value");
+        final InsertAllRequest request = InsertAllRequest.of(TableId.of(PROJECT_ID, "dataset", TABLE), Collections.nCopies(3, InsertAllRequest.RowToInsert.of(content)));
+        doReturn(true).when(response).hasErrors();
+        doReturn(ImmutableMap.of(0L, Collections.singletonList(new BigQueryError("invalid", "key", "Invalid value")))).when(response).getInsertErrors();
+
+        // When
+        pipelineMetrics.recordInsert(request, response);
+
+        // Then
+        assertThat(getMetrics())
+                .containsEntry("counter.bigquery.insert.rows.project.events", 3L)
+                .containsEntry("counter.bigquery.insert.bytes.project.events", 3L * InsertBatcher.estimateSize(content))
+                .containsEntry("counter.bigquery.insert.rowerrors.project.events", 1L);
+    }
+
+    @Test
+    public void recordInsertFailure_shouldCountErrorsPerTable() {
+        // Given
+        final InsertAllRequest request = InsertAllRequest.of(TableId.of(PROJECT_ID, "dataset", TABLE), InsertAllRequest.RowToInsert.of(ImmutableMap.of("key", "value")));
+
+        // When
+        pipelineMetrics.recordInsertFailure(request);
+
+        // Then
+        assertThat(getMetrics()).containsEntry("counter.bigquery.insert.errors.project.events", 1L);
+    }
+
+    @Test
+    public void metrics_shouldReadInsertGauges() {
+        // Given
+        doReturn(2).when(insertExecutor).getInFlight();
+        doReturn(5).when(insertExecutor).getQueued();
+        doReturn(42).when(insertBatcher).getBufferedRows();
+
+        // When
+        final Map<String, Number> metrics = getMetrics();
+
+        // Then
+        assertThat(metrics)
+                .containsEntry("gauge.bigquery.insert.inflight", 2)
+                .containsEntry("gauge.bigquery.insert.queued", 5)
+                .containsEntry("gauge.bigquery.batcher.rows", 42);
+    }
+
+    private Map<String, Number> getMetrics() {
+        return pipelineMetrics.metrics().stream().collect(Collectors.toMap(Metric::getName, Metric::getValue));
+    }
+}
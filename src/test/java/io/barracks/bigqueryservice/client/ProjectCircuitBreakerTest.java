@@ -0,0 +1,155 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ProjectCircuitBreakerTest {
+
+    private static final long OPEN_DURATION = 1000L;
+    private static final String PROJECT_ID = "project";
+
+    @Mock
+    private CounterService counter;
+
+    private ProjectCircuitBreaker projectCircuitBreaker;
+
+    @Before
+    public void setUp() {
+        projectCircuitBreaker = spy(new ProjectCircuitBreaker(3, OPEN_DURATION, counter));
+        doReturn(0L).when(projectCircuitBreaker).now();
+    }
+
+    @Test
+    public void allowRequest_whenFailuresBelowThreshold_shouldAllowRequests() {
+        // Given
+        projectCircuitBreaker.recordFailure(PROJECT_ID);
+        projectCircuitBreaker.recordFailure(PROJECT_ID);
+
+        // When
+        final boolean allowed = projectCircuitBreaker.allowRequest(PROJECT_ID);
+
+        // Then
+        assertThat(allowed).isTrue();
+        assertThat(projectCircuitBreaker.getState(PROJECT_ID)).isEqualTo(ProjectCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void allowRequest_whenThresholdReached_shouldOpenCircuitOfThisProjectOnly() {
+        // Given
+        failTimes(3);
+
+        // When
+        final boolean allowed = projectCircuitBreaker.allowRequest(PROJECT_ID);
+
+        // Then
+        assertThat(allowed).isFalse();
+        assertThat(projectCircuitBreaker.allowRequest("other")).isTrue();
+        assertThat(projectCircuitBreaker.getState(PROJECT_ID)).isEqualTo(ProjectCircuitBreaker.State.OPEN);
+        verify(counter).increment("bigquery.circuit.opened");
+        verify(counter).increment("bigquery.circuit.rejected");
+    }
+
+    @Test
+    public void allowRequest_whenSuccessBetweenFailures_shouldKeepCircuitClosed() {
+        // Given
+        failTimes(2);
+        projectCircuitBreaker.recordSuccess(PROJECT_ID);
+        failTimes(2);
+
+        // When
+        final boolean allowed = projectCircuitBreaker.allowRequest(PROJECT_ID);
+
+        // Then
+        assertThat(allowed).isTrue();
+        verify(counter, never()).increment("bigquery.circuit.opened");
+    }
+
+    @Test
+    public void allowRequest_whenOpenDurationElapsed_shouldLetOneTrialThrough() {
+        // Given
+        failTimes(3);
+        doReturn(TimeUnit.MILLISECONDS.toNanos(OPEN_DURATION)).when(projectCircuitBreaker).now();
+
+        // When
+        final boolean trial = projectCircuitBreaker.allowRequest(PROJECT_ID);
+        final boolean next = projectCircuitBreaker.allowRequest(PROJECT_ID);
+
+        // Then
+        assertThat(trial).isTrue();
+        assertThat(next).isFalse();
+        assertThat(projectCircuitBreaker.getState(PROJECT_ID)).isEqualTo(ProjectCircuitBreaker.State.HALF_OPEN);
+    }
+
+    @Test
+    public void recordSuccess_whenHalfOpen_shouldCloseCircuit() {
+        // Given
+        failTimes(3);
+        doReturn(TimeUnit.MILLISECONDS.toNanos(OPEN_DURATION)).when(projectCircuitBreaker).now();
+        projectCircuitBreaker.allowRequest(PROJECT_ID);
+
+        // When
+        projectCircuitBreaker.recordSuccess(PROJECT_ID);
+
+        // Then
+        assertThat(projectCircuitBreaker.allowRequest(PROJECT_ID)).isTrue();
+        assertThat(projectCircuitBreaker.getStatuses()).isEmpty();
+        verify(counter).increment("bigquery.circuit.closed");
+    }
+
+    @Test
+    public void recordFailure_whenHalfOpen_shouldOpenCircuitAgain() {
+        // Given
+        failTimes(3);
+        doReturn(TimeUnit.MILLISECONDS.toNanos(OPEN_DURATION)).when(projectCircuitBreaker).now();
+        projectCircuitBreaker.allowRequest(PROJECT_ID);
+
+        // When
+        projectCircuitBreaker.recordFailure(PROJECT_ID);
+
+        // Then
+        assertThat(projectCircuitBreaker.allowRequest(PROJECT_ID)).isFalse();
+        assertThat(projectCircuitBreaker.getStatuses()).containsEntry(PROJECT_ID, ProjectCircuitBreaker.CircuitStatus.of(ProjectCircuitBreaker.State.OPEN, 4, 0L));
+        verify(counter, times(2)).increment("bigquery.circuit.opened");
+    }
+
+    private void failTimes(int times) {
+        for (int i = 0; i < times; i++) {
+            projectCircuitBreaker.recordFailure(PROJECT_ID);
+        }
+    }
+
+}
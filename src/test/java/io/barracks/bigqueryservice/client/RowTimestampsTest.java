@@ -0,0 +1,69 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import org.junit.Test;
+
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RowTimestampsTest {
+
+    @Test
+    public void format_shouldFormatLikeInstant() {
+        // Given
+        final Instant timestamp = Instant.ofEpochMilli(1500000000123L);
+
+        // When / Then
+        assertThat(RowTimestamps.format(timestamp)).isEqualTo(timestamp.toString());
+    }
+
+    @Test
+    public void format_whenSameTimestamp_shouldReuseTheString() {
+        // Given
+        final Instant timestamp = Instant.ofEpochMilli(1500000000456L);
+        final String first = RowTimestamps.format(timestamp);
+
+        // When
+        final String second = RowTimestamps.format(Instant.ofEpochMilli(1500000000456L));
+
+        // Then
+        assertThat(second).isSameAs(first);
+    }
+
+    @Test
+    public void format_whenTimestampChanges_shouldFormatTheNewOne() {
+        // Given
+        RowTimestamps.format(Instant.ofEpochMilli(1500000000000L));
+
+        // When
+        final String result = RowTimestamps.format(Instant.ofEpochMilli(1500000001000L));
+
+        // Then
+        assertThat(result).isEqualTo(Instant.ofEpochMilli(1500000001000L).toString());
+    }
+
+}
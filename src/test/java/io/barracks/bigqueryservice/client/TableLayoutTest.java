@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TableLayoutTest {
+
+    @Test
+    public void isPartitioned_whenProjectIsListed_shouldReturnTrue() {
+        // Given
+        final TableLayout tableLayout = new TableLayout(new String[]{"project-a", " project-b "}, new String[0], new String[0], new String[0], new String[0]);
+
+        // When / Then
+        assertThat(tableLayout.isPartitioned("project-b")).isTrue();
+        assertThat(tableLayout.isPartitioned("project-c")).isFalse();
+    }
+
+    @Test
+    public void isPartitioned_whenNoProjectIsListed_shouldReturnFalse() {
+        // Given
+        final TableLayout tableLayout = new TableLayout(new String[0], new String[0], new String[0], new String[0], new String[0]);
+
+        // When / Then
+        assertThat(tableLayout.isPartitioned("project-a")).isFalse();
+    }
+
+    @Test
+    public void isPartitioned_whenWildcardIsListed_shouldReturnTrueForEveryProject() {
+        // Given
+        final TableLayout tableLayout = new TableLayout(new String[]{"*"}, new String[0], new String[0], new String[0], new String[0]);
+
+        // When / Then
+        assertThat(tableLayout.isPartitioned("project-a")).isTrue();
+    }
+
+    @Test
+    public void isNested_whenProjectIsListed_shouldReturnTrueIndependentlyOfPartitioning() {
+        // Given
+        final TableLayout tableLayout = new TableLayout(new String[0], new String[]{"project-a"}, new String[0], new String[0], new String[0]);
+
+        // When / Then
+        assertThat(tableLayout.isNested("project-a")).isTrue();
+        assertThat(tableLayout.isPartitioned("project-a")).isFalse();
+        assertThat(tableLayout.isNested("project-b")).isFalse();
+    }
+
+    @Test
+    public void isChangeOnly_whenProjectIsListed_shouldReturnTrue() {
+        // Given
+        final TableLayout tableLayout = new TableLayout(new String[0], new String[0], new String[]{"project-a"}, new String[0], new String[0]);
+
+        // When / Then
+        assertThat(tableLayout.isChangeOnly("project-a")).isTrue();
+        assertThat(tableLayout.isChangeOnly("project-b")).isFalse();
+    }
+
+    @Test
+    public void isRolledUp_whenProjectIsListedAsRollupOnly_shouldReturnTrue() {
+        // Given
+        final TableLayout tableLayout = new TableLayout(new String[0], new String[0], new String[0], new String[]{"project-a"}, new String[]{"project-b"});
+
+        // When / Then
+        assertThat(tableLayout.isRolledUp("project-a")).isTrue();
+        assertThat(tableLayout.isRollupOnly("project-a")).isFalse();
+        assertThat(tableLayout.isRolledUp("project-b")).isTrue();
+        assertThat(tableLayout.isRollupOnly("project-b")).isTrue();
+        assertThat(tableLayout.isRolledUp("project-c")).isFalse();
+    }
+
+}
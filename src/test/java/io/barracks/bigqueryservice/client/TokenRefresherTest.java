@@ -0,0 +1,120 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TokenRefresherTest {
+
+    private static final long MARGIN = 300000L;
+
+    @Mock
+    private BigQueryServiceCache bigQueryServiceCache;
+
+    @Mock
+    private ScheduledExecutorService refreshExecutor;
+
+    @Mock
+    private CounterService counter;
+
+    @Mock
+    private GaugeService gauge;
+
+    @Mock
+    private RefreshingCredentials expiring;
+
+    @Mock
+    private RefreshingCredentials valid;
+
+    private TokenRefresher tokenRefresher;
+
+    @Before
+    public void setUp() {
+        tokenRefresher = new TokenRefresher(bigQueryServiceCache, 60000L, MARGIN, refreshExecutor, counter, gauge);
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArguments()[0]).run();
+            return null;
+        }).when(refreshExecutor).execute(any(Runnable.class));
+        doReturn(Arrays.asList(expiring, valid)).when(bigQueryServiceCache).getActiveCredentials();
+        doReturn(true).when(expiring).needsRefresh(MARGIN);
+        doReturn(true).when(expiring).startRefreshing();
+    }
+
+    @Test
+    public void refreshExpiringTokens_shouldOnlyRefreshTokensExpiringWithinMargin() throws Exception {
+        // When
+        tokenRefresher.refreshExpiringTokens();
+
+        // Then
+        verify(expiring).refresh();
+        verify(expiring).stopRefreshing();
+        verify(valid, never()).refresh();
+        verify(counter).increment("bigquery.token.refresh.success");
+        verify(gauge).submit(eq("timer.bigquery.token.refresh"), anyDouble());
+    }
+
+    @Test
+    public void refreshExpiringTokens_whenAlreadyRefreshing_shouldNotRefreshAgain() throws Exception {
+        // Given
+        doReturn(false).when(expiring).startRefreshing();
+
+        // When
+        tokenRefresher.refreshExpiringTokens();
+
+        // Then
+        verify(expiring, never()).refresh();
+        verifyZeroInteractions(refreshExecutor);
+    }
+
+    @Test
+    public void refreshExpiringTokens_whenRefreshFails_shouldCountErrorAndReleaseCredentials() throws Exception {
+        // Given
+        doThrow(new IOException("Token endpoint unavailable")).when(expiring).refresh();
+
+        // When
+        tokenRefresher.refreshExpiringTokens();
+
+        // Then
+        verify(expiring).stopRefreshing();
+        verify(counter).increment("bigquery.token.refresh.error");
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.client;
+
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.common.collect.ImmutableMap;
+import io.barracks.bigqueryservice.model.GoogleClientSecret;
+import io.barracks.bigqueryservice.model.MessageMetadata;
+import io.barracks.bigqueryservice.model.Package;
+import io.barracks.bigqueryservice.utils.GoogleClientSecretUtils;
+import io.barracks.bigqueryservice.utils.PackageUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class VersionRollupTest {
+
+    private static final long BUCKET = TimeUnit.HOURS.toMillis(1);
+    private static final Instant FIRST_BUCKET = Instant.parse("2017-03-01T10:00:00Z");
+    private static final Instant SECOND_BUCKET = Instant.parse("2017-03-01T11:00:00Z");
+
+    @Mock
+    private BigQueryClient bigQueryClient;
+
+    @Mock
+    private ScheduledExecutorService flushExecutor;
+
+    @Mock
+    private CounterService counter;
+
+    private final GoogleClientSecret googleClientSecret = GoogleClientSecretUtils.getGoogleClientSecret();
+
+    private VersionRollup versionRollup;
+
+    @Before
+    public void setUp() throws Exception {
+        versionRollup = new VersionRollup(BUCKET, 60000L, 2, bigQueryClient, flushExecutor, counter);
+        doReturn(CompletableFuture.completedFuture(null)).when(bigQueryClient).sendRollupRows(any(), any(), any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void flush_shouldWriteOneCountPerBucketAndPackageVersion() throws Exception {
+        // Given
+        final Package first = PackageUtils.getPackage();
+        final Package second = PackageUtils.getPackage();
+        versionRollup.add(googleClientSecret, metadataAt(FIRST_BUCKET.plusSeconds(10)), Arrays.asList(first, second));
+        versionRollup.add(googleClientSecret, metadataAt(FIRST_BUCKET.plusSeconds(3599)), Collections.singletonList(first));
+        versionRollup.add(googleClientSecret, metadataAt(SECOND_BUCKET), Collections.singletonList(first));
+        final ArgumentCaptor<List> firstRows = ArgumentCaptor.forClass(List.class);
+        final ArgumentCaptor<List> secondRows = ArgumentCaptor.forClass(List.class);
+
+        // When
+        versionRollup.flush();
+
+        // Then
+        verify(bigQueryClient).sendRollupRows(eq(googleClientSecret), eq(FIRST_BUCKET), firstRows.capture());
+        verify(bigQueryClient).sendRollupRows(eq(googleClientSecret), eq(SECOND_BUCKET), secondRows.capture());
+        assertThat(contents(firstRows.getValue())).containsOnly(
+                rollupRow(FIRST_BUCKET, first, 2L),
+                rollupRow(FIRST_BUCKET, second, 1L)
+        );
+        assertThat(contents(secondRows.getValue())).containsOnly(rollupRow(SECOND_BUCKET, first, 1L));
+        verify(counter, times(2)).increment("bigquery.rollup.flush.success");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void flush_whenRowsReadFromMessage_shouldCountTheirPackages() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = metadataAt(FIRST_BUCKET);
+        final Package aPackage = PackageUtils.getPackage();
+        final InsertAllRequest.RowToInsert row = PackageRows.of(messageMetadata, "user", "unit", null, null, "{}", aPackage.getReference(), aPackage.getVersion().get());
+        versionRollup.add(DeviceEventRows.of(googleClientSecret, messageMetadata, Arrays.asList(row, row)));
+        final ArgumentCaptor<List> rows = ArgumentCaptor.forClass(List.class);
+
+        // When
+        versionRollup.flush();
+
+        // Then
+        verify(bigQueryClient).sendRollupRows(eq(googleClientSecret), eq(FIRST_BUCKET), rows.capture());
+        assertThat(contents(rows.getValue())).containsOnly(rollupRow(FIRST_BUCKET, aPackage, 2L));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void flush_whenWriteFails_shouldSendTheSameRowsAgainWithNextFlush() throws Exception {
+        // Given
+        final Package aPackage = PackageUtils.getPackage();
+        final CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException());
+        doReturn(failed).doReturn(CompletableFuture.completedFuture(null)).when(bigQueryClient).sendRollupRows(any(), any(), any());
+        versionRollup.add(googleClientSecret, metadataAt(FIRST_BUCKET), Collections.singletonList(aPackage));
+        versionRollup.flush();
+        versionRollup.add(googleClientSecret, metadataAt(FIRST_BUCKET), Collections.singletonList(aPackage));
+        final ArgumentCaptor<List> rows = ArgumentCaptor.forClass(List.class);
+
+        // When
+        versionRollup.flush();
+
+        // Then
+        verify(bigQueryClient, times(3)).sendRollupRows(eq(googleClientSecret), eq(FIRST_BUCKET), rows.capture());
+        final List<InsertAllRequest.RowToInsert> first = rows.getAllValues().get(0);
+        final List<InsertAllRequest.RowToInsert> resent = rows.getAllValues().get(1);
+        final List<InsertAllRequest.RowToInsert> next = rows.getAllValues().get(2);
+        assertThat(resent).isEqualTo(first);
+        assertThat(contents(resent)).containsOnly(rollupRow(FIRST_BUCKET, aPackage, 1L));
+        assertThat(contents(next)).containsOnly(rollupRow(FIRST_BUCKET, aPackage, 1L));
+        assertThat(next.get(0).getId()).isNotNull().isNotEqualTo(first.get(0).getId());
+        verify(counter).increment("bigquery.rollup.flush.error");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void flush_whenTooManyWritesFailed_shouldDropTheOldest() throws Exception {
+        // Given
+        final Package aPackage = PackageUtils.getPackage();
+        final CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException());
+        doReturn(failed).when(bigQueryClient).sendRollupRows(any(), any(), any());
+        for (int i = 0; i < 3; i++) {
+            versionRollup.add(googleClientSecret, metadataAt(FIRST_BUCKET.plus(i, ChronoUnit.HOURS)), Collections.singletonList(aPackage));
+            versionRollup.flush();
+        }
+        doReturn(CompletableFuture.completedFuture(null)).when(bigQueryClient).sendRollupRows(any(), any(), any());
+
+        // When
+        versionRollup.flush();
+
+        // Then
+        verify(counter).increment("bigquery.rollup.flush.dropped");
+        verify(bigQueryClient, times(3)).sendRollupRows(eq(googleClientSecret), eq(FIRST_BUCKET), any(List.class));
+        verify(bigQueryClient, times(3)).sendRollupRows(eq(googleClientSecret), eq(SECOND_BUCKET), any(List.class));
+        verify(bigQueryClient, times(2)).sendRollupRows(eq(googleClientSecret), eq(SECOND_BUCKET.plus(1, ChronoUnit.HOURS)), any(List.class));
+        verify(counter, times(2)).increment("bigquery.rollup.flush.success");
+    }
+
+    @Test
+    public void stop_shouldWaitForTheWritesInFlight() throws Exception {
+        // Given
+        final CompletableFuture<Void> sent = new CompletableFuture<>();
+        doReturn(sent).when(bigQueryClient).sendRollupRows(any(), any(), any());
+        versionRollup.add(googleClientSecret, metadataAt(FIRST_BUCKET), Collections.singletonList(PackageUtils.getPackage()));
+        final Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(100L);
+            } catch (InterruptedException ignored) {
+            }
+            sent.complete(null);
+        });
+        writer.start();
+
+        // When
+        versionRollup.stop();
+
+        // Then
+        verify(flushExecutor).shutdown();
+        verify(counter).increment("bigquery.rollup.flush.success");
+        writer.join();
+    }
+
+    @Test
+    public void flush_whenNothingCounted_shouldNotWriteAnything() throws Exception {
+        // When
+        versionRollup.flush();
+
+        // Then
+        verifyZeroInteractions(bigQueryClient);
+    }
+
+    private static MessageMetadata metadataAt(Instant timestamp) {
+        return MessageMetadata.builder().messageId("message").timestamp(timestamp).build();
+    }
+
+    private static Map<String, Object> rollupRow(Instant bucket, Package aPackage, long count) {
+        return ImmutableMap.of(
+                "timestamp", RowTimestamps.format(bucket),
+                "reference", aPackage.getReference(),
+                "version", aPackage.getVersion().get(),
+                "count", count
+        );
+    }
+
+    private static List<Map<String, Object>> contents(List<InsertAllRequest.RowToInsert> rows) {
+        return rows.stream().map(InsertAllRequest.RowToInsert::getContent).collect(Collectors.toList());
+    }
+
+}
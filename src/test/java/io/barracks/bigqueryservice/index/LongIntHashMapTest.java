@@ -0,0 +1,112 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.index;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class LongIntHashMapTest {
+
+    @Test
+    public void get_whenKeyAbsent_shouldReturnNoValue() {
+        // Given
+        final LongIntHashMap map = new LongIntHashMap(4);
+
+        // When / Then
+        assertThat(map.get(42L)).isEqualTo(LongIntHashMap.NO_VALUE);
+        assertThat(map.get(0L)).isEqualTo(LongIntHashMap.NO_VALUE);
+    }
+
+    @Test
+    public void put_shouldReturnPreviousValue() {
+        // Given
+        final LongIntHashMap map = new LongIntHashMap(4);
+
+        // When
+        final int first = map.put(42L, 1);
+        final int second = map.put(42L, 2);
+
+        // Then
+        assertThat(first).isEqualTo(LongIntHashMap.NO_VALUE);
+        assertThat(second).isEqualTo(1);
+        assertThat(map.get(42L)).isEqualTo(2);
+        assertThat(map.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void put_whenKeyIsZero_shouldStoreIt() {
+        // Given
+        final LongIntHashMap map = new LongIntHashMap(4);
+
+        // When
+        map.put(0L, 7);
+
+        // Then
+        assertThat(map.get(0L)).isEqualTo(7);
+        assertThat(map.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void put_whenGrowing_shouldKeepEveryEntry() {
+        // Given
+        final LongIntHashMap map = new LongIntHashMap(4);
+        final Map<Long, Integer> expected = new HashMap<>();
+        final Random random = new Random(42L);
+
+        // When
+        for (int i = 0; i < 10000; i++) {
+            final long key = random.nextLong();
+            map.put(key, i);
+            expected.put(key, i);
+        }
+
+        // Then
+        assertThat(map.size()).isEqualTo(expected.size());
+        expected.forEach((key, value) -> assertThat(map.get(key)).isEqualTo(value));
+    }
+
+    @Test
+    public void forEach_shouldVisitEveryEntry() {
+        // Given
+        final LongIntHashMap map = new LongIntHashMap(4);
+        map.put(0L, 1);
+        map.put(42L, 2);
+        map.put(-7L, 3);
+        final Map<Long, Integer> visited = new HashMap<>();
+
+        // When
+        map.forEach(visited::put);
+
+        // Then
+        assertThat(visited).containsOnly(entry(0L, 1), entry(42L, 2), entry(-7L, 3));
+    }
+
+}
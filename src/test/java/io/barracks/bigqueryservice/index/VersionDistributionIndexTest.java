@@ -0,0 +1,228 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.index;
+
+import com.google.common.collect.ImmutableMap;
+import io.barracks.bigqueryservice.client.DeviceEventRows;
+import io.barracks.bigqueryservice.client.PackageRows;
+import io.barracks.bigqueryservice.model.DeviceEventHook;
+import io.barracks.bigqueryservice.model.MessageMetadata;
+import io.barracks.bigqueryservice.model.Package;
+import io.barracks.bigqueryservice.utils.DeviceEventHookUtils;
+import io.barracks.bigqueryservice.utils.MessageMetadataUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class VersionDistributionIndexTest {
+
+    private static final String REFERENCE = "io.barracks.firmware";
+    private static final long EXPIRY = TimeUnit.DAYS.toMillis(1);
+
+    @Mock
+    private CounterService counter;
+
+    private final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+
+    private final DeviceEventHook template = DeviceEventHookUtils.getDeviceEventHook();
+
+    private final String projectId = template.getHook().getGoogleClientSecret().getProjectId();
+
+    private VersionDistributionIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        index = new VersionDistributionIndex(true, 10, 10, 10, 100L, EXPIRY, 2, counter);
+    }
+
+    @Test
+    public void getDistribution_shouldCountUnitsPerLastReportedVersion() {
+        // Given
+        index.add(hookOf("unit1", "1.0"), messageMetadata);
+        index.add(hookOf("unit2", "1.0"), messageMetadata);
+        index.add(hookOf("unit3", "1.0"), messageMetadata);
+        index.add(hookOf("unit3", "2.0"), messageMetadata);
+        index.add(hookOf("unit3", "2.0"), messageMetadata);
+
+        // When
+        final VersionDistribution distribution = index.getDistribution(projectId, REFERENCE);
+
+        // Then
+        assertThat(distribution).isEqualTo(VersionDistribution.of(REFERENCE, 3, ImmutableMap.of("1.0", 2, "2.0", 1)));
+        assertThat(index.getReferences(projectId)).containsExactly(REFERENCE);
+        assertThat(index.getUnits()).isEqualTo(3L);
+    }
+
+    @Test
+    public void getDistribution_whenPackageUnknown_shouldReturnEmptyDistribution() {
+        // When
+        final VersionDistribution distribution = index.getDistribution("project", REFERENCE);
+
+        // Then
+        assertThat(distribution).isEqualTo(VersionDistribution.of(REFERENCE, 0, Collections.emptyMap()));
+    }
+
+    @Test
+    public void getRecentUpdates_shouldReturnLastVersionChangesFirst() {
+        // Given
+        index.add(hookOf("unit1", "1.0"), messageMetadata);
+        index.add(hookOf("unit1", "2.0"), messageMetadata);
+        index.add(hookOf("unit1", "3.0"), messageMetadata);
+        index.add(hookOf("unit1", "4.0"), messageMetadata);
+
+        // When
+        final List<VersionUpdate> updates = index.getRecentUpdates(projectId, 10);
+
+        // Then
+        final String timestamp = messageMetadata.getTimestamp().toString();
+        assertThat(updates).containsExactly(
+                VersionUpdate.of(timestamp, "unit1", REFERENCE, "3.0", "4.0"),
+                VersionUpdate.of(timestamp, "unit1", REFERENCE, "2.0", "3.0")
+        );
+        assertThat(index.getRecentUpdates(projectId, 1)).hasSize(1);
+    }
+
+    @Test
+    public void add_whenIndexFull_shouldLeaveNewUnitsOut() {
+        // Given
+        index = new VersionDistributionIndex(true, 10, 10, 10, 1L, EXPIRY, 2, counter);
+        index.add(hookOf("unit1", "1.0"), messageMetadata);
+
+        // When
+        index.add(hookOf("unit2", "1.0"), messageMetadata);
+        index.add(hookOf("unit1", "2.0"), messageMetadata);
+
+        // Then
+        assertThat(index.getDistribution(projectId, REFERENCE)).isEqualTo(VersionDistribution.of(REFERENCE, 1, ImmutableMap.of("2.0", 1)));
+        verify(counter).increment("index.units.full");
+    }
+
+    @Test
+    public void add_whenVersionsFull_shouldLeaveNewVersionsOutWithoutTrackingTheUnit() {
+        // Given
+        index = new VersionDistributionIndex(true, 10, 10, 1, 100L, EXPIRY, 2, counter);
+        index.add(hookOf("unit1", "1.0"), messageMetadata);
+
+        // When
+        index.add(hookOf("unit2", "2.0"), messageMetadata);
+        index.add(hookOf("unit1", "2.0"), messageMetadata);
+
+        // Then
+        assertThat(index.getDistribution(projectId, REFERENCE)).isEqualTo(VersionDistribution.of(REFERENCE, 1, ImmutableMap.of("1.0", 1)));
+        assertThat(index.getUnits()).isEqualTo(1L);
+        verify(counter, times(2)).increment("index.versions.full");
+    }
+
+    @Test
+    public void add_whenPackagesFull_shouldLeaveNewPackagesOut() {
+        // Given
+        index = new VersionDistributionIndex(true, 10, 1, 10, 100L, EXPIRY, 2, counter);
+        index.add(hookOf("unit1", "1.0"), messageMetadata);
+
+        // When
+        index.add(hookOf("unit1", "other.package", "1.0"), messageMetadata);
+
+        // Then
+        assertThat(index.getReferences(projectId)).containsExactly(REFERENCE);
+        verify(counter).increment("index.packages.full");
+    }
+
+    @Test
+    public void expire_shouldDropUnitsNotSeenSinceExpiryAndEmptyPackages() {
+        // Given
+        final MessageMetadata later = MessageMetadata.builder()
+                .messageId("later")
+                .timestamp(messageMetadata.getTimestamp().plusMillis(EXPIRY))
+                .build();
+        index.add(hookOf("unit1", "1.0"), messageMetadata);
+        index.add(hookOf("unit2", "1.0"), messageMetadata);
+        index.add(hookOf("unit2", "2.0"), later);
+        index.add(hookOf("unit3", "other.package", "1.0"), messageMetadata);
+
+        // When
+        index.expire(later.getTimestamp().plusSeconds(60));
+
+        // Then
+        assertThat(index.getDistribution(projectId, REFERENCE)).isEqualTo(VersionDistribution.of(REFERENCE, 1, ImmutableMap.of("2.0", 1)));
+        assertThat(index.getReferences(projectId)).containsExactly(REFERENCE);
+        assertThat(index.getUnits()).isEqualTo(1L);
+    }
+
+    @Test
+    public void add_whenRowsReadFromMessage_shouldIndexTheirPackages() {
+        // Given
+        final DeviceEventRows rows = DeviceEventRows.of(template.getHook().getGoogleClientSecret(), messageMetadata, Arrays.asList(
+                PackageRows.of(messageMetadata, "user", "unit1", null, null, "{}", REFERENCE, "1.0"),
+                PackageRows.of(messageMetadata, "user", "unit2", null, null, "{}", REFERENCE, "2.0")
+        ));
+
+        // When
+        index.add(rows);
+
+        // Then
+        assertThat(index.getDistribution(projectId, REFERENCE)).isEqualTo(VersionDistribution.of(REFERENCE, 2, ImmutableMap.of("1.0", 1, "2.0", 1)));
+    }
+
+    @Test
+    public void add_whenDisabled_shouldNotIndexAnything() {
+        // Given
+        index = new VersionDistributionIndex(false, 10, 10, 10, 100L, EXPIRY, 2, counter);
+
+        // When
+        index.add(hookOf("unit1", "1.0"), messageMetadata);
+
+        // Then
+        assertThat(index.getReferences(projectId)).isEmpty();
+    }
+
+    private DeviceEventHook hookOf(String unitId, String version) {
+        return hookOf(unitId, REFERENCE, version);
+    }
+
+    private DeviceEventHook hookOf(String unitId, String reference, String version) {
+        return template.toBuilder()
+                .deviceEvent(template.getDeviceEvent().toBuilder()
+                        .request(template.getDeviceEvent().getRequest().toBuilder()
+                                .unitId(unitId)
+                                .packages(Collections.singletonList(Package.builder().reference(reference).version(version).build()))
+                                .build())
+                        .build())
+                .build();
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.loadjob;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.cloud.bigquery.TableId;
+import io.barracks.bigqueryservice.model.GoogleClientSecret;
+import io.barracks.bigqueryservice.utils.GoogleClientSecretUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LoadJobSinkTest {
+
+    private static final TableId TABLE_ID = TableId.of("project", "Barracks", "ResolveVersions");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private CounterService counter;
+
+    @Mock
+    private ScheduledExecutorService executor;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final LocalLoadJobs loadJobs = new LocalLoadJobs();
+
+    private GoogleClientSecret googleClientSecret;
+
+    @Before
+    public void setUp() {
+        googleClientSecret = GoogleClientSecretUtils.getGoogleClientSecret();
+    }
+
+    @Test
+    public void accepts_shouldOnlyAcceptConfiguredProjects() {
+        // Given
+        final LoadJobSink loadJobSink = loadJobSink(1024 * 1024, 60000L);
+
+        // When / Then
+        assertThat(loadJobSink.accepts("project")).isTrue();
+        assertThat(loadJobSink.accepts("other")).isFalse();
+    }
+
+    @Test
+    public void add_shouldCompleteOnceRowsAreSynced() throws Exception {
+        // Given
+        final LoadJobSink loadJobSink = loadJobSink(1024 * 1024, 60000L);
+
+        // When
+        final CompletableFuture<Void> result = loadJobSink.add(googleClientSecret, TABLE_ID, rows(2));
+
+        // Then
+        assertThat(result).isNotDone();
+
+        // When
+        loadJobSink.sync();
+
+        // Then
+        assertThat(result).isCompleted();
+        assertThat(files(LoadJobSink.PART_EXTENSION)).hasSize(1);
+        assertThat(Files.readAllLines(files(LoadJobSink.PART_EXTENSION).get(0))).hasSize(2);
+    }
+
+    @Test
+    public void processJobs_whenFileRolledOver_shouldLoadItAndDeleteIt() throws Exception {
+        // Given
+        final LoadJobSink loadJobSink = loadJobSink(1, 60000L);
+        loadJobSink.add(googleClientSecret, TABLE_ID, rows(3));
+        loadJobSink.sync();
+
+        // When
+        loadJobSink.processJobs();
+
+        // Then
+        assertThat(loadJobs.submitted).hasSize(1);
+        assertThat(loadJobs.submitted.get(0)).hasSize(3);
+        assertThat(files(LoadJobSink.JOB_EXTENSION)).hasSize(1);
+
+        // When
+        loadJobs.status = LoadJobs.Status.SUCCEEDED;
+        loadJobSink.processJobs();
+
+        // Then
+        assertThat(files(LoadJobSink.READY_EXTENSION)).isEmpty();
+        assertThat(files(LoadJobSink.JOB_EXTENSION)).isEmpty();
+    }
+
+    @Test
+    public void processJobs_whenJobFailedTransiently_shouldSubmitFileAgain() throws Exception {
+        // Given
+        final LoadJobSink loadJobSink = loadJobSink(1, 60000L);
+        loadJobSink.add(googleClientSecret, TABLE_ID, rows(1));
+        loadJobSink.sync();
+        loadJobSink.processJobs();
+        loadJobs.status = LoadJobs.Status.FAILED_RETRYABLE;
+
+        // When
+        loadJobSink.processJobs();
+        loadJobSink.processJobs();
+
+        // Then
+        assertThat(loadJobs.submitted).hasSize(2);
+        assertThat(loadJobs.jobIds).hasSize(2);
+        assertThat(files(LoadJobSink.READY_EXTENSION)).hasSize(1);
+    }
+
+    @Test
+    public void processJobs_whenJobSubmittedButNotRecorded_shouldNotLoadFileTwice() throws Exception {
+        // Given
+        final LoadJobSink previous = loadJobSink(1, 60000L);
+        previous.add(googleClientSecret, TABLE_ID, rows(1));
+        previous.sync();
+        previous.processJobs();
+        // The previous run stopped before recording its job
+        Files.delete(files(LoadJobSink.JOB_EXTENSION).get(0));
+        final LoadJobSink loadJobSink = loadJobSink(1, 60000L);
+        loadJobSink.recover();
+
+        // When
+        loadJobSink.processJobs();
+
+        // Then
+        assertThat(loadJobs.submitted).hasSize(1);
+        assertThat(files(LoadJobSink.JOB_EXTENSION)).hasSize(1);
+        assertThat(new String(Files.readAllBytes(files(LoadJobSink.JOB_EXTENSION).get(0)), StandardCharsets.UTF_8))
+                .isEqualTo(loadJobs.jobIds.iterator().next())
+                .matches("[A-Za-z0-9_-]+");
+    }
+
+    @Test
+    public void processJobs_whenJobFailed_shouldKeepFileAside() throws Exception {
+        // Given
+        final LoadJobSink loadJobSink = loadJobSink(1, 60000L);
+        loadJobSink.add(googleClientSecret, TABLE_ID, rows(1));
+        loadJobSink.sync();
+        loadJobSink.processJobs();
+        loadJobs.status = LoadJobs.Status.FAILED;
+
+        // When
+        loadJobSink.processJobs();
+        loadJobSink.processJobs();
+
+        // Then
+        assertThat(loadJobs.submitted).hasSize(1);
+        assertThat(files(LoadJobSink.FAILED_EXTENSION)).hasSize(1);
+        assertThat(files(LoadJobSink.READY_EXTENSION)).isEmpty();
+    }
+
+    @Test
+    public void recover_whenFileLeftOpen_shouldLoadItsCompleteLines() throws Exception {
+        // Given
+        final LoadJobSink previous = loadJobSink(1024 * 1024, 60000L);
+        previous.add(googleClientSecret, TABLE_ID, rows(2));
+        previous.sync();
+        final Path part = files(LoadJobSink.PART_EXTENSION).get(0);
+        Files.write(part, "{\"unitId\":".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        final LoadJobSink loadJobSink = loadJobSink(1024 * 1024, 60000L);
+
+        // When
+        loadJobSink.recover();
+        loadJobSink.processJobs();
+
+        // Then
+        assertThat(loadJobs.submitted).hasSize(1);
+        assertThat(loadJobs.submitted.get(0)).hasSize(2);
+        assertThat(loadJobs.privateKeyIds).containsExactly(googleClientSecret.getPrivateKeyId());
+        assertThat(new String(Files.readAllBytes(files(LoadJobSink.KEY_ID_FILE).get(0)), StandardCharsets.UTF_8))
+                .isEqualTo(googleClientSecret.getPrivateKeyId())
+                .doesNotContain(googleClientSecret.getPrivateKey());
+    }
+
+    @Test
+    public void sync_whenRowsAddedSinceLastSync_shouldOnlyWriteSyncedRowsToTheFile() throws Exception {
+        // Given
+        final LoadJobSink loadJobSink = loadJobSink(1024 * 1024, 60000L);
+        loadJobSink.add(googleClientSecret, TABLE_ID, rows(2));
+        loadJobSink.sync();
+
+        // When
+        final CompletableFuture<Void> result = loadJobSink.add(googleClientSecret, TABLE_ID, rows(1));
+
+        // Then
+        assertThat(result).isNotDone();
+        assertThat(Files.readAllLines(files(LoadJobSink.PART_EXTENSION).get(0))).hasSize(2);
+        loadJobSink.sync();
+        assertThat(result).isCompleted();
+        assertThat(Files.readAllLines(files(LoadJobSink.PART_EXTENSION).get(0))).hasSize(3);
+    }
+
+    private LoadJobSink loadJobSink(long maxFileBytes, long maxFileAgeMillis) {
+        return new LoadJobSink(new String[]{"project"}, folder.getRoot().getPath(), maxFileBytes, maxFileAgeMillis, 100L, 1000L, loadJobs, mapper, counter, executor);
+    }
+
+    private List<Path> files(String extension) throws IOException {
+        try (Stream<Path> files = Files.walk(folder.getRoot().toPath())) {
+            return files.filter(file -> file.toString().endsWith(extension)).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static List<InsertAllRequest.RowToInsert> rows(int count) {
+        final List<InsertAllRequest.RowToInsert> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rows.add(InsertAllRequest.RowToInsert.of(Collections.singletonMap("unitId", UUID.randomUUID().toString())));
+        }
+        return rows;
+    }
+
+    /**
+     * Local stand-in for the jobs API, keeping the lines of the submitted files.
+     */
+    private static class LocalLoadJobs implements LoadJobs {
+        private final List<List<String>> submitted = new ArrayList<>();
+        private final List<String> privateKeyIds = new ArrayList<>();
+        private final Set<String> jobIds = new LinkedHashSet<>();
+        private Status status = Status.RUNNING;
+
+        @Override
+        public void submit(TableId tableId, String privateKeyId, Path file, String jobId) throws IOException {
+            if (jobIds.add(jobId)) {
+                submitted.add(Files.readAllLines(file));
+                privateKeyIds.add(privateKeyId);
+            }
+        }
+
+        @Override
+        public Status status(String projectId, String privateKeyId, String jobId) {
+            return status;
+        }
+    }
+}
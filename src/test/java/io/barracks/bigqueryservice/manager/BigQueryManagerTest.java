@@ -25,12 +25,18 @@
 package io.barracks.bigqueryservice.manager;
 
 import io.barracks.bigqueryservice.client.BigQueryClient;
+import io.barracks.bigqueryservice.client.DeviceEventRows;
+import io.barracks.bigqueryservice.client.PipelineMetrics;
+import io.barracks.bigqueryservice.client.TableLayout;
+import io.barracks.bigqueryservice.client.VersionRollup;
+import io.barracks.bigqueryservice.client.exception.BigQueryClientException;
+import io.barracks.bigqueryservice.index.VersionDistributionIndex;
 import io.barracks.bigqueryservice.model.DeviceChangeEventHook;
 import io.barracks.bigqueryservice.model.DeviceEventHook;
-import io.barracks.bigqueryservice.model.DeviceRequest;
+import io.barracks.bigqueryservice.model.MessageMetadata;
 import io.barracks.bigqueryservice.utils.DeviceChangeEventHookUtils;
 import io.barracks.bigqueryservice.utils.DeviceEventHookUtils;
-import io.barracks.bigqueryservice.utils.DeviceRequestUtils;
+import io.barracks.bigqueryservice.utils.MessageMetadataUtils;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
@@ -38,9 +44,14 @@ import org.mockito.Mock;
 import org.mockito.Spy;
 import org.mockito.internal.verification.Times;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
 
+import java.util.Collections;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
 
@@ -50,6 +61,25 @@ public class BigQueryManagerTest {
     @Mock
     private BigQueryClient bigQueryClient;
 
+    @Mock
+    private TableLayout tableLayout;
+
+    @Mock
+    private VersionRollup versionRollup;
+
+    @Mock
+    private VersionDistributionIndex versionDistributionIndex;
+
+    @Mock
+    private PipelineMetrics pipelineMetrics;
+
+    @Mock
+    private CounterService counter;
+
+    // Single attempt so that failures complete synchronously
+    @Spy
+    private RetryScheduler retryScheduler = new RetryScheduler(1, 0L, 0L, 1.0, Executors.newSingleThreadScheduledExecutor(), mock(CounterService.class));
+
     @InjectMocks
     @Spy
     private BigQueryManager bigQueryManager;
@@ -57,65 +87,291 @@ public class BigQueryManagerTest {
     @Test
     public void sendDataToBigQuery_shouldNotThrowException_whenBigQueryClientThrowException() throws Exception {
         // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
         final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
 
-        doThrow(Exception.class).when(bigQueryClient).sendEventToBigQuery(deviceEventHook);
+        doThrow(Exception.class).when(bigQueryClient).sendEventToBigQuery(deviceEventHook, messageMetadata);
         doNothing().when(bigQueryManager).incrementRabbitMQMetric(anyString());
 
         // When
-        bigQueryManager.sendEventToBigQuery(deviceEventHook);
+        bigQueryManager.sendEventToBigQuery(deviceEventHook, messageMetadata);
 
         // When / Then
-        verify(bigQueryClient, new Times(1)).sendEventToBigQuery(deviceEventHook);
+        verify(bigQueryClient, new Times(1)).sendEventToBigQuery(deviceEventHook, messageMetadata);
     }
 
     @Test
     public void sendDataToBigQuery_shouldCallClients_andReturnsNothing() throws Exception {
         // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        doReturn(CompletableFuture.completedFuture(null)).when(bigQueryClient).sendEventToBigQuery(deviceEventHook, messageMetadata);
+        doNothing().when(bigQueryManager).incrementRabbitMQMetric(anyString());
+
+        // When
+        bigQueryManager.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // When / Then
+        verify(bigQueryClient, new Times(1)).sendEventToBigQuery(deviceEventHook, messageMetadata);
+        verify(versionDistributionIndex).add(deviceEventHook, messageMetadata);
+        verify(bigQueryManager).incrementRabbitMQMetric("success");
+        verify(pipelineMetrics).recordMessage(eq(deviceEventHook.getHook().getGoogleClientSecret().getProjectId()), anyLong(), eq(true));
+    }
+
+    @Test
+    public void sendDataToBigQuery_whenInsertFails_shouldCountError() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
         final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        result.completeExceptionally(new RuntimeException());
+        doReturn(result).when(bigQueryClient).sendEventToBigQuery(deviceEventHook, messageMetadata);
         doNothing().when(bigQueryManager).incrementRabbitMQMetric(anyString());
 
         // When
-        bigQueryManager.sendEventToBigQuery(deviceEventHook);
+        bigQueryManager.sendEventToBigQuery(deviceEventHook, messageMetadata);
 
         // When / Then
-        verify(bigQueryClient, new Times(1)).sendEventToBigQuery(deviceEventHook);
+        verify(bigQueryManager).incrementRabbitMQMetric("error");
+        verify(bigQueryManager, never()).incrementRabbitMQMetric("success");
+        verify(pipelineMetrics).recordMessage(eq(deviceEventHook.getHook().getGoogleClientSecret().getProjectId()), anyLong(), eq(false));
+    }
+
+    @Test
+    public void sendDataToBigQuery_whenProjectRolledUp_shouldCountPackagesAndSendRows() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final String projectId = deviceEventHook.getHook().getGoogleClientSecret().getProjectId();
+        doReturn(true).when(tableLayout).isRolledUp(projectId);
+        doReturn(CompletableFuture.completedFuture(null)).when(bigQueryClient).sendEventToBigQuery(deviceEventHook, messageMetadata);
+        doNothing().when(bigQueryManager).incrementRabbitMQMetric(anyString());
+
+        // When
+        bigQueryManager.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        verify(versionRollup).add(deviceEventHook.getHook().getGoogleClientSecret(), messageMetadata, deviceEventHook.getDeviceEvent().getRequest().getPackages());
+        verify(bigQueryClient).sendEventToBigQuery(deviceEventHook, messageMetadata);
+    }
+
+    @Test
+    public void sendDataToBigQuery_whenProjectRolledUpAndInsertFails_shouldNotCountPackages() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final String projectId = deviceEventHook.getHook().getGoogleClientSecret().getProjectId();
+        final CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new BigQueryClientException("Insert failed"));
+        doReturn(true).when(tableLayout).isRolledUp(projectId);
+        doReturn(failed).when(bigQueryClient).sendEventToBigQuery(deviceEventHook, messageMetadata);
+        doNothing().when(bigQueryManager).incrementRabbitMQMetric(anyString());
+
+        // When
+        final CompletableFuture<Void> result = bigQueryManager.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        assertThat(result).isCompletedExceptionally();
+        verifyZeroInteractions(versionRollup);
+    }
+
+    @Test
+    public void sendDataToBigQuery_whenProjectRollupOnly_shouldOnlyCountPackages() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final String projectId = deviceEventHook.getHook().getGoogleClientSecret().getProjectId();
+        doReturn(true).when(tableLayout).isRolledUp(projectId);
+        doReturn(true).when(tableLayout).isRollupOnly(projectId);
+        doNothing().when(bigQueryManager).incrementRabbitMQMetric(anyString());
+
+        // When
+        final CompletableFuture<Void> result = bigQueryManager.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        assertThat(result).isCompleted();
+        verify(versionRollup).add(deviceEventHook.getHook().getGoogleClientSecret(), messageMetadata, deviceEventHook.getDeviceEvent().getRequest().getPackages());
+        verify(versionDistributionIndex).add(deviceEventHook, messageMetadata);
+        verifyZeroInteractions(bigQueryClient);
+        verify(bigQueryManager).incrementRabbitMQMetric("success");
+    }
+
+    @Test
+    public void sendDataToBigQuery_whenIndexThrows_shouldStillSendEvent() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        doThrow(IllegalStateException.class).when(versionDistributionIndex).add(deviceEventHook, messageMetadata);
+        doReturn(CompletableFuture.completedFuture(null)).when(bigQueryClient).sendEventToBigQuery(deviceEventHook, messageMetadata);
+        doNothing().when(bigQueryManager).incrementRabbitMQMetric(anyString());
+
+        // When
+        final CompletableFuture<Void> result = bigQueryManager.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        assertThat(result).isCompleted();
+        verify(bigQueryClient).sendEventToBigQuery(deviceEventHook, messageMetadata);
+        verify(bigQueryManager).incrementRabbitMQMetric("success");
+        verify(counter).increment("index.error");
+    }
+
+    @Test
+    public void sendDataToBigQuery_whenRollupThrows_shouldReturnFailedFuture() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final String projectId = deviceEventHook.getHook().getGoogleClientSecret().getProjectId();
+        doReturn(true).when(tableLayout).isRollupOnly(projectId);
+        doThrow(IllegalStateException.class).when(versionRollup).add(any(), any(), any());
+        doNothing().when(bigQueryManager).incrementRabbitMQMetric(anyString());
+
+        // When
+        final CompletableFuture<Void> result = bigQueryManager.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        assertThat(result).isCompletedExceptionally();
+        verifyZeroInteractions(bigQueryClient);
+        verify(bigQueryManager).incrementRabbitMQMetric("error");
+        verify(pipelineMetrics).recordMessage(eq(projectId), anyLong(), eq(false));
+    }
+
+    @Test
+    public void sendDataToBigQuery_whenHookHasNoSecret_shouldReturnFailedFuture() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventHook original = DeviceEventHookUtils.getDeviceEventHook();
+        final DeviceEventHook deviceEventHook = DeviceEventHook.builder()
+                .deviceEvent(original.getDeviceEvent())
+                .hook(original.getHook().toBuilder().googleClientSecret(null).build())
+                .build();
+        doReturn(true).when(tableLayout).isRolledUp(null);
+        doNothing().when(bigQueryManager).incrementRabbitMQMetric(anyString());
+
+        // When
+        final CompletableFuture<Void> result = bigQueryManager.sendEventToBigQuery(deviceEventHook, messageMetadata);
+
+        // Then
+        assertThat(result).isCompletedExceptionally();
+        verify(bigQueryManager).incrementRabbitMQMetric("error");
+        verify(pipelineMetrics).recordMessage(isNull(String.class), anyLong(), eq(false));
     }
 
     @Test
     public void sendDataWithChangedRequestToBigQuery_shouldNotThrowException_whenBigQueryClientThrowException() throws Exception {
         // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
         final DeviceChangeEventHook deviceChangeEventHook = DeviceChangeEventHookUtils.getDeviceChangeEventHook();
         final DeviceEventHook deviceEventHook = DeviceEventHook.builder()
                 .deviceEvent(deviceChangeEventHook.getDeviceChangeEvent().getDeviceEvent())
                 .hook(deviceChangeEventHook.getHook())
                 .build();
 
-        doThrow(Exception.class).when(bigQueryClient).sendEventToBigQuery(deviceEventHook);
+        doThrow(Exception.class).when(bigQueryClient).sendEventToBigQuery(deviceEventHook, messageMetadata);
         doNothing().when(bigQueryManager).incrementRabbitMQMetric(anyString());
 
         // When
-        bigQueryManager.sendEventToBigQuery(deviceChangeEventHook);
+        bigQueryManager.sendEventToBigQuery(deviceChangeEventHook, messageMetadata);
 
         // When / Then
-        verify(bigQueryClient, new Times(1)).sendEventToBigQuery(deviceEventHook);
+        verify(bigQueryClient, new Times(1)).sendEventToBigQuery(deviceEventHook, messageMetadata);
     }
 
     @Test
     public void sendDataWithChangedRequestToBigQuery_shouldCallClients_andReturnsNothing() throws Exception {
         // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
         final DeviceChangeEventHook deviceChangeEventHook = DeviceChangeEventHookUtils.getDeviceChangeEventHook();
         final DeviceEventHook deviceEventHook = DeviceEventHook.builder()
                 .deviceEvent(deviceChangeEventHook.getDeviceChangeEvent().getDeviceEvent())
                 .hook(deviceChangeEventHook.getHook())
                 .build();
+        doReturn(CompletableFuture.completedFuture(null)).when(bigQueryClient).sendEventToBigQuery(deviceEventHook, messageMetadata);
         doNothing().when(bigQueryManager).incrementRabbitMQMetric(anyString());
 
         // When
-        bigQueryManager.sendEventToBigQuery(deviceChangeEventHook);
+        bigQueryManager.sendEventToBigQuery(deviceChangeEventHook, messageMetadata);
 
         // When / Then
-        verify(bigQueryClient, new Times(1)).sendEventToBigQuery(deviceEventHook);
+        verify(bigQueryClient, new Times(1)).sendEventToBigQuery(deviceEventHook, messageMetadata);
+        verify(bigQueryManager).incrementRabbitMQMetric("success");
+    }
+
+    @Test
+    public void sendDataWithChangedRequestToBigQuery_whenProjectIsChangeOnly_shouldOnlySendChanges() throws Exception {
+        // Given
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceChangeEventHook deviceChangeEventHook = DeviceChangeEventHookUtils.getDeviceChangeEventHook();
+        doReturn(true).when(tableLayout).isChangeOnly(deviceChangeEventHook.getHook().getGoogleClientSecret().getProjectId());
+        doReturn(CompletableFuture.completedFuture(null)).when(bigQueryClient).sendChangeEventToBigQuery(deviceChangeEventHook, messageMetadata);
+        doNothing().when(bigQueryManager).incrementRabbitMQMetric(anyString());
+
+        // When
+        bigQueryManager.sendEventToBigQuery(deviceChangeEventHook, messageMetadata);
+
+        // Then
+        verify(bigQueryClient).sendChangeEventToBigQuery(deviceChangeEventHook, messageMetadata);
+        verify(bigQueryClient, never()).sendEventToBigQuery(any(DeviceEventHook.class), any(MessageMetadata.class));
+        verify(bigQueryManager).incrementRabbitMQMetric("success");
+    }
+
+    @Test
+    public void sendRowsToBigQuery_shouldCallClients_andCountSuccess() throws Exception {
+        // Given
+        final DeviceEventRows deviceEventRows = DeviceEventRows.of(
+                DeviceEventHookUtils.getDeviceEventHook().getHook().getGoogleClientSecret(),
+                MessageMetadataUtils.getMessageMetadata(),
+                Collections.emptyList()
+        );
+        doReturn(CompletableFuture.completedFuture(null)).when(bigQueryClient).sendEventToBigQuery(deviceEventRows);
+        doNothing().when(bigQueryManager).incrementRabbitMQMetric(anyString());
+
+        // When
+        bigQueryManager.sendEventToBigQuery(deviceEventRows);
+
+        // Then
+        verify(bigQueryClient).sendEventToBigQuery(deviceEventRows);
+        verify(versionDistributionIndex).add(deviceEventRows);
+        verify(bigQueryManager).incrementRabbitMQMetric("success");
+    }
+
+    @Test
+    public void sendRowsToBigQuery_whenEventBoundToModels_shouldSendTheEvent() throws Exception {
+        // Given
+        final DeviceEventHook deviceEventHook = DeviceEventHookUtils.getDeviceEventHook();
+        final MessageMetadata messageMetadata = MessageMetadataUtils.getMessageMetadata();
+        final DeviceEventRows deviceEventRows = DeviceEventRows.of(deviceEventHook, messageMetadata);
+        doReturn(CompletableFuture.completedFuture(null)).when(bigQueryClient).sendEventToBigQuery(deviceEventHook, messageMetadata);
+        doNothing().when(bigQueryManager).incrementRabbitMQMetric(anyString());
+
+        // When
+        bigQueryManager.sendEventToBigQuery(deviceEventRows);
+
+        // Then
+        verify(bigQueryClient).sendEventToBigQuery(deviceEventHook, messageMetadata);
+        verify(bigQueryClient, never()).sendEventToBigQuery(any(DeviceEventRows.class));
+        verify(versionDistributionIndex).add(deviceEventHook, messageMetadata);
+        verify(bigQueryManager).incrementRabbitMQMetric("success");
+    }
+
+    @Test
+    public void sendRowsToBigQuery_whenRollupThrows_shouldReturnFailedFuture() throws Exception {
+        // Given
+        final DeviceEventRows deviceEventRows = DeviceEventRows.of(
+                DeviceEventHookUtils.getDeviceEventHook().getHook().getGoogleClientSecret(),
+                MessageMetadataUtils.getMessageMetadata(),
+                Collections.emptyList()
+        );
+        doReturn(true).when(tableLayout).isRollupOnly(deviceEventRows.getGoogleClientSecret().getProjectId());
+        doThrow(IllegalStateException.class).when(versionRollup).add(deviceEventRows);
+        doNothing().when(bigQueryManager).incrementRabbitMQMetric(anyString());
+
+        // When
+        final CompletableFuture<Void> result = bigQueryManager.sendEventToBigQuery(deviceEventRows);
+
+        // Then
+        assertThat(result).isCompletedExceptionally();
+        verifyZeroInteractions(bigQueryClient);
+        verify(bigQueryManager).incrementRabbitMQMetric("error");
     }
 
 }
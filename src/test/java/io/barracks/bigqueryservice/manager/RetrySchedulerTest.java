@@ -0,0 +1,173 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.manager;
+
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import io.barracks.bigqueryservice.client.exception.BigQueryClientException;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RetrySchedulerTest {
+
+    private final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @Mock
+    private CounterService counter;
+
+    @After
+    public void tearDown() {
+        retryExecutor.shutdownNow();
+    }
+
+    @Test
+    public void execute_whenFirstAttemptSucceeds_shouldNotRetry() throws Exception {
+        // Given
+        final RetryScheduler retryScheduler = new RetryScheduler(3, 1L, 10L, 2.0, retryExecutor, counter);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        // When
+        final CompletableFuture<String> result = retryScheduler.execute(() -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.completedFuture("done");
+        });
+
+        // Then
+        assertThat(result.get(1, TimeUnit.SECONDS)).isEqualTo("done");
+        assertThat(attempts.get()).isEqualTo(1);
+        verify(counter, never()).increment("bigquery.retry.scheduled");
+    }
+
+    @Test
+    public void execute_whenRetryableFailure_shouldRetryUntilSuccess() throws Exception {
+        // Given
+        final RetryScheduler retryScheduler = new RetryScheduler(3, 1L, 10L, 2.0, retryExecutor, counter);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        // When
+        final CompletableFuture<String> result = retryScheduler.execute(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new BigQueryException(503, "Backend error");
+            }
+            return CompletableFuture.completedFuture("done");
+        });
+
+        // Then
+        assertThat(result.get(1, TimeUnit.SECONDS)).isEqualTo("done");
+        assertThat(attempts.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void execute_whenRetryBudgetExhausted_shouldFailWithLastError() throws Exception {
+        // Given
+        final RetryScheduler retryScheduler = new RetryScheduler(2, 1L, 10L, 2.0, retryExecutor, counter);
+        final AtomicInteger attempts = new AtomicInteger();
+        final BigQueryException error = new BigQueryException(500, "Internal error");
+
+        // When
+        final CompletableFuture<String> result = retryScheduler.execute(() -> {
+            attempts.incrementAndGet();
+            final CompletableFuture<String> future = new CompletableFuture<>();
+            future.completeExceptionally(error);
+            return future;
+        });
+
+        // Then
+        try {
+            result.get(1, TimeUnit.SECONDS);
+            fail("Exception expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isSameAs(error);
+        }
+        assertThat(attempts.get()).isEqualTo(2);
+        verify(counter).increment("bigquery.retry.scheduled");
+        verify(counter).increment("bigquery.retry.exhausted");
+    }
+
+    @Test
+    public void execute_whenPermanentFailure_shouldNotRetry() throws Exception {
+        // Given
+        final RetryScheduler retryScheduler = new RetryScheduler(3, 1L, 10L, 2.0, retryExecutor, counter);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        // When
+        final CompletableFuture<String> result = retryScheduler.execute(() -> {
+            attempts.incrementAndGet();
+            throw new BigQueryException(403, "Access denied");
+        });
+
+        // Then
+        assertThat(result).isCompletedExceptionally();
+        assertThat(attempts.get()).isEqualTo(1);
+        verify(counter).increment("bigquery.retry.permanent");
+    }
+
+    @Test
+    public void isRetryable_shouldOnlyRetryTransientErrors() {
+        // Given
+        final RetryScheduler retryScheduler = new RetryScheduler(3, 1L, 10L, 2.0, retryExecutor, counter);
+
+        // When / Then
+        assertThat(retryScheduler.isRetryable(new BigQueryException(500, "Internal error"))).isTrue();
+        assertThat(retryScheduler.isRetryable(new BigQueryException(429, "Rate limit exceeded"))).isTrue();
+        assertThat(retryScheduler.isRetryable(new BigQueryException(403, "Exceeded rate limits", new BigQueryError("rateLimitExceeded", null, "Exceeded rate limits")))).isTrue();
+        assertThat(retryScheduler.isRetryable(new BigQueryException(403, "Quota exceeded", new BigQueryError("quotaExceeded", null, "Quota exceeded")))).isTrue();
+        assertThat(retryScheduler.isRetryable(new CompletionException(new BigQueryException(503, "Backend error")))).isTrue();
+        assertThat(retryScheduler.isRetryable(new BigQueryClientException("Rows rejected", true))).isTrue();
+        assertThat(retryScheduler.isRetryable(new IllegalStateException())).isTrue();
+        assertThat(retryScheduler.isRetryable(new BigQueryException(400, "Invalid schema"))).isFalse();
+        assertThat(retryScheduler.isRetryable(new BigQueryException(401, "Invalid credentials"))).isFalse();
+        assertThat(retryScheduler.isRetryable(new BigQueryException(403, "Access denied", new BigQueryError("accessDenied", null, "Access denied")))).isFalse();
+        assertThat(retryScheduler.isRetryable(new BigQueryClientException("Rows rejected"))).isFalse();
+        assertThat(retryScheduler.isRetryable(new CompletionException(new IOException("Invalid PKCS#8 data")))).isFalse();
+    }
+
+    @Test
+    public void delayBeforeAttempt_shouldGrowExponentiallyUpToMaxDelay() {
+        // Given
+        final RetryScheduler retryScheduler = new RetryScheduler(10, 100L, 1000L, 2.0, retryExecutor, counter);
+
+        // When / Then
+        assertThat(retryScheduler.delayBeforeAttempt(2)).isBetween(50L, 100L);
+        assertThat(retryScheduler.delayBeforeAttempt(3)).isBetween(100L, 200L);
+        assertThat(retryScheduler.delayBeforeAttempt(4)).isBetween(200L, 400L);
+        assertThat(retryScheduler.delayBeforeAttempt(10)).isBetween(500L, 1000L);
+    }
+
+}
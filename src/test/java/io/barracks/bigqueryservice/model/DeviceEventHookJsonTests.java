@@ -76,7 +76,7 @@ public class DeviceEventHookJsonTests {
 
         final DeviceRequest deviceRequest = DeviceRequestUtils.getDeviceRequest().toBuilder()
                 .userId("Unique ID for the user")
-                .customClientData(root)
+                .customClientData(RawJson.of(root))
                 .packages(Arrays.asList(package1, package2))
                 .unitId("ID transmitted by the device")
                 .ipAddress("IP address of the device")
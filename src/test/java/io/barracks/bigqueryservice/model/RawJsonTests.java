@@ -0,0 +1,83 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.model;
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RawJsonTests {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void deserialize_shouldKeepCompactText() throws Exception {
+        // Given
+        final String json = "{ \"customClientData\" : { \"battery\" : { \"level\" : 50, \"tags\" : [ \"a\", null ] } } }";
+
+        // When
+        final DeviceRequest result = mapper.readValue(json, DeviceRequest.class);
+
+        // Then
+        assertThat(result.getCustomClientData().toString()).isEqualTo("{\"battery\":{\"level\":50,\"tags\":[\"a\",null]}}");
+        assertThat(result.getCustomClientData().toObjectNode())
+                .isEqualTo(mapper.readTree("{\"battery\":{\"level\":50,\"tags\":[\"a\",null]}}"));
+    }
+
+    @Test
+    public void deserialize_whenNotAnObject_shouldFail() {
+        // Given
+        final String json = "{\"customClientData\": [1, 2]}";
+
+        // When / Then
+        assertThatThrownBy(() -> mapper.readValue(json, DeviceRequest.class)).isInstanceOf(JsonMappingException.class);
+    }
+
+    @Test
+    public void serialize_shouldWriteTextAsIs() throws Exception {
+        // Given
+        final RawJson rawJson = RawJson.of(JsonNodeFactory.instance.objectNode().put("level", 50));
+
+        // When
+        final String result = mapper.writeValueAsString(rawJson);
+
+        // Then
+        assertThat(result).isEqualTo("{\"level\":50}");
+    }
+
+    @Test
+    public void getCustomClientData_whenMissing_shouldReturnEmptyObject() throws Exception {
+        // When
+        final DeviceRequest result = mapper.readValue("{}", DeviceRequest.class);
+
+        // Then
+        assertThat(result.getCustomClientData()).isEqualTo(RawJson.EMPTY_OBJECT);
+    }
+
+}
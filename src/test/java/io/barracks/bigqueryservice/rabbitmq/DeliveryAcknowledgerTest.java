@@ -0,0 +1,142 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DeliveryAcknowledgerTest {
+
+    @Mock
+    private Channel channel;
+
+    @Test
+    public void acknowledge_whenLowerDeliveryStillPending_shouldWaitForIt() throws Exception {
+        // Given
+        final DeliveryAcknowledger deliveryAcknowledger = new DeliveryAcknowledger(Runnable::run);
+        deliveryAcknowledger.track(channel, 1L);
+        deliveryAcknowledger.track(channel, 2L);
+        deliveryAcknowledger.track(channel, 3L);
+
+        // When
+        deliveryAcknowledger.acknowledge(channel, 2L);
+
+        // Then
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+        // When
+        deliveryAcknowledger.acknowledge(channel, 1L);
+
+        // Then
+        verify(channel).basicAck(2L, true);
+        verify(channel).addShutdownListener(any());
+        verifyNoMoreInteractions(channel);
+    }
+
+    @Test
+    public void acknowledge_whenSeveralDeliveriesCompletedTogether_shouldSendOneMultipleAck() throws Exception {
+        // Given
+        final List<Runnable> tasks = new ArrayList<>();
+        final DeliveryAcknowledger deliveryAcknowledger = new DeliveryAcknowledger(tasks::add);
+        deliveryAcknowledger.track(channel, 1L);
+        deliveryAcknowledger.track(channel, 2L);
+        deliveryAcknowledger.track(channel, 3L);
+
+        // When
+        deliveryAcknowledger.acknowledge(channel, 1L);
+        deliveryAcknowledger.acknowledge(channel, 2L);
+        deliveryAcknowledger.acknowledge(channel, 3L);
+        tasks.forEach(Runnable::run);
+
+        // Then
+        verify(channel).basicAck(3L, true);
+        verify(channel).addShutdownListener(any());
+        verifyNoMoreInteractions(channel);
+    }
+
+    @Test
+    public void reject_shouldNackDeliveryAndReleaseTheFollowingOnes() throws Exception {
+        // Given
+        final DeliveryAcknowledger deliveryAcknowledger = new DeliveryAcknowledger(Runnable::run);
+        deliveryAcknowledger.track(channel, 1L);
+        deliveryAcknowledger.track(channel, 2L);
+        deliveryAcknowledger.acknowledge(channel, 2L);
+
+        // When
+        deliveryAcknowledger.reject(channel, 1L, true);
+
+        // Then
+        verify(channel).basicNack(1L, false, true);
+        verify(channel).basicAck(2L, true);
+    }
+
+    @Test
+    public void acknowledge_whenChannelClosed_shouldForgetItsDeliveries() throws Exception {
+        // Given
+        final DeliveryAcknowledger deliveryAcknowledger = new DeliveryAcknowledger(Runnable::run);
+        deliveryAcknowledger.track(channel, 1L);
+        deliveryAcknowledger.track(channel, 2L);
+        doThrow(IOException.class).when(channel).basicAck(1L, true);
+        deliveryAcknowledger.acknowledge(channel, 1L);
+
+        // When
+        deliveryAcknowledger.acknowledge(channel, 2L);
+
+        // Then
+        verify(channel, never()).basicAck(2L, true);
+    }
+
+    @Test
+    public void track_whenChannelShutsDown_shouldForgetItsDeliveries() throws Exception {
+        // Given
+        final DeliveryAcknowledger deliveryAcknowledger = new DeliveryAcknowledger(Runnable::run);
+        final ArgumentCaptor<ShutdownListener> listener = ArgumentCaptor.forClass(ShutdownListener.class);
+        deliveryAcknowledger.track(channel, 1L);
+        verify(channel).addShutdownListener(listener.capture());
+
+        // When
+        listener.getValue().shutdownCompleted(new ShutdownSignalException(false, false, null, channel));
+        deliveryAcknowledger.acknowledge(channel, 1L);
+
+        // Then
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.rabbitmq;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.bigquery.InsertAllRequest;
+import io.barracks.bigqueryservice.client.DeviceEventRows;
+import io.barracks.bigqueryservice.client.PackageRows;
+import io.barracks.bigqueryservice.client.TableLayout;
+import io.barracks.bigqueryservice.model.DeviceEventHook;
+import io.barracks.bigqueryservice.model.DeviceRequest;
+import io.barracks.bigqueryservice.model.MessageMetadata;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.util.StreamUtils;
+
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DeviceEventRowsConverterTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private static final String[] NONE = new String[0];
+
+    private final DeviceEventRowsConverter converter = new DeviceEventRowsConverter(mapper, new TableLayout(NONE, NONE, NONE, NONE, NONE));
+
+    @Test
+    public void fromMessage_shouldBuildTheSameRowsAsTheModels() throws Exception {
+        // Given
+        final byte[] body = StreamUtils.copyToByteArray(getClass().getResourceAsStream("deviceEventHook.json"));
+        final Message message = new Message(body, messageProperties());
+        final DeviceEventHook deviceEventHook = mapper.readValue(body, DeviceEventHook.class);
+        final MessageMetadata messageMetadata = DeviceMessageReceiver.buildMessageMetadata(message);
+        final DeviceRequest request = deviceEventHook.getDeviceEvent().getRequest();
+        final List<InsertAllRequest.RowToInsert> expected = request.getPackages().stream()
+                .map(aPackage -> PackageRows.of(
+                        messageMetadata,
+                        request.getUserId(),
+                        request.getUnitId(),
+                        request.getIpAddress(),
+                        request.getUserAgent(),
+                        request.getCustomClientData().toString(),
+                        aPackage.getReference(),
+                        aPackage.getVersion().get()
+                ))
+                .collect(Collectors.toList());
+
+        // When
+        final DeviceEventRows result = converter.fromMessage(message);
+
+        // Then
+        assertThat(result.getGoogleClientSecret()).isEqualTo(deviceEventHook.getHook().getGoogleClientSecret());
+        assertThat(result.getMessageMetadata()).isEqualTo(messageMetadata);
+        assertThat(result.getRows()).isEqualTo(expected);
+    }
+
+    @Test
+    public void fromMessage_whenProjectUsesNestedRows_shouldBindTheModels() throws Exception {
+        // Given
+        final byte[] body = StreamUtils.copyToByteArray(getClass().getResourceAsStream("deviceEventHook.json"));
+        final DeviceEventHook deviceEventHook = mapper.readValue(body, DeviceEventHook.class);
+        final String[] nestedProjects = {deviceEventHook.getHook().getGoogleClientSecret().getProjectId()};
+        final DeviceEventRowsConverter nestedConverter = new DeviceEventRowsConverter(mapper, new TableLayout(NONE, nestedProjects, NONE, NONE, NONE));
+        final Message message = new Message(body, messageProperties());
+
+        // When
+        final DeviceEventRows result = nestedConverter.fromMessage(message);
+
+        // Then
+        assertThat(result.getDeviceEventHook()).isEqualTo(deviceEventHook);
+        assertThat(result.getMessageMetadata()).isEqualTo(DeviceMessageReceiver.buildMessageMetadata(message));
+        assertThat(result.getRows()).isEmpty();
+    }
+
+    @Test
+    public void fromMessage_shouldSkipUnknownFieldsAndMissingValues() {
+        // Given
+        final String body = "{\"other\":{\"a\":[1,{\"b\":2}]},\"deviceEvent\":{\"response\":{\"changed\":[]},"
+                + "\"request\":{\"unitId\":\"unit\",\"userAgent\":{\"nested\":true},\"packages\":[{\"reference\":\"ref\",\"extra\":[1]}]}},"
+                + "\"hook\":{\"name\":\"hook\",\"googleClientSecret\":{\"project_id\":\"project\"}}}";
+
+        // When
+        final DeviceEventRows result = converter.fromMessage(new Message(body.getBytes(), messageProperties()));
+
+        // Then
+        assertThat(result.getGoogleClientSecret().getProjectId()).isEqualTo("project");
+        assertThat(result.getRows()).hasSize(1);
+        assertThat(result.getRows().get(0).getContent())
+                .containsEntry("unitId", "unit")
+                .containsEntry("userAgent", " ")
+                .containsEntry("customClientData", "{}");
+    }
+
+    @Test
+    public void buildMessageMetadata_whenNoMessageId_shouldIdentifyMessagesByTheirBody() {
+        // Given
+        final MessageProperties properties = messageProperties();
+        properties.setMessageId(null);
+        final Message message = new Message("{\"a\":1}".getBytes(), properties);
+        final Message other = new Message("{\"a\":2}".getBytes(), properties);
+
+        // When
+        final MessageMetadata messageMetadata = DeviceMessageReceiver.buildMessageMetadata(message);
+
+        // Then
+        assertThat(messageMetadata.getMessageId())
+                .isNotNull()
+                .isEqualTo(DeviceMessageReceiver.buildMessageMetadata(new Message("{\"a\":1}".getBytes(), properties)).getMessageId())
+                .isNotEqualTo(DeviceMessageReceiver.buildMessageMetadata(other).getMessageId());
+    }
+
+    @Test
+    public void fromMessage_whenRedeliveredWithoutTimestamp_shouldKeepTheSameInsertIds() throws Exception {
+        // Given
+        final MessageProperties properties = messageProperties();
+        properties.setMessageId(null);
+        properties.setTimestamp(null);
+        final byte[] body = StreamUtils.copyToByteArray(getClass().getResourceAsStream("deviceEventHook.json"));
+        final DeviceEventRows delivered = converter.fromMessage(new Message(body, properties));
+        Thread.sleep(5L);
+
+        // When
+        final DeviceEventRows redelivered = converter.fromMessage(new Message(body, properties));
+
+        // Then
+        assertThat(redelivered.getMessageMetadata().getTimestamp()).isNotEqualTo(delivered.getMessageMetadata().getTimestamp());
+        assertThat(redelivered.getRows()).extracting(InsertAllRequest.RowToInsert::getId)
+                .isEqualTo(delivered.getRows().stream().map(InsertAllRequest.RowToInsert::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void fromMessage_whenNoHook_shouldFail() {
+        // Given
+        final String body = "{\"deviceEvent\":{\"request\":{\"unitId\":\"unit\",\"packages\":[]}}}";
+
+        // When / Then
+        assertThatThrownBy(() -> converter.fromMessage(new Message(body.getBytes(), messageProperties())))
+                .isInstanceOf(MessageConversionException.class);
+    }
+
+    @Test
+    public void fromMessage_whenBodyIsNotJson_shouldFail() {
+        // When / Then
+        assertThatThrownBy(() -> converter.fromMessage(new Message("not json".getBytes(), messageProperties())))
+                .isInstanceOf(MessageConversionException.class);
+    }
+
+    private static MessageProperties messageProperties() {
+        final MessageProperties properties = new MessageProperties();
+        properties.setMessageId("message");
+        properties.setTimestamp(new Date(1500000000000L));
+        return properties;
+    }
+
+}
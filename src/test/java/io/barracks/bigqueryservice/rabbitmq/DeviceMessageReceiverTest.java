@@ -25,6 +25,7 @@
 package io.barracks.bigqueryservice.rabbitmq;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.Channel;
 import io.arivera.oss.embedded.rabbitmq.EmbeddedRabbitMq;
 import io.arivera.oss.embedded.rabbitmq.EmbeddedRabbitMqConfig;
 import io.barracks.bigqueryservice.Application;
@@ -33,6 +34,7 @@ import io.barracks.bigqueryservice.manager.BigQueryManager;
 import io.barracks.bigqueryservice.model.DeviceChangeEventHook;
 import io.barracks.bigqueryservice.model.DeviceEventHook;
 import io.barracks.bigqueryservice.model.DeviceRequest;
+import io.barracks.bigqueryservice.model.MessageMetadata;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -52,7 +54,13 @@ import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.util.FileCopyUtils;
 
+import java.util.concurrent.CompletableFuture;
+
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 
 @RunWith(SpringRunner.class)
@@ -69,6 +77,8 @@ public class DeviceMessageReceiverTest {
     private RabbitTemplate rabbitTemplate;
     @MockBean
     private BigQueryManager bigQueryManager;
+    @SpyBean
+    private DeliveryAcknowledger deliveryAcknowledger;
     @Autowired
     private ObjectMapper objectMapper;
     @Value("classpath:io/barracks/bigqueryservice/rabbitmq/deviceEventHook.json")
@@ -105,13 +115,15 @@ public class DeviceMessageReceiverTest {
         final DeviceEventHook message = objectMapper.readValue(resource.getInputStream(), DeviceEventHook.class);
         final MessageProperties messageProperties = new MessageProperties();
         messageProperties.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        doReturn(CompletableFuture.completedFuture(null)).when(bigQueryManager).sendEventToBigQuery(eq(message), any(MessageMetadata.class));
 
         //When
         this.rabbitTemplate.convertSendAndReceive(exchangeName, "test.v2.afsdsf", new Message(FileCopyUtils.copyToByteArray(resource.getInputStream()), messageProperties));
 
         //Then
-        verify(receiver).receiveMessage(message);
-        verify(bigQueryManager).sendEventToBigQuery(message);
+        verify(receiver).receiveMessage(eq(message), any(Message.class), any(Channel.class));
+        verify(bigQueryManager).sendEventToBigQuery(eq(message), any(MessageMetadata.class));
+        verify(deliveryAcknowledger, timeout(1000)).acknowledge(any(Channel.class), anyLong());
     }
 
     @Test
@@ -120,13 +132,15 @@ public class DeviceMessageReceiverTest {
         final DeviceChangeEventHook message = objectMapper.readValue(changeResource.getInputStream(), DeviceChangeEventHook.class);
         final MessageProperties messageProperties = new MessageProperties();
         messageProperties.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        doReturn(CompletableFuture.completedFuture(null)).when(bigQueryManager).sendEventToBigQuery(eq(message), any(MessageMetadata.class));
 
         //When
         this.rabbitTemplate.convertSendAndReceive(exchangeName, "devices.change.v2.afsdsf", new Message(FileCopyUtils.copyToByteArray(changeResource.getInputStream()), messageProperties));
 
         //Then
-        verify(receiver).receiveMessage(message);
-        verify(bigQueryManager).sendEventToBigQuery(message);
+        verify(receiver).receiveMessage(eq(message), any(Message.class), any(Channel.class));
+        verify(bigQueryManager).sendEventToBigQuery(eq(message), any(MessageMetadata.class));
+        verify(deliveryAcknowledger, timeout(1000)).acknowledge(any(Channel.class), anyLong());
     }
 
 }
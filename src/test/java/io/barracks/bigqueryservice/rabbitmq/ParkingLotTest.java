@@ -0,0 +1,165 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.rabbitmq;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.amqp.AmqpConnectException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.net.ConnectException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ParkingLotTest {
+
+    private static final String DEAD_LETTER_EXCHANGE = "deadletter";
+
+    @Mock
+    private RabbitTemplate rabbitTemplate;
+
+    @Mock
+    private CounterService counter;
+
+    private ParkingLot parkingLot;
+
+    private RabbitTemplate.ConfirmCallback confirmCallback;
+
+    private RabbitTemplate.ReturnCallback returnCallback;
+
+    @Before
+    public void setUp() {
+        parkingLot = new ParkingLot(rabbitTemplate, DEAD_LETTER_EXCHANGE, 100L, counter);
+        final ArgumentCaptor<RabbitTemplate.ConfirmCallback> confirmCaptor = ArgumentCaptor.forClass(RabbitTemplate.ConfirmCallback.class);
+        final ArgumentCaptor<RabbitTemplate.ReturnCallback> returnCaptor = ArgumentCaptor.forClass(RabbitTemplate.ReturnCallback.class);
+        verify(rabbitTemplate).setMandatory(true);
+        verify(rabbitTemplate).setConfirmCallback(confirmCaptor.capture());
+        verify(rabbitTemplate).setReturnCallback(returnCaptor.capture());
+        confirmCallback = confirmCaptor.getValue();
+        returnCallback = returnCaptor.getValue();
+    }
+
+    @Test
+    public void park_shouldPublishMessageWithItsOriginAndFailure() {
+        // Given
+        final MessageProperties properties = new MessageProperties();
+        properties.setReceivedExchange("bigquery");
+        properties.setReceivedRoutingKey("devices.v2.unit");
+        final Message message = new Message("{}".getBytes(), properties);
+        doAnswer(invocation -> {
+            confirmCallback.confirm(invocation.getArgumentAt(3, CorrelationData.class), true, null);
+            return null;
+        }).when(rabbitTemplate).send(anyString(), anyString(), any(Message.class), any(CorrelationData.class));
+
+        // When
+        final boolean parked = parkingLot.park(message, new IllegalStateException("failure"));
+
+        // Then
+        assertThat(parked).isTrue();
+        verify(rabbitTemplate).send(eq(DEAD_LETTER_EXCHANGE), eq("devices.v2.unit"), eq(message), any(CorrelationData.class));
+        assertThat(properties.getHeaders())
+                .containsEntry(ParkingLot.ORIGINAL_EXCHANGE_HEADER, "bigquery")
+                .containsEntry(ParkingLot.ORIGINAL_ROUTING_KEY_HEADER, "devices.v2.unit")
+                .containsEntry(ParkingLot.FAILURE_HEADER, "java.lang.IllegalStateException: failure")
+                .containsKey(ParkingLot.PARKED_AT_HEADER);
+        verify(counter).increment("message.parked.success");
+    }
+
+    @Test
+    public void park_whenPublishFails_shouldReturnFalse() {
+        // Given
+        final Message message = new Message("{}".getBytes(), new MessageProperties());
+        doThrow(new AmqpConnectException(new ConnectException())).when(rabbitTemplate).send(anyString(), anyString(), any(Message.class), any(CorrelationData.class));
+
+        // When
+        final boolean parked = parkingLot.park(message, new IllegalStateException("failure"));
+
+        // Then
+        assertThat(parked).isFalse();
+        verify(counter).increment("message.parked.error");
+    }
+
+    @Test
+    public void park_whenBrokerNacks_shouldReturnFalse() {
+        // Given
+        final Message message = new Message("{}".getBytes(), new MessageProperties());
+        doAnswer(invocation -> {
+            confirmCallback.confirm(invocation.getArgumentAt(3, CorrelationData.class), false, "nacked");
+            return null;
+        }).when(rabbitTemplate).send(anyString(), anyString(), any(Message.class), any(CorrelationData.class));
+
+        // When
+        final boolean parked = parkingLot.park(message, new IllegalStateException("failure"));
+
+        // Then
+        assertThat(parked).isFalse();
+        verify(counter).increment("message.parked.error");
+    }
+
+    @Test
+    public void park_whenReturnedAsUnroutable_shouldReturnFalse() {
+        // Given
+        final Message message = new Message("{}".getBytes(), new MessageProperties());
+        doAnswer(invocation -> {
+            returnCallback.returnedMessage(message, 312, "NO_ROUTE", DEAD_LETTER_EXCHANGE, "");
+            confirmCallback.confirm(invocation.getArgumentAt(3, CorrelationData.class), true, null);
+            return null;
+        }).when(rabbitTemplate).send(anyString(), anyString(), any(Message.class), any(CorrelationData.class));
+
+        // When
+        final boolean parked = parkingLot.park(message, new IllegalStateException("failure"));
+
+        // Then
+        assertThat(parked).isFalse();
+        verify(counter).increment("message.parked.error");
+    }
+
+    @Test
+    public void park_whenNotConfirmedInTime_shouldReturnFalse() {
+        // Given
+        final Message message = new Message("{}".getBytes(), new MessageProperties());
+
+        // When
+        final boolean parked = parkingLot.park(message, new IllegalStateException("failure"));
+
+        // Then
+        assertThat(parked).isFalse();
+        verify(counter).increment("message.parked.error");
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.rest;
+
+import com.google.common.collect.ImmutableMap;
+import io.barracks.bigqueryservice.index.VersionDistribution;
+import io.barracks.bigqueryservice.index.VersionDistributionIndex;
+import io.barracks.bigqueryservice.index.VersionUpdate;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+@RunWith(MockitoJUnitRunner.class)
+public class VersionDistributionResourceTest {
+
+    private static final String PROJECT_ID = "project";
+    private static final String REFERENCE = "io.barracks.firmware";
+
+    @Mock
+    private VersionDistributionIndex versionDistributionIndex;
+
+    @InjectMocks
+    private VersionDistributionResource versionDistributionResource;
+
+    @Test
+    public void getPackages_shouldReturnIndexedReferences() {
+        // Given
+        final Set<String> references = Collections.singleton(REFERENCE);
+        doReturn(references).when(versionDistributionIndex).getReferences(PROJECT_ID);
+
+        // When
+        final Set<String> result = versionDistributionResource.getPackages(PROJECT_ID);
+
+        // Then
+        assertThat(result).isEqualTo(references);
+    }
+
+    @Test
+    public void getVersionDistribution_shouldReturnIndexedDistribution() {
+        // Given
+        final VersionDistribution distribution = VersionDistribution.of(REFERENCE, 3, ImmutableMap.of("1.0", 2, "2.0", 1));
+        doReturn(distribution).when(versionDistributionIndex).getDistribution(PROJECT_ID, REFERENCE);
+
+        // When
+        final VersionDistribution result = versionDistributionResource.getVersionDistribution(PROJECT_ID, REFERENCE);
+
+        // Then
+        assertThat(result).isEqualTo(distribution);
+    }
+
+    @Test
+    public void getRecentUpdates_shouldReturnIndexedUpdates() {
+        // Given
+        final List<VersionUpdate> updates = Collections.singletonList(VersionUpdate.of("2017-03-01T10:00:00Z", "unit", REFERENCE, "1.0", "2.0"));
+        doReturn(updates).when(versionDistributionIndex).getRecentUpdates(PROJECT_ID, 5);
+
+        // When
+        final List<VersionUpdate> result = versionDistributionResource.getRecentUpdates(PROJECT_ID, 5);
+
+        // Then
+        assertThat(result).isEqualTo(updates);
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.spool;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.cloud.bigquery.InsertAllResponse;
+import com.google.cloud.bigquery.TableId;
+import io.barracks.bigqueryservice.client.BigQueryClient;
+import io.barracks.bigqueryservice.utils.GoogleClientSecretUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.internal.verification.Times;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SpoolReplayerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private BigQueryClient bigQueryClient;
+
+    @Mock
+    private ScheduledExecutorService replayExecutor;
+
+    @Mock
+    private CounterService counter;
+
+    @Mock
+    private InsertAllResponse response;
+
+    private Spool spool;
+
+    private SpoolReplayer spoolReplayer;
+
+    @Before
+    public void setUp() {
+        spool = new Spool(true, folder.getRoot().getPath(), 1024 * 1024, 10 * 1024 * 1024, 0L, new ObjectMapper(), counter);
+        spoolReplayer = new SpoolReplayer(spool, bigQueryClient, 1000L, replayExecutor, counter);
+    }
+
+    @Test
+    public void drain_whenBigQueryAvailable_shouldReplayRecordsInOrder() throws Exception {
+        // Given
+        final SpoolRecord first = SpoolTest.record(2);
+        final SpoolRecord second = SpoolTest.record(3);
+        spool.append(first);
+        spool.append(second);
+        spool.markUnhealthy(first.getProjectId());
+        final ArgumentCaptor<InsertAllRequest> request = ArgumentCaptor.forClass(InsertAllRequest.class);
+        doReturn(response).when(bigQueryClient).insertSpooledRows(any(), any());
+
+        // When
+        spoolReplayer.drain(spool.tables().iterator().next());
+
+        // Then
+        verify(bigQueryClient, new Times(2)).insertSpooledRows(any(), request.capture());
+        assertThat(request.getAllValues()).containsExactly(first.toInsertAllRequest(), second.toInsertAllRequest());
+        assertThat(spool.tables().iterator().next().hasPendingRecords()).isFalse();
+        assertThat(spool.shouldSpool(first.getProjectId())).isFalse();
+    }
+
+    @Test
+    public void drain_whenAnotherTableOfTheProjectNotDrained_shouldKeepSpoolingItsRows() throws Exception {
+        // Given
+        final SpoolRecord record = SpoolTest.record(2);
+        final SpoolRecord otherTableRecord = SpoolRecord.of(GoogleClientSecretUtils.getGoogleClientSecret(), TableId.of(record.getProjectId(), "Barracks", "DeviceChanges"), "20170101", record.toInsertAllRequest().getRows());
+        spool.append(record);
+        spool.append(otherTableRecord);
+        spool.markUnhealthy(record.getProjectId());
+        doReturn(response).when(bigQueryClient).insertSpooledRows(any(), any());
+        final TableSpool tableSpool = spool.tables().stream()
+                .filter(table -> table.getDirectory().endsWith(record.getTableName()))
+                .findFirst()
+                .get();
+
+        // When
+        spoolReplayer.drain(tableSpool);
+
+        // Then
+        assertThat(tableSpool.hasPendingRecords()).isFalse();
+        assertThat(spool.shouldSpool(record.getProjectId())).isTrue();
+    }
+
+    @Test
+    public void drain_whenBigQueryStillUnavailable_shouldKeepRecords() throws Exception {
+        // Given
+        final SpoolRecord record = SpoolTest.record(2);
+        spool.append(record);
+        doThrow(new BigQueryException(503, "Backend error")).when(bigQueryClient).insertSpooledRows(any(), any());
+
+        // When
+        spoolReplayer.drain(spool.tables().iterator().next());
+
+        // Then
+        verify(bigQueryClient, new Times(1)).insertSpooledRows(any(), any());
+        assertThat(spool.tables().iterator().next().hasPendingRecords()).isTrue();
+        assertThat(spool.shouldSpool(record.getProjectId())).isTrue();
+    }
+
+    @Test
+    public void drain_whenSomeRowsInvalid_shouldSendTheOtherRowsAgain() throws Exception {
+        // Given
+        final SpoolRecord record = SpoolTest.record(3);
+        spool.append(record);
+        final List<BigQueryError> errors = Collections.singletonList(new BigQueryError("invalid", "packages", "Invalid row"));
+        final InsertAllResponse rejected = mock(InsertAllResponse.class);
+        doReturn(true).when(rejected).hasErrors();
+        doReturn(Collections.singletonMap(1L, errors)).when(rejected).getInsertErrors();
+        doReturn(rejected).doReturn(response).when(bigQueryClient).insertSpooledRows(any(), any());
+        final ArgumentCaptor<InsertAllRequest> request = ArgumentCaptor.forClass(InsertAllRequest.class);
+
+        // When
+        spoolReplayer.drain(spool.tables().iterator().next());
+
+        // Then
+        verify(bigQueryClient, new Times(2)).insertSpooledRows(eq(record.getPrivateKeyId()), request.capture());
+        final List<InsertAllRequest.RowToInsert> rows = record.toInsertAllRequest().getRows();
+        assertThat(request.getAllValues().get(1).getRows()).containsExactly(rows.get(0), rows.get(2));
+        assertThat(spool.tables().iterator().next().hasPendingRecords()).isFalse();
+        verify(counter).increment("spool.replay.dropped");
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.bigqueryservice.spool;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.cloud.bigquery.TableId;
+import io.barracks.bigqueryservice.model.GoogleClientSecret;
+import io.barracks.bigqueryservice.utils.GoogleClientSecretUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SpoolTest {
+
+    private static final TableId TABLE_ID = TableId.of("project", "Barracks", "ResolveVersions");
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private CounterService counter;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void append_whenRecovered_shouldReturnRecordsInOrder() throws Exception {
+        // Given
+        final Spool spool = spool(SEGMENT_SIZE * 10);
+        final SpoolRecord first = record(2);
+        final SpoolRecord second = record(3);
+        spool.append(first);
+        spool.append(second);
+
+        // When
+        final Spool recovered = spool(SEGMENT_SIZE * 10);
+        recovered.recover();
+
+        // Then
+        final TableSpool tableSpool = recovered.tables().iterator().next();
+        assertThat(recovered.shouldSpool(TABLE_ID.getProject())).isTrue();
+        final SpoolSegment.Entry entry = tableSpool.next();
+        assertThat(recovered.read(entry)).isEqualTo(first);
+        recovered.markReplayed(tableSpool, entry);
+        assertThat(recovered.read(tableSpool.next())).isEqualTo(second);
+    }
+
+    @Test
+    public void markReplayed_whenSegmentReplayed_shouldDeleteIt() throws Exception {
+        // Given
+        final Spool spool = spool(SEGMENT_SIZE * 10);
+        for (int i = 0; i < 10; i++) {
+            assertThat(spool.append(record(10))).isTrue();
+        }
+        final TableSpool tableSpool = spool.tables().iterator().next();
+        assertThat(segmentFiles().size()).isGreaterThan(1).isEqualTo((int) (spool.getUsedBytes() / SEGMENT_SIZE));
+
+        // When
+        SpoolSegment.Entry entry;
+        while ((entry = tableSpool.next()) != null) {
+            spool.markReplayed(tableSpool, entry);
+        }
+
+        // Then
+        assertThat(tableSpool.hasPendingRecords()).isFalse();
+        assertThat(segmentFiles()).hasSize(1);
+        assertThat(spool.getUsedBytes()).isEqualTo(SEGMENT_SIZE);
+    }
+
+    @Test
+    public void recover_whenRecordCorrupted_shouldIgnoreTheEndOfTheSegment() throws Exception {
+        // Given
+        final Spool spool = spool(SEGMENT_SIZE * 10);
+        final SpoolRecord first = record(1);
+        spool.append(first);
+        spool.append(record(1));
+        final Path segment = segmentFiles().get(0);
+        final int firstLength = mapper.writeValueAsBytes(first).length;
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            // Flips a byte of the second payload
+            final long position = SpoolSegment.HEADER_SIZE * 2 + firstLength + 10;
+            file.seek(position);
+            final int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xff);
+        }
+
+        // When
+        final Spool recovered = spool(SEGMENT_SIZE * 10);
+        recovered.recover();
+
+        // Then
+        final TableSpool tableSpool = recovered.tables().iterator().next();
+        final SpoolSegment.Entry entry = tableSpool.next();
+        assertThat(recovered.read(entry)).isEqualTo(first);
+        recovered.markReplayed(tableSpool, entry);
+        assertThat(tableSpool.next()).isNull();
+    }
+
+    @Test
+    public void append_whenSpoolFull_shouldRefuseRecord() throws Exception {
+        // Given
+        final Spool spool = spool(SEGMENT_SIZE);
+        boolean appended = true;
+
+        // When
+        for (int i = 0; i < 10 && appended; i++) {
+            appended = spool.append(record(10));
+        }
+
+        // Then
+        assertThat(appended).isFalse();
+        assertThat(segmentFiles()).hasSize(1);
+    }
+
+    @Test
+    public void append_shouldNotWriteTheCredentialsOfTheTenant() throws Exception {
+        // Given
+        final Spool spool = spool(SEGMENT_SIZE * 10);
+        final GoogleClientSecret googleClientSecret = GoogleClientSecretUtils.getGoogleClientSecret();
+        final SpoolRecord record = SpoolRecord.of(googleClientSecret, TABLE_ID, "20170101", record(1).toInsertAllRequest().getRows());
+
+        // When
+        spool.append(record);
+        spool.sync();
+
+        // Then
+        final String content = new String(Files.readAllBytes(segmentFiles().get(0)), StandardCharsets.UTF_8);
+        assertThat(content)
+                .contains(googleClientSecret.getPrivateKeyId())
+                .doesNotContain(googleClientSecret.getPrivateKey())
+                .doesNotContain(googleClientSecret.getClientEmail());
+    }
+
+    @Test
+    public void append_whenDisabled_shouldRefuseRecord() throws Exception {
+        // Given
+        final Spool spool = new Spool(false, folder.getRoot().getPath(), SEGMENT_SIZE, SEGMENT_SIZE, 0L, mapper, counter);
+
+        // When
+        spool.markUnhealthy(TABLE_ID.getProject());
+        final boolean appended = spool.append(record(1));
+
+        // Then
+        assertThat(appended).isFalse();
+        assertThat(spool.shouldSpool(TABLE_ID.getProject())).isFalse();
+    }
+
+    private Spool spool(long maxBytes) {
+        return new Spool(true, folder.getRoot().getPath(), SEGMENT_SIZE, maxBytes, 0L, mapper, counter);
+    }
+
+    private List<Path> segmentFiles() throws Exception {
+        try (Stream<Path> files = Files.walk(folder.getRoot().toPath())) {
+            return files.filter(file -> file.toString().endsWith(Spool.SEGMENT_EXTENSION)).sorted().collect(Collectors.toList());
+        }
+    }
+
+    static SpoolRecord record(int rows) {
+        final List<InsertAllRequest.RowToInsert> content = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            final Map<String, Object> row = new HashMap<>();
+            row.put("unitId", UUID.randomUUID().toString());
+            row.put("packages", Collections.singletonMap("reference", UUID.randomUUID().toString()));
+            content.add(InsertAllRequest.RowToInsert.of(UUID.randomUUID().toString(), row));
+        }
+        return SpoolRecord.of(GoogleClientSecretUtils.getGoogleClientSecret(), TABLE_ID, "20170101", content);
+    }
+
+}
@@ -27,6 +27,7 @@ package io.barracks.bigqueryservice.utils;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.barracks.bigqueryservice.model.DeviceRequest;
+import io.barracks.bigqueryservice.model.RawJson;
 
 import java.util.Arrays;
 import java.util.UUID;
@@ -45,7 +46,7 @@ public class DeviceRequestUtils {
                 .userId(UUID.randomUUID().toString())
                 .packages(Arrays.asList(PackageUtils.getPackage(), PackageUtils.getPackage()))
                 .userAgent(UUID.randomUUID().toString())
-                .customClientData(root)
+                .customClientData(RawJson.of(root))
                 .ipAddress("1233.234.1.1")
                 .build();
         assertThat(deviceRequest).hasNoNullFieldsOrProperties();